@@ -208,7 +208,8 @@ public class AdvertiserService extends Service {
         if (mBluetoothLeAdvertiser != null) {
             AdvertiseSettings settings = buildAdvertiseSettings();
             AdvertiseData data = buildAdvertiseData();
-            mBluetoothLeAdvertiser.startAdvertising(settings, data,
+            AdvertiseData scanResponse = buildScanResponse();
+            mBluetoothLeAdvertiser.startAdvertising(settings, data, scanResponse,
                     mAdvertiseCallback);
         }
     }
@@ -256,6 +257,25 @@ public class AdvertiserService extends Service {
         return dataBuilder.build();
     }
 
+    /**
+     * Returns an AdvertiseData object for the scan response, which carries the username packed
+     * into service data keyed by our service UUID (see {@link IdentityPayload}).
+     * Scanners can identify us from this alone, so GATT is only needed when the username is too
+     * long to fit.
+     */
+    private AdvertiseData buildScanResponse() {
+        AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
+        dataBuilder.setIncludeDeviceName(false);
+        dataBuilder.setIncludeTxPowerLevel(false);
+
+        byte[] payload = IdentityPayload.encode(mUsername);
+        if (payload != null) {
+            dataBuilder.addServiceData(mUUID, payload);
+        }
+
+        return dataBuilder.build();
+    }
+
     /**
      * Returns an AdvertiseSettings object set to use low power (to help preserve battery life)
      * and disable the built-in timeout since this code uses its own timeout runnable.
@@ -0,0 +1,78 @@
+package com.joshblour.discovery;
+
+/**
+ * Recognizes our service in the advertisements of iOS apps running in the background.
+ *
+ * A backgrounded iOS app doesn't advertise its service uuids. iOS moves them into the 'overflow
+ * area' instead: Apple manufacturer data (company id 0x004C) of type 0x01, followed by a 128 bit
+ * bitmask. Each service uuid sets one bit in it, picked by a hash Apple doesn't document, so the
+ * bit for a service uuid has to be found once by hand: background the app on an iOS device that
+ * advertises nothing else and see which bit is set. Bits are numbered from the most significant
+ * bit of the first byte of the bitmask (bit 0) to the least significant bit of the last (bit 127).
+ *
+ * Other services can hash to the same bit, so a set bit means the peer is probably ours.
+ * A clear bit means it's definitely not, which saves us connecting to every Apple device around.
+ *
+ * getData() and getMask() are precomputed for a manufacturer data ScanFilter that only lets
+ * through overflow advertisements with our bit set, see ScanConfig.addAppleOverflowFilter().
+ */
+public class AppleOverflowArea {
+    public static final int APPLE_COMPANY_ID = 0x004C;
+    public static final int OVERFLOW_AREA_TYPE = 0x01;
+    public static final int BITMASK_LENGTH = 16;
+
+    // what classify() found
+    public static final int NOT_PRESENT = 0;
+    public static final int BIT_SET = 1;
+    public static final int BIT_CLEAR = 2;
+
+    private final int mBit;
+    private final int mByteIndex;
+    private final int mBitMask;
+    private final byte[] mData;
+    private final byte[] mMask;
+
+    public AppleOverflowArea(int bit) {
+        if (bit < 0 || bit >= BITMASK_LENGTH * 8)
+            throw new IllegalArgumentException("bit must be between 0 and 127");
+
+        mBit = bit;
+        // the type byte comes first
+        mByteIndex = 1 + bit / 8;
+        mBitMask = 0x80 >>> (bit % 8);
+
+        mData = new byte[1 + BITMASK_LENGTH];
+        mMask = new byte[1 + BITMASK_LENGTH];
+        mData[0] = OVERFLOW_AREA_TYPE;
+        mMask[0] = (byte) 0xFF;
+        mData[mByteIndex] = (byte) mBitMask;
+        mMask[mByteIndex] = (byte) mBitMask;
+    }
+
+    public int getBit() {
+        return mBit;
+    }
+
+    // the manufacturer data to filter on, the bytes after the company id
+    public byte[] getData() {
+        return mData.clone();
+    }
+
+    public byte[] getMask() {
+        return mMask.clone();
+    }
+
+    // checks the advertisement the parser last parsed. NOT_PRESENT if it has no overflow area.
+    public int classify(ScanRecordParser parser) {
+        int index = parser.findManufacturerData(APPLE_COMPANY_ID);
+        if (index < 0 || parser.getManufacturerDataLength(index) < mData.length)
+            return NOT_PRESENT;
+
+        byte[] record = parser.getRecord();
+        int offset = parser.getManufacturerDataOffset(index);
+        if ((record[offset] & 0xFF) != OVERFLOW_AREA_TYPE)
+            return NOT_PRESENT;
+
+        return (record[offset + mByteIndex] & mBitMask) != 0 ? BIT_SET : BIT_CLEAR;
+    }
+}
@@ -1,6 +1,7 @@
 package com.joshblour.discovery;
 
 import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
 
 /**
  * Created by Yonah on 15/10/15.
@@ -8,27 +9,129 @@ import android.bluetooth.BluetoothDevice;
 public class BLEUser {
     private BluetoothDevice mDevice;
     private String mDeviceAddress;
+    // the address the peer uses now. peers that rotate their address keep the first one as
+    // mDeviceAddress, so they stay the same user.
+    private String mCurrentAddress;
+    // what the app sees of the user. it stays here rather than in the PeerStore, tracked users
+    // included, because copies and standalone users need it without a store
     private String mUsername;
     private Boolean mIdentified;
     private Boolean mIsMyService;
-    private Integer mRssi;
-    private Integer mProximity;
+    private int mRssi;
+    private int mProximity;
     private long mUpdateTime;
-    private EasedValue mEasedProximity;
+    // the filter that smooths the rssi into the proximity (its state is in the store)
+    private RssiFilter mRssiFilter = RssiFilter.eased();
+
+    // the user's slot in the PeerStore that holds its filter state and other sampling state.
+    // users Discovery tracks share its store, others get one of their own when they first take
+    // a sample. copies of a user don't take the store along.
+    PeerStore mStore;
+    int mSlot = -1;
+
+    // rank of the user in Discovery's ProximityIndex, -1 if it isn't in it
+    int mIndexRank = -1;
+
+    // bookkeeping for Discovery's UsersDeltaTracker: whether the user was delivered as added,
+    // and the changes that haven't been delivered yet
+    boolean mDelivered;
+    int mPendingChanges;
+
+    // the user's ProximityZones zone (where it's heading is kept in the PeerStore)
+    int mZone = ProximityZones.UNKNOWN;
+
+    // we only take the user for not ours because the bit of our service was clear in its
+    // AppleOverflowArea. the bit is set once our app runs on the peer, so it's checked again.
+    boolean mOverflowBitClear;
+
+    // links of Discovery's ExpiryWheel, mExpirySlot is -1 if the user isn't on it, and when the
+    // user was last seen on the wheel's clock (PeerTracker's scan time)
+    BLEUser mExpiryNext;
+    BLEUser mExpiryPrev;
+    int mExpirySlot = -1;
+    long mExpirySeen;
+
+    // links of Discovery's EvictionQueue, mLruClass is -1 if the user isn't in it
+    BLEUser mLruNext;
+    BLEUser mLruPrev;
+    int mLruClass = -1;
 
     public BLEUser(final BluetoothDevice device) {
+        this(device, device.getAddress());
+    }
+
+    // for users that aren't backed by a real device, like in tests
+    BLEUser(String deviceAddress) {
+        this(null, deviceAddress);
+    }
+
+    // a copy of the user as it is now, for handing to the app while the original keeps changing
+    BLEUser(BLEUser user) {
+        this(user.mDevice, user.mDeviceAddress);
+        this.mCurrentAddress = user.mCurrentAddress;
+        this.mUsername = user.mUsername;
+        this.mIdentified = user.mIdentified;
+        this.mIsMyService = user.mIsMyService;
+        this.mRssi = user.mRssi;
+        this.mProximity = user.mProximity;
+        this.mUpdateTime = user.mUpdateTime;
+        this.mRssiFilter = user.mRssiFilter;
+        this.mZone = user.mZone;
+    }
+
+    // the device may be null, like for the users of simulated peers
+    BLEUser(BluetoothDevice device, String deviceAddress) {
         this.mDevice = device;
-        this.mDeviceAddress = device.getAddress();
-        this.mRssi = 0;
-        this.mEasedProximity = new EasedValue();
+        this.mDeviceAddress = deviceAddress;
+        this.mCurrentAddress = deviceAddress;
+    }
+
+    // the store with the user's sampling state, in slot mSlot
+    PeerStore store() {
+        if (mStore == null)
+            attach(new PeerStore(1));
+        return mStore;
     }
 
+    // moves the user into a shared store, before it takes any samples
+    void attach(PeerStore store) {
+        detach();
+        mStore = store;
+        mSlot = store.allocate();
+        store.setFilter(mSlot, mRssiFilter);
+    }
+
+    // gives up the user's slot, when it's forgotten
+    void detach() {
+        if (mStore == null)
+            return;
+        mStore.free(mSlot);
+        mStore = null;
+        mSlot = -1;
+    }
+
+    // filters a sample taken now
     public Integer convertRSSItoProximity(Integer rssi) {
-        // eased value doesn't support negative values
-        this.mEasedProximity.setValue(Math.abs(rssi) * 1.0f);//convert to float
-        this.mEasedProximity.update();
-        Integer proximity = Math.round(this.mEasedProximity.getValue() * -1.0f);
-        return proximity;
+        return convertRSSItoProximity(rssi, SystemClock.elapsedRealtime());
+    }
+
+    // filters a sample taken at the given time, in elapsed realtime milliseconds
+    public int convertRSSItoProximity(int rssi, long time) {
+        return Math.round(store().filter(mSlot, mRssiFilter, rssi, time));
+    }
+
+    public RssiFilter getRssiFilter() {
+        return mRssiFilter;
+    }
+
+    // switching filters starts smoothing over from the next sample
+    public void setRssiFilter(RssiFilter rssiFilter) {
+        if (rssiFilter == mRssiFilter)
+            return;
+
+        this.mRssiFilter = rssiFilter;
+        if (mStore != null)
+            mStore.setFilter(mSlot, rssiFilter);
     }
     public String getDeviceAddress() {
         return mDeviceAddress;
@@ -38,6 +141,23 @@ public class BLEUser {
         this.mDeviceAddress = deviceAddress;
     }
 
+    // the address the peer advertises from now, which differs from getDeviceAddress() once it
+    // rotated its address
+    public String getCurrentAddress() {
+        return mCurrentAddress;
+    }
+
+    // the device the peer advertises from now
+    BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    // the peer moved to a new address (see Discovery's IdentityResolver)
+    void setCurrentDevice(BluetoothDevice device, String address) {
+        this.mDevice = device;
+        this.mCurrentAddress = address;
+    }
+
     public String getUsername() {
         return mUsername;
     }
@@ -54,23 +174,42 @@ public class BLEUser {
         this.mIdentified = mIdentified;
     }
 
+    // boxed like it always was. rssis and proximities are small enough for Integer's cache, so
+    // this doesn't allocate
     public Integer getRssi() {
         return mRssi;
     }
 
+    // for samples without a time, filters that care about time treat them as simultaneous
     public void setRssi(int mRssi) {
+        setRssi(mRssi, mStore == null ? 0 : Math.max(mStore.mFilterTimes[mSlot], 0));
+    }
+
+    public void setRssi(int mRssi, long time) {
         this.mRssi = mRssi;
-        this.setProximity(convertRSSItoProximity(mRssi));
+        this.mProximity = convertRSSItoProximity(mRssi, time);
     }
 
     public Integer getProximity() {
         return mProximity;
     }
 
+    // the proximity, without boxing it
+    int proximity() {
+        return mProximity;
+    }
+
+    // the proximity can't be null anymore, users start at 0 until their first sample
     public void setProximity(Integer mProximity) {
         this.mProximity = mProximity;
     }
 
+    // the ProximityZones zone the user is in, ProximityZones.UNKNOWN when zones aren't used
+    public int getZone() {
+        return mZone;
+    }
+
+    // when the user was last seen, in SystemClock.elapsedRealtime() milliseconds
     public long getUpdateTime() {
         return mUpdateTime;
     }
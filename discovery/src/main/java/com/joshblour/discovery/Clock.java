@@ -0,0 +1,19 @@
+package com.joshblour.discovery;
+
+import android.os.SystemClock;
+
+/**
+ * A source of time in milliseconds, so time driven parts can be tested with a fake clock.
+ */
+public interface Clock {
+
+    // time since boot, including deep sleep. doesn't jump when the wall clock is changed.
+    Clock ELAPSED_REALTIME = new Clock() {
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    long now();
+}
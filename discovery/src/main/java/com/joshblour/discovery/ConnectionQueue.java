@@ -0,0 +1,182 @@
+package com.joshblour.discovery;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.HashMap;
+
+/**
+ * The devices waiting for a gatt connection, strongest rssi first.
+ *
+ * An indexed binary heap: entries are kept by address too, and know their place in the heap, so a
+ * device that is queued again has its rssi updated in place and a device can be taken out of the
+ * middle of the queue, in O(log n). Each device has exactly one entry, the queue never holds more
+ * entries than devices waiting. Not thread safe.
+ */
+class ConnectionQueue {
+
+    static class Entry {
+        final BluetoothDevice mDevice;
+        final String mAddress;
+        final long mEnqueuedAt;
+        int mRssi;
+        long mLastSeen;
+        // place in the heap, -1 once the entry left the queue
+        int mIndex = -1;
+
+        Entry(BluetoothDevice device, String address, long enqueuedAt) {
+            mDevice = device;
+            mAddress = address;
+            mEnqueuedAt = enqueuedAt;
+        }
+    }
+
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    private Entry[] mHeap = new Entry[16];
+    private int mSize;
+
+    // queues the device, or updates its rssi and when it was last seen if it's queued already.
+    // returns true if it wasn't queued
+    boolean offer(BluetoothDevice device, String address, int rssi, long now) {
+        Entry entry = mEntries.get(address);
+        if (entry != null) {
+            entry.mLastSeen = now;
+            int previousRssi = entry.mRssi;
+            entry.mRssi = rssi;
+            if (rssi > previousRssi) {
+                siftUp(entry.mIndex);
+            } else if (rssi < previousRssi) {
+                siftDown(entry.mIndex);
+            }
+            return false;
+        }
+
+        entry = new Entry(device, address, now);
+        entry.mRssi = rssi;
+        entry.mLastSeen = now;
+        mEntries.put(address, entry);
+        if (mSize == mHeap.length) {
+            Entry[] heap = new Entry[mHeap.length * 2];
+            System.arraycopy(mHeap, 0, heap, 0, mSize);
+            mHeap = heap;
+        }
+        place(entry, mSize++);
+        siftUp(entry.mIndex);
+        return true;
+    }
+
+    // the device with the strongest rssi, or null if the queue is empty
+    Entry peek() {
+        return mSize == 0 ? null : mHeap[0];
+    }
+
+    // takes the device with the strongest rssi off the queue, or returns null if it's empty
+    Entry poll() {
+        if (mSize == 0)
+            return null;
+
+        Entry head = mHeap[0];
+        removeAt(0);
+        return head;
+    }
+
+    Entry get(String address) {
+        return mEntries.get(address);
+    }
+
+    // returns true if the device was queued
+    boolean remove(String address) {
+        Entry entry = mEntries.get(address);
+        if (entry == null)
+            return false;
+
+        removeAt(entry.mIndex);
+        return true;
+    }
+
+    // takes the devices we haven't seen since the cutoff off the queue.
+    // returns how many were removed
+    int removeStale(long cutoff) {
+        // keep the others in one pass, then restore the heap bottom up
+        int size = 0;
+        for (int i = 0; i < mSize; i++) {
+            Entry entry = mHeap[i];
+            if (entry.mLastSeen < cutoff) {
+                mEntries.remove(entry.mAddress);
+                entry.mIndex = -1;
+            } else {
+                place(entry, size++);
+            }
+        }
+
+        int removedCount = mSize - size;
+        if (removedCount == 0)
+            return 0;
+
+        for (int i = size; i < mSize; i++) {
+            mHeap[i] = null;
+        }
+        mSize = size;
+        for (int i = (mSize >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        return removedCount;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    private void removeAt(int index) {
+        Entry entry = mHeap[index];
+        mEntries.remove(entry.mAddress);
+        entry.mIndex = -1;
+
+        mSize--;
+        Entry last = mHeap[mSize];
+        mHeap[mSize] = null;
+        if (index == mSize)
+            return;
+
+        place(last, index);
+        siftDown(index);
+        if (last.mIndex == index)
+            siftUp(index);
+    }
+
+    private void siftUp(int index) {
+        Entry entry = mHeap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (mHeap[parent].mRssi >= entry.mRssi)
+                break;
+            place(mHeap[parent], index);
+            index = parent;
+        }
+        place(entry, index);
+    }
+
+    private void siftDown(int index) {
+        Entry entry = mHeap[index];
+        int half = mSize >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < mSize && mHeap[right].mRssi > mHeap[child].mRssi)
+                child = right;
+            if (entry.mRssi >= mHeap[child].mRssi)
+                break;
+            place(mHeap[child], index);
+            index = child;
+        }
+        place(entry, index);
+    }
+
+    private void place(Entry entry, int index) {
+        mHeap[index] = entry;
+        entry.mIndex = index;
+    }
+}
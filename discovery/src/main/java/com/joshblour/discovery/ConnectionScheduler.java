@@ -0,0 +1,152 @@
+package com.joshblour.discovery;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.HashSet;
+
+/**
+ * Decides which devices GattManager connects to, and when.
+ *
+ * At most mMaxConcurrent connections are in flight, the rest wait in a ConnectionQueue ordered by
+ * their latest rssi. Devices we haven't seen for mQueueTimeout are dropped from the queue, and
+ * devices that keep failing are backed off by a GattRetryPolicy. It only keeps the addresses of
+ * the connections in flight, connecting is up to the caller. Times are passed in, so it runs on
+ * any clock. Not thread safe.
+ */
+class ConnectionScheduler {
+    private final ConnectionQueue mPendingQueue = new ConnectionQueue();
+    private final HashSet<String> mInFlight = new HashSet<>();
+    private final GattRetryPolicy mRetryPolicy = new GattRetryPolicy();
+    private int mMaxConcurrent = 3;
+    private long mQueueTimeout = 10000;
+    // when devices we haven't seen for mQueueTimeout were last taken off the queue
+    private long mLastQueueSweep;
+
+    // queue statistics, so the limits can be tuned
+    private long mTotalWaitTime;
+    private long mMaxWaitTime;
+    private int mStartedFromQueueCount;
+    private int mDroppedFromQueueCount;
+    private int mTimedOutCount;
+
+    // whether the device may be queued: it isn't backed off
+    boolean canAttempt(String address, long now) {
+        return mRetryPolicy.canAttempt(address, now);
+    }
+
+    boolean isInFlight(String address) {
+        return mInFlight.contains(address);
+    }
+
+    // queues the device, or updates its priority if it's queued already.
+    // returns true if it wasn't queued
+    boolean offer(BluetoothDevice device, String address, int rssi, long now) {
+        return mPendingQueue.offer(device, address, rssi, now);
+    }
+
+    boolean hasFreeSlot() {
+        return mInFlight.size() < mMaxConcurrent;
+    }
+
+    // takes the closest queued device we've seen lately and counts it as in flight, or returns
+    // null if all slots are taken or nobody is waiting
+    ConnectionQueue.Entry next(long now) {
+        // devices that went away without reaching the head of the queue are dropped too, once
+        // per timeout interval, so they don't pile up behind stronger ones
+        if (now - mLastQueueSweep >= mQueueTimeout) {
+            mDroppedFromQueueCount += mPendingQueue.removeStale(now - mQueueTimeout);
+            mLastQueueSweep = now;
+        }
+
+        while (hasFreeSlot() && !mPendingQueue.isEmpty()) {
+            ConnectionQueue.Entry pending = mPendingQueue.poll();
+
+            if (now - pending.mLastSeen > mQueueTimeout) {
+                // we haven't seen this device in a while, it's probably gone
+                mDroppedFromQueueCount++;
+                continue;
+            }
+
+            long waitTime = now - pending.mEnqueuedAt;
+            mTotalWaitTime += waitTime;
+            mMaxWaitTime = Math.max(mMaxWaitTime, waitTime);
+            mStartedFromQueueCount++;
+            mInFlight.add(pending.mAddress);
+            return pending;
+        }
+        return null;
+    }
+
+    // frees the connection's slot, and records how it went with the retry policy. resolved is
+    // whether we got an answer from the device, whether or not it's ours
+    void finished(String address, boolean resolved, long now) {
+        if (!mInFlight.remove(address))
+            return;
+
+        if (resolved) {
+            mRetryPolicy.onSuccess(address);
+        } else {
+            mRetryPolicy.onFailure(address, now);
+        }
+        mRetryPolicy.prune(now);
+    }
+
+    // like finished(), for a connection that was torn down by the watchdog
+    void timedOut(String address, boolean resolved, long now) {
+        if (mInFlight.contains(address))
+            mTimedOutCount++;
+        finished(address, resolved, now);
+    }
+
+
+    //***BEGIN GETTERS AND SETTERS**
+    GattRetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    int getMaxConcurrent() {
+        return mMaxConcurrent;
+    }
+
+    void setMaxConcurrent(int maxConcurrent) {
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    long getQueueTimeout() {
+        return mQueueTimeout;
+    }
+
+    // in milliseconds
+    void setQueueTimeout(long queueTimeout) {
+        mQueueTimeout = queueTimeout;
+    }
+
+    int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    int getQueueDepth() {
+        return mPendingQueue.size();
+    }
+
+    long getAverageWaitTime() {
+        return mStartedFromQueueCount == 0 ? 0 : mTotalWaitTime / mStartedFromQueueCount;
+    }
+
+    long getMaxWaitTime() {
+        return mMaxWaitTime;
+    }
+
+    int getStartedFromQueueCount() {
+        return mStartedFromQueueCount;
+    }
+
+    int getDroppedFromQueueCount() {
+        return mDroppedFromQueueCount;
+    }
+
+    int getTimedOutCount() {
+        return mTimedOutCount;
+    }
+    //***END GETTERS AND SETTERS**
+}
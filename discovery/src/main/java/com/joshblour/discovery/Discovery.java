@@ -20,30 +20,49 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.ParcelUuid;
 import android.util.Log;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 /**
  * Created by Yonah on 15/10/15.
+ *
+ * Everything that touches the users (scan results, gatt results, expiry, the scan cycle) runs on
+ * a dedicated discovery thread. Scan results are queued from the scanner's binder threads, and
+ * public methods called from other threads are posted to it. Callbacks get copies of the users,
+ * delivered on the callback executor (the main thread by default).
+ * What we make of the results and who we track is up to the PeerTracker.
  */
 @TargetApi(Build.VERSION_CODES.KITKAT)
-public class Discovery implements MultiScanner.MultiScannerCallback, GattManager.GattManagerCallback{
+public class Discovery implements MultiScanner.MultiScannerCallback, MultiScanner.BatchCallback, GattManager.GattManagerCallback{
     private final static String TAG = "discovery-Discovery";
 
     public interface DiscoveryCallback {
         void didUpdateUsers(ArrayList<BLEUser> users, Boolean usersChanged);
     }
 
+    // receives only what changed since the previous call, see UsersDelta
+    public interface DiscoveryDeltaCallback {
+        void didChangeUsers(UsersDelta delta);
+    }
+
 
 
     public enum DIStartOptions{
@@ -56,25 +75,168 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
     private Context mContext;
     private String mUsername;
     private ParcelUuid mUUID;
-    private Boolean mPaused;
-    private Integer mUserTimeoutInterval;
-    private Integer mScanForSeconds;
-    private Integer mWaitForSeconds;
-    private Boolean mShouldAdvertise;
-    private Boolean mShouldDiscover;
-    private Boolean mDisableAndroidLScanner;
-    private Map<String, BLEUser> mUsersMap;
+    private volatile Boolean mPaused;
+    private volatile Integer mUserTimeoutInterval;
+    private volatile Boolean mShouldAdvertise;
+    private volatile Boolean mShouldDiscover;
+    private volatile Boolean mDisableAndroidLScanner;
+    private volatile Integer mExpiryCheckInterval;
+    // the users, and what we make of scan results and gatt results
+    private PeerTracker mPeerTracker;
+    private final PeerTracker.Host mPeerTrackerHost = new PeerTracker.Host() {
+        @Override
+        public void identify(BluetoothDevice device, String address, int rssi) {
+            getGattManager().identify(device, rssi);
+        }
+
+        @Override
+        public String getName(BluetoothDevice device) {
+            return device.getName();
+        }
 
+        @Override
+        public boolean hasCachedService(BluetoothDevice device, UUID uuid) {
+            ParcelUuid[] uuids = device.getUuids();
+            if (uuids != null) {
+                for (ParcelUuid parcelUuid : uuids) {
+                    if (parcelUuid.getUuid().equals(uuid))
+                        return true;
+                }
+            }
+            return false;
+        }
 
+        @Override
+        public void onNewPeer() {
+            mScanCycleScheduler.onNewPeer();
+        }
+
+        // saves are coalesced, so identifying many users in a row only writes the file once
+        @Override
+        public void onIdentityCacheChanged() {
+            mHandler.removeCallbacks(mSaveIdentityCacheRunnable);
+            mHandler.postDelayed(mSaveIdentityCacheRunnable, 5000);
+        }
+
+        @Override
+        public void onListChanged() {
+            updateList(true);
+        }
+    };
+
+
+    // the discovery thread, which owns the users
+    private HandlerThread mHandlerThread;
     private Handler mHandler;
-    private Runnable mRunnable;
+    private final Clock mClock = Clock.ELAPSED_REALTIME;
+    private final ScanCycleScheduler mScanCycleScheduler = new ScanCycleScheduler(mClock);
+    // the one runnable that drives the scan cycle
+    private final Runnable mScanCycleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ScanCycleScheduler.State previousState = mScanCycleScheduler.getState();
+            long delay = mScanCycleScheduler.advance();
+            if (delay < 0)
+                return;
+
+            ScanCycleScheduler.State state = mScanCycleScheduler.getState();
+            if (state != previousState) {
+                if (state == ScanCycleScheduler.State.SCANNING) {
+                    startDetecting();
+                    Log.v(TAG, "detection cycle started");
+                } else {
+                    // the scanner may keep scanning through the gap, if restarting after it
+                    // would get us throttled. either way users don't time out in the gap.
+                    getScanner().idle(delay);
+                    mPeerTracker.onScanStopped(mClock.now());
+                    Log.v(TAG, "detection cycle stopped");
+                    checkList();
+                }
+            }
+            mHandler.postDelayed(this, delay);
+        }
+    };
+    private final DispatchThrottle mDispatchThrottle = new DispatchThrottle();
+    private final Runnable mDispatchListRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // requests during the debounce push the dispatch back
+            long delay = mDispatchThrottle.due(mClock.now());
+            if (delay == 0) {
+                dispatchList();
+            } else if (delay > 0) {
+                mHandler.postDelayed(this, delay);
+            }
+        }
+    };
+    // big enough for a batch of offloaded results (see ScanConfig.setReportDelay()), which the
+    // controller collects over the whole report delay. results dropped from a batch aren't
+    // reported again until the next one, unlike results we get one at a time.
+    private final ScanQueue mScanQueue = new ScanQueue(1024);
+    private final Runnable mProcessScanQueueRunnable = new Runnable() {
+        @Override
+        public void run() {
+            processScanQueue();
+        }
+    };
+
+    // callbacks are delivered on this executor. The list of users is coalesced: if the app
+    // hasn't received the previous list yet, it just gets the newer one.
+    private volatile Executor mCallbackExecutor;
+    private final Object mPendingUsersLock = new Object();
+    private ArrayList<BLEUser> mPendingUsers;
+    private boolean mPendingUsersChanged;
+    private final Runnable mDeliverUsersRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<BLEUser> users;
+            boolean usersChanged;
+            synchronized (mPendingUsersLock) {
+                users = mPendingUsers;
+                usersChanged = mPendingUsersChanged;
+                mPendingUsers = null;
+                mPendingUsersChanged = false;
+            }
+
+            DiscoveryCallback discoveryCallback = mDiscoveryCallback;
+            if (users != null && discoveryCallback != null)
+                discoveryCallback.didUpdateUsers(users, usersChanged);
+        }
+    };
+    private final Runnable mExpiryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mPeerTracker.removeExpiredUsers(mClock.now()) > 0)
+                updateList(true);
+            scheduleExpiryCheck();
+        }
+    };
     private DiscoveryCallback mDiscoveryCallback;
+    private volatile DiscoveryDeltaCallback mDeltaCallback;
     private BluetoothAdapter mBluetoothAdapter;
 
     private GattManager mGattManager;
     private GattManager.GattManagerCallback mGattManagerCallback;
     private MultiScanner mScanner;
 
+    private IdentityCache mIdentityCache;
+    private ExecutorService mCacheExecutor;
+    private final Runnable mSaveIdentityCacheRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCacheExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mIdentityCache.save(System.currentTimeMillis());
+                    } catch (IOException e) {
+                        Log.w(TAG, "could not save identity cache", e);
+                    }
+                }
+            });
+        }
+    };
+
     public Discovery(Context context, ParcelUuid uuid, String username, DiscoveryCallback discoveryCallback) {
         this(context, uuid, username, DIStartOptions.DIStartAdvertisingAndDetecting, discoveryCallback);
     }
@@ -86,14 +248,37 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
         mDisableAndroidLScanner = false;
         mPaused = false;
         mUserTimeoutInterval = 5;
-        mScanForSeconds = 5;
-        mWaitForSeconds = 5;
         mContext = context;
         mUUID = uuid;
         mUsername = username;
         mDiscoveryCallback = discoveryCallback;
-        mUsersMap = new HashMap<>();
-        mHandler = new Handler();
+        mExpiryCheckInterval = 0;
+        mHandlerThread = new HandlerThread("discovery");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        mCallbackExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mainHandler.post(command);
+            }
+        };
+
+        // load what we remember about nearby devices in the background.
+        // until it's loaded, we just identify devices as usual.
+        mIdentityCache = new IdentityCache(new File(context.getCacheDir(), "discovery-identities.bin"));
+        mCacheExecutor = Executors.newSingleThreadExecutor();
+        mCacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mIdentityCache.load(System.currentTimeMillis());
+            }
+        });
+        mPeerTracker = new PeerTracker(mPeerTrackerHost, uuid.getUuid(), mClock, mIdentityCache);
+        mPeerTracker.setUserTimeout(mUserTimeoutInterval * 1000L);
+        // users only time out while we scan, which starts with startDetecting()
+        mPeerTracker.onScanStopped(mClock.now());
 
         switch (startOptions) {
             case DIStartAdvertisingAndDetecting:
@@ -112,44 +297,76 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
         }
     }
 
-    public void setPaused(Boolean paused) {
-        if (getBluetoothAdapter() == null)
-            return;
+    public void setPaused(final Boolean paused) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                if (getBluetoothAdapter() == null)
+                    return;
+
+                if (mPaused == paused)
+                    return;
+                mPaused = paused;
+
+                if (paused) {
+                    stopDetectionCycling();
+                    stopAdvertising();
+                } else {
+                    startDetectionCycling();
+                    startAdvertising();
+                }
+                scheduleExpiryCheck();
+            }
+        });
+    }
 
-        if (this.mPaused == paused)
-            return;
-        this.mPaused = paused;
-
-        if (paused) {
-            stopDetecting();
-            stopAdvertising();
-        } else {
-            startDetectionCycling();
-            startAdvertising();
-        }
+    // stops detecting and advertising and ends the discovery thread, once it's done with what's
+    // already queued. Don't use this instance afterwards.
+    public void shutdown() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (getBluetoothAdapter() != null) {
+                    stopDetectionCycling();
+                    stopAdvertising();
+                }
+                mHandler.removeCallbacksAndMessages(null);
+                mSaveIdentityCacheRunnable.run();
+                // the cache thread ends once the save is done
+                mCacheExecutor.shutdown();
+                mHandlerThread.quitSafely();
+            }
+        });
     }
 
     //***BEGIN DETECTION METHODS***
-    public void setShouldDiscover(Boolean shouldDiscover) {
-        if (getBluetoothAdapter() == null)
-            return;
+    public void setShouldDiscover(final Boolean shouldDiscover) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                if (getBluetoothAdapter() == null)
+                    return;
 
-        if (this.mShouldDiscover == shouldDiscover)
-            return;
+                if (mShouldDiscover == shouldDiscover)
+                    return;
 
-        this.mShouldDiscover = shouldDiscover;
+                mShouldDiscover = shouldDiscover;
 
-        if (shouldDiscover) {
-            startDetectionCycling();
-        } else {
-            stopDetecting();
-            checkList();
-        }
+                if (shouldDiscover) {
+                    startDetectionCycling();
+                } else {
+                    stopDetectionCycling();
+                    checkList();
+                }
+                scheduleExpiryCheck();
+            }
+        });
     }
 
     // A more energy efficient way to detect.
-    // It detects for mScanForSeconds(default: 5) then stops for mWaitForSeconds(default: 5) then starts again.
+    // It detects for a while then stops for a while then starts again, see ScanCycleScheduler.
     // mShouldDiscover starts THIS method when set to true and stops it when set to false.
+    // starting it again (e.g. when the cycle settings change) starts a fresh scan window.
     private void startDetectionCycling() {
         if (!mShouldDiscover || mPaused)
             return;
@@ -157,41 +374,45 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
         if (getBluetoothAdapter() == null)
             return;
 
+        mHandler.removeCallbacks(mScanCycleRunnable);
+        long delay = mScanCycleScheduler.start();
         startDetecting();
         Log.v(TAG, "detection cycle started");
+        mHandler.postDelayed(mScanCycleRunnable, delay);
+    }
 
-        if (mRunnable != null)
-            mHandler.removeCallbacks(mRunnable);
+    private void stopDetectionCycling() {
+        mHandler.removeCallbacks(mScanCycleRunnable);
+        mScanCycleScheduler.stop();
+        stopDetecting();
+    }
 
-         mRunnable = new Runnable() {
+    public void startDetecting() {
+        runOnDiscoveryThread(new Runnable() {
             @Override
             public void run() {
-                stopDetecting();
-                Log.v(TAG, "detection cycle stopped");
+                getScanner().start();
+                mPeerTracker.onScanStarted(mClock.now());
+            }
+        });
+    }
 
-                Runnable runable = new Runnable() {
-                    @Override
-                    public void run() {
-                        startDetectionCycling();
-                    }
-                };
-                mHandler.postDelayed(runable, mWaitForSeconds * 1000);
-                checkList();
+    public void stopDetecting(){
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mScanner != null)
+                    mScanner.stop();
+                mPeerTracker.onScanStopped(mClock.now());
             }
-        };
-        mHandler.postDelayed(mRunnable, mScanForSeconds * 1000);
+        });
     }
 
-    public void startDetecting() {
+    private synchronized MultiScanner getScanner() {
         if (mScanner == null)
             mScanner = new MultiScanner(getBluetoothAdapter(), null, this, true);
 
-        mScanner.start();
-    }
-
-    public void stopDetecting(){
-        if (mScanner != null)
-            mScanner.stop();
+        return mScanner;
     }//***END DETECTION METHODS***
 
 
@@ -199,25 +420,30 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
 
 
     //***BEGIN ADVERTISING METHODS***
-    public void setShouldAdvertise(Boolean shouldAdvertise) {
-        if (getBluetoothAdapter() == null)
-            return;
+    public void setShouldAdvertise(final Boolean shouldAdvertise) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                if (getBluetoothAdapter() == null)
+                    return;
 
-        if (this.mShouldAdvertise == shouldAdvertise)
-            return;
+                if (mShouldAdvertise == shouldAdvertise)
+                    return;
 
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            this.mShouldAdvertise = false;
-            return;
-        }
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                    mShouldAdvertise = false;
+                    return;
+                }
 
-        this.mShouldAdvertise = shouldAdvertise;
+                mShouldAdvertise = shouldAdvertise;
 
-        if (shouldAdvertise) {
-            startAdvertising();
-        } else {
-            stopAdvertising();
-        }
+                if (shouldAdvertise) {
+                    startAdvertising();
+                } else {
+                    stopAdvertising();
+                }
+            }
+        });
     }
 
     private void startAdvertising() {
@@ -255,140 +481,106 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
         updateList(true);
     }
 
-    // sends an update to the delegate with an array of identified users
-    public void updateList(Boolean usersChanged) {
-        ArrayList<BLEUser> users = new ArrayList<>(getUsersMap().values());
-
-        // remove unidentified users and users who dont belong to our service
-        ArrayList<BLEUser> discardedItems = new ArrayList<>();
-        for (BLEUser user : users) {
-            if (!user.isIdentified()) {
-                discardedItems.add(user);
-            }
-        }
-        users.removeAll(discardedItems);
-
-        // we sort the list according to "proximity".
-        // so the client will receive ordered users according to the proximity.
-        Collections.sort(users, new Comparator<BLEUser>() {
-            public int compare(BLEUser s1, BLEUser s2) {
-                if (s1.getProximity() == null || s2.getProximity() == null)
-                    return 0;
-                return s1.getProximity().compareTo(s2.getProximity());
+    // asks for an update to be sent to the delegate with an array of identified users.
+    // the dispatch throttle decides when it goes out, and coalesces it with other requests.
+    public void updateList(final Boolean usersChanged) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                long delay = mDispatchThrottle.request(usersChanged, mClock.now());
+                if (delay == 0) {
+                    dispatchList();
+                } else if (delay > 0) {
+                    mHandler.postDelayed(mDispatchListRunnable, delay);
+                }
             }
         });
-
-
-        if (mDiscoveryCallback != null) {
-            mDiscoveryCallback.didUpdateUsers(users, usersChanged);
-        }
     }
 
-    // removes users who haven't been seen in mUserTimeoutInterval seconds and triggers
-    // an update to the delegate
-    private void checkList() {
+    // sends the update
+    private void dispatchList() {
+        mHandler.removeCallbacks(mDispatchListRunnable);
+        boolean usersChanged = mDispatchThrottle.dispatched(mClock.now());
 
-        if (getUsersMap() == null)
-            return;
-
-        long currentTime = new Date().getTime();
-        ArrayList<String> discardedKeys = new ArrayList<>();
-
-        for (String key : getUsersMap().keySet()) {
-            BLEUser bleUser = getUsersMap().get(key);
-            long diff = currentTime - bleUser.getUpdateTime();
+        // the index only holds identified users (who belong to our service), and keeps them
+        // ordered by "proximity". so the client will receive ordered users according to the proximity.
+        // the client gets copies, the users themselves keep changing on the discovery thread.
+        // with a nearest limit, only the nearest users are copied.
+        if (mDiscoveryCallback != null) {
+            ArrayList<BLEUser> users = mPeerTracker.copyDelivered();
 
-            // We remove the user if we haven't seen him for the userTimeInterval amount of seconds.
-            // You can simply set the userTimeInterval variable anything you want.
-            if (diff > getUserTimeoutInterval() * 1000) {
-                discardedKeys.add(key);
+            boolean deliveryPending;
+            synchronized (mPendingUsersLock) {
+                deliveryPending = mPendingUsers != null;
+                mPendingUsers = users;
+                mPendingUsersChanged |= usersChanged;
             }
+            if (!deliveryPending)
+                mCallbackExecutor.execute(mDeliverUsersRunnable);
         }
 
-
-        // update the list if we removed a user.
-        if (discardedKeys.size() > 0) {
-            for (String key : discardedKeys) {
-                getUsersMap().remove(key);
+        // deltas can't be coalesced like that, each of them is delivered
+        final DiscoveryDeltaCallback deltaCallback = mDeltaCallback;
+        if (deltaCallback != null && mPeerTracker.hasDelta()) {
+            final UsersDelta delta = mPeerTracker.takeDelta();
+            if (!delta.isEmpty()) {
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deltaCallback.didChangeUsers(delta);
+                    }
+                });
             }
-            updateList();
-        } else {
-        // simply update the list, because the order of the users may have changed.
-            updateList(false);
         }
-
     }
 
-    private BLEUser userForDevice(BluetoothDevice device) {
-        BLEUser bleUser = getUsersMap().get(device.getAddress());
-
-        if (bleUser == null) {
-            bleUser = new BLEUser(device);
-            bleUser.setUsername(null);
-            bleUser.setIdentified(false);
-            getUsersMap().put(bleUser.getDeviceAddress(), bleUser);
-        }
+    // removes users who haven't been seen in mUserTimeoutInterval seconds and triggers
+    // an update to the delegate
+    private void checkList() {
+        Boolean usersChanged = mPeerTracker.endScanCycle(mClock.now());
+        if (usersChanged != null)
+            updateList(usersChanged);
+    }
 
-        return bleUser;
+    // checks for expired users every mExpiryCheckInterval milliseconds, on top of the check at the
+    // end of each scan cycle. only while we're discovering.
+    private void scheduleExpiryCheck() {
+        mHandler.removeCallbacks(mExpiryRunnable);
+        if (mExpiryCheckInterval > 0 && mShouldDiscover && !mPaused)
+            mHandler.postDelayed(mExpiryRunnable, mExpiryCheckInterval);
     }
 
+    // called by the scanner on a binder thread. we queue the result for the discovery thread,
+    // and only wake it up if it isn't already about to process the queue.
     @Override
     public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        if (mScanQueue.offer(device, rssi, scanRecord, mClock.now()))
+            mHandler.post(mProcessScanQueueRunnable);
+    }
 
-        BLEUser bleUser = userForDevice(device);
-
-        // before we report this device to our delegate as a success, two things:
-        // 1) Make sure it contains our service (it's another device advertising with our unique uuid)
-        // 2) Make sure we can read its username
-
-        // We check if we can get a cached copy of the devices service uuids
-        if (bleUser.isMyService() == null) {
-            ParcelUuid[] uuids = device.getUuids();
-            if (uuids != null && uuids.length > 0) {
-                for (ParcelUuid uuid : uuids) {
-                    if (uuid.getUuid().equals(mUUID.getUuid())) {
-                        bleUser.setIsMyService(true);
-                        updateList(true);
-                    }
-                }
-            }
-        }
-
-        // We check if we can get the username from the advertisement data,
-        // in case the advertising peer application is working at foreground
-        if (bleUser.getUsername() == null) {
-            String username = device.getName();
-
-            if (username != null && username.length() > 0) {
-                bleUser.setUsername(username);
-                updateList(true);
-            }
-        }
+    // processes all the queued scan results, and sends one update for all of them
+    private void processScanQueue() {
+        boolean usersChanged = false;
 
-        //if you have the username and a boolean value for isMyService, you have enough to identify the user
-        if (bleUser.isMyService() != null && bleUser.getUsername() != null) {
-            if (bleUser.isMyService()) {
-                bleUser.setIdentified(true);
+        ScanQueue.Batch batch;
+        while ((batch = mScanQueue.take()) != null) {
+            for (int i = 0; i < batch.size(); i++) {
+                BluetoothDevice device = batch.getDevice(i);
+                if (mPeerTracker.onScanResult(device, device.getAddress(), batch.getRssi(i), batch.getScanRecord(i), batch.getTime(i)))
+                    usersChanged = true;
             }
+            mScanQueue.recycle(batch);
         }
+        if (mPeerTracker.endScanResults(usersChanged, mClock.now()))
+            updateList(true);
+    }
 
-
-        if (bleUser.isIdentified()) {
-            /// great! we know everything we need to about this service. just update the rssi and time and we're done
-            Log.v(TAG, device.getAddress() + " - device is identified");
-        } else if (bleUser.isMyService() == null) {
-            // ok, maybe we know the username but we dont know if it's our service, so connect to gatt and check.
-            if (mGattManager == null)
-                mGattManager = new GattManager(mContext, mUUID, this);
-
-            mGattManager.identify(device);
-        } else if (!bleUser.isMyService()) {
-            /// Ok, this isn't our service, we don't care about it.
-            Log.v(TAG, device.getAddress() + " - device not our service");
-        }
-
-        bleUser.setRssi(rssi);
-        bleUser.setUpdateTime(new Date().getTime());
+    // batched results (see ScanConfig.setReportDelay) are queued in one go
+    @Override
+    public void onBatchScanResults(BluetoothDevice[] devices, int[] rssis, byte[][] scanRecords, long[] timestamps, int count) {
+        // the timestamps are elapsed realtime, like our clock
+        if (mScanQueue.offerAll(devices, rssis, scanRecords, timestamps, count))
+            mHandler.post(mProcessScanQueueRunnable);
     }
 
     @Override
@@ -396,20 +588,16 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
 
     }
 
+    // gatt results are delivered on the discovery thread, see getGattManager()
     @Override
     public void didIdentify(BluetoothDevice device, String username, ParcelUuid uuid) {
-        BLEUser bleUser = userForDevice(device);
-        bleUser.setUsername(username);
-        bleUser.setIdentified(true);
-        bleUser.setIsMyService(true);
-        updateList(true);
+        mPeerTracker.didIdentify(device, device.getAddress(), username);
     }
 
 
     @Override
     public void failedToMatchService(BluetoothDevice device) {
-        BLEUser bleUser = userForDevice(device);
-        bleUser.setIsMyService(false);
+        mPeerTracker.failedToMatchService(device, device.getAddress());
     }
 
 
@@ -435,30 +623,314 @@ public class Discovery implements MultiScanner.MultiScannerCallback, GattManager
     public Integer getUserTimeoutInterval() {
         return mUserTimeoutInterval;
     }
-    public void setUserTimeoutInterval(Integer mUserTimeoutInterval) {
-        this.mUserTimeoutInterval = mUserTimeoutInterval;
+    // in seconds, default is 5. users are removed after not being seen for that long while
+    // scanning. the gaps of the scan cycle and pauses don't count, nobody can be seen then, so a
+    // user who left during a long pause is only removed once we've scanned that long again.
+    public void setUserTimeoutInterval(final Integer mUserTimeoutInterval) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                Discovery.this.mUserTimeoutInterval = mUserTimeoutInterval;
+                mPeerTracker.setUserTimeout(mUserTimeoutInterval * 1000L);
+            }
+        });
+    }
+    // copies of the k users closest to us, nearest first. from another thread, this waits for
+    // the discovery thread to copy them.
+    public ArrayList<BLEUser> getNearest(final int k) {
+        return callOnDiscoveryThread(new Callable<ArrayList<BLEUser>>() {
+            @Override
+            public ArrayList<BLEUser> call() {
+                return mPeerTracker.copyNearest(k);
+            }
+        });
+    }
+
+    public int getNearestLimit() {
+        return mPeerTracker.getNearestLimit();
+    }
+
+    // when set, didUpdateUsers only gets the nearestLimit closest users, and the list is also
+    // updated as changed when those change places. 0 (the default) for all users.
+    public void setNearestLimit(final int nearestLimit) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mPeerTracker.setNearestLimit(nearestLimit);
+                updateList(true);
+            }
+        });
+    }
+
+    // folds the scan results of identified users and devices that aren't ours into one sample
+    // per window. off until you set its window.
+    public SampleAggregator getSampleAggregator() {
+        return mPeerTracker.getSampleAggregator();
+    }
+
+    public ForeignDeviceFilter getForeignDeviceFilter() {
+        return mPeerTracker.getForeignDeviceFilter();
+    }
+
+    // drops the scan results of devices we connected to and found aren't ours, for the filter's
+    // ttl. set a ForeignDeviceFilter with your own size and false positive rate, or null to
+    // handle every scan result.
+    public void setForeignDeviceFilter(final ForeignDeviceFilter foreignDeviceFilter) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mPeerTracker.setForeignDeviceFilter(foreignDeviceFilter);
+            }
+        });
+    }
+
+    public int getMaxUsers() {
+        return mPeerTracker.getMaxUsers();
+    }
+
+    // the most devices we track at a time, 1024 by default. past it, the least recently seen
+    // devices are forgotten to make room: devices that aren't ours first, then unidentified ones,
+    // and identified users only when there's nothing else.
+    public void setMaxUsers(final int maxUsers) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mPeerTracker.setMaxUsers(maxUsers);
+            }
+        });
+    }
+
+    // how many devices were forgotten to make room for others, and how many of those were
+    // identified users
+    public long getEvictedCount() {
+        return mPeerTracker.getEvictedCount();
+    }
+
+    public long getEvictedIdentifiedCount() {
+        return mPeerTracker.getEvictedIdentifiedCount();
+    }
+
+    // links peers that rotate their address to the user we already know
+    public IdentityResolver getIdentityResolver() {
+        return mPeerTracker.getIdentityResolver();
+    }
+
+    public ProximityZones getProximityZones() {
+        return mPeerTracker.getProximityZones();
+    }
+
+    // sorts users into zones (see BLEUser.getZone()). while set, the list is updated when a user
+    // changes zones, but no longer at the end of every scan cycle just for new proximities.
+    // null (the default) for no zones.
+    public void setProximityZones(final ProximityZones proximityZones) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mPeerTracker.setProximityZones(proximityZones);
+                updateList(true);
+            }
+        });
     }
+
+    // all the devices we're tracking, keyed by address. on the discovery thread (see getLooper())
+    // a read-only view of the users themselves. from another thread, a snapshot of copies that
+    // this waits for the discovery thread to take.
     public Map<String, BLEUser> getUsersMap() {
-        return mUsersMap;
+        if (isOnDiscoveryThread())
+            return mPeerTracker.getUsersMap();
+
+        return callOnDiscoveryThread(new Callable<Map<String, BLEUser>>() {
+            @Override
+            public Map<String, BLEUser> call() {
+                HashMap<String, BLEUser> users = new HashMap<>();
+                for (Map.Entry<String, BLEUser> entry : mPeerTracker.getUsersMap().entrySet()) {
+                    users.put(entry.getKey(), new BLEUser(entry.getValue()));
+                }
+                return Collections.unmodifiableMap(users);
+            }
+        });
+    }
+    public Integer getExpiryCheckInterval() {
+        return mExpiryCheckInterval;
+    }
+    // in milliseconds, 0 (the default) only removes timed out users at the end of each scan cycle.
+    // anything finer than the expiry wheel's 250ms tick is rounded up to it.
+    public void setExpiryCheckInterval(final Integer expiryCheckInterval) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mExpiryCheckInterval = expiryCheckInterval;
+                scheduleExpiryCheck();
+            }
+        });
     }
+    // the current scan window and idle gap, which adapt between the scan cycle scheduler's bounds
     public Integer getScanForSeconds() {
-        return mScanForSeconds;
+        return (int) (mScanCycleScheduler.getScanWindow() / 1000);
     }
     public Integer getWaitForSeconds() {
-        return mWaitForSeconds;
+        return (int) (mScanCycleScheduler.getIdleGap() / 1000);
     }
 
     public void setShouldDisableAndroidLScanner(Boolean disableAndroidLScanner) {
         this.mDisableAndroidLScanner = disableAndroidLScanner;
     }
-    public void setScanForSeconds(Integer scanForSeconds) {
-        this.mScanForSeconds = scanForSeconds;
-        startDetectionCycling();
+    public void setScanForSeconds(final Integer scanForSeconds) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                // a fixed scan window, use getScanCycleScheduler() to let it adapt
+                mScanCycleScheduler.setScanWindowBounds(scanForSeconds * 1000L, scanForSeconds * 1000L);
+                startDetectionCycling();
+            }
+        });
+    }
+
+    public void setWaitForSeconds(final Integer waitForSeconds) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                // a fixed idle gap, use getScanCycleScheduler() to let it adapt
+                mScanCycleScheduler.setIdleGapBounds(waitForSeconds * 1000L, waitForSeconds * 1000L);
+                startDetectionCycling();
+            }
+        });
+    }
+
+    // set a callback to receive what changed in the list instead of (or as well as) the whole list.
+    // the first delta adds the users that are already in the list.
+    public void setDeltaCallback(final DiscoveryDeltaCallback deltaCallback) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mDeltaCallback = deltaCallback;
+                mPeerTracker.setDeltasEnabled(deltaCallback != null);
+            }
+        });
+    }
+
+    public DiscoveryDeltaCallback getDeltaCallback() {
+        return mDeltaCallback;
+    }
+
+    public IdentityCache getIdentityCache() {
+        return mIdentityCache;
+    }
+
+    // the gatt manager used to identify devices that we can't identify from their advertisement.
+    // use it to tune the number of concurrent connections and to read the queue statistics.
+
+    public GattManager getGattManager() {
+        if (mGattManager == null)
+            mGattManager = new GattManager(mContext, mUUID, this, mHandler.getLooper());
+
+        return mGattManager;
+    }
+
+    // how the scanner scans, see ScanConfig. takes effect at the next scan window.
+    public void setScanConfig(ScanConfig scanConfig) {
+        // copied now, the caller may change theirs before the discovery thread gets to it
+        final ScanConfig config = new ScanConfig(scanConfig);
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                getScanner().setScanConfig(config);
+            }
+        });
+    }
+
+    public ScanConfig getScanConfig() {
+        return getScanner().getScanConfig();
+    }
+
+    public RssiFilter getRssiFilter() {
+        return mPeerTracker.getRssiFilter();
     }
 
-    public void setWaitForSeconds(Integer waitForSeconds) {
-        this.mWaitForSeconds = waitForSeconds;
-        startDetectionCycling();
+    // how rssi samples are smoothed into proximities, see RssiFilter. default is RssiFilter.eased()
+    public void setRssiFilter(final RssiFilter rssiFilter) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mPeerTracker.setRssiFilter(rssiFilter);
+            }
+        });
+    }
+
+    public AppleOverflowArea getAppleOverflowArea() {
+        return mPeerTracker.getAppleOverflowArea();
+    }
+
+    // the bit our service uuid sets in the overflow area of backgrounded iOS peers. with it,
+    // Apple devices are told apart without connecting to them. null (the default) to connect.
+    public void setAppleOverflowArea(final AppleOverflowArea appleOverflowArea) {
+        runOnDiscoveryThread(new Runnable() {
+            @Override
+            public void run() {
+                mPeerTracker.setAppleOverflowArea(appleOverflowArea);
+            }
+        });
+    }
+
+    // keeps scans from being started so often that the system throttles them
+    public ScanStartGovernor getScanStartGovernor() {
+        return getScanner().getStartGovernor();
+    }
+
+    // decides how long detection scans and rests, adapting to how many new devices show up
+    public ScanCycleScheduler getScanCycleScheduler() {
+        return mScanCycleScheduler;
+    }
+
+    // controls how often the callbacks are called, and counts the updates it held back
+    public DispatchThrottle getDispatchThrottle() {
+        return mDispatchThrottle;
+    }
+
+    public Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    // the executor callbacks are delivered on, the main thread by default.
+    // it should run tasks in order, or deltas may arrive out of order.
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.mCallbackExecutor = callbackExecutor;
+    }
+
+    // the looper of the discovery thread, which owns the users
+    public Looper getLooper() {
+        return mHandler.getLooper();
+    }
+
+    private boolean isOnDiscoveryThread() {
+        return Looper.myLooper() == mHandler.getLooper();
+    }
+
+    // runs the runnable now if we're on the discovery thread, otherwise posts it there.
+    // returns false if it couldn't be posted because the thread was shut down.
+    private boolean runOnDiscoveryThread(Runnable runnable) {
+        if (!isOnDiscoveryThread())
+            return mHandler.post(runnable);
+
+        runnable.run();
+        return true;
+    }
+
+    // runs the task on the discovery thread and waits for its result. once the thread was shut
+    // down nothing else touches the users, so the task runs on the caller's thread.
+    private <T> T callOnDiscoveryThread(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        if (!runOnDiscoveryThread(future))
+            future.run();
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for the discovery thread", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
     }
 
     private BluetoothAdapter getBluetoothAdapter() {
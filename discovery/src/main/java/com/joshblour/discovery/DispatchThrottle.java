@@ -0,0 +1,155 @@
+package com.joshblour.discovery;
+
+/**
+ * Decides when requests to update the app's list of users turn into an actual callback.
+ *
+ * Requests that come in while a dispatch is already pending are coalesced into it. A pending
+ * dispatch goes out once all of these hold:
+ *  - at least mMinInterval has passed since the previous dispatch (the maximum callback rate)
+ *  - no request came in for mDebounceInterval (a trailing edge debounce), though the debounce
+ *    never holds a dispatch back for more than mMaxDebounceDelay after its first request
+ * With mOnlyOnChange set, requests that didn't change the list (like the ones at the end of each
+ * scan cycle, which only pass on new proximities) are dropped.
+ *
+ * The defaults dispatch every request right away, as before.
+ * All times are in milliseconds, and "now" is passed in so this can be driven by any clock.
+ * Configuration and counters may be read from any thread, the rest is used by one thread.
+ */
+public class DispatchThrottle {
+
+    private volatile long mMinInterval;
+    private volatile long mDebounceInterval;
+    private volatile long mMaxDebounceDelay;
+    private volatile boolean mOnlyOnChange;
+
+    private boolean mPending;
+    private boolean mPendingChanged;
+    private long mFirstRequestAt;
+    private long mLastRequestAt;
+    private long mLastDispatchAt = Long.MIN_VALUE;
+
+    private volatile long mRequestedCount;
+    private volatile long mDispatchedCount;
+    private volatile long mCoalescedCount;
+    private volatile long mDroppedCount;
+
+    public DispatchThrottle() {
+        mMinInterval = 0;
+        mDebounceInterval = 0;
+        mMaxDebounceDelay = 1000;
+        mOnlyOnChange = false;
+    }
+
+    // a dispatch was requested. returns how long to wait before dispatching (0 to dispatch right
+    // away), or -1 if there's nothing to schedule because a dispatch is already pending or the
+    // request was dropped.
+    long request(boolean usersChanged, long now) {
+        mRequestedCount++;
+        if (mOnlyOnChange && !usersChanged) {
+            mDroppedCount++;
+            return -1;
+        }
+
+        mLastRequestAt = now;
+        mPendingChanged |= usersChanged;
+        if (mPending) {
+            mCoalescedCount++;
+            return -1;
+        }
+
+        mPending = true;
+        mFirstRequestAt = now;
+        return delay(now);
+    }
+
+    // the pending dispatch was scheduled to go out now. returns 0 if it should, the time to wait
+    // if it has to wait longer (a request came in during the debounce), or -1 if none is pending.
+    long due(long now) {
+        if (!mPending)
+            return -1;
+        return delay(now);
+    }
+
+    // call this when dispatching. returns whether any of the coalesced requests changed the list.
+    boolean dispatched(long now) {
+        boolean usersChanged = mPendingChanged;
+        mPending = false;
+        mPendingChanged = false;
+        mLastDispatchAt = now;
+        mDispatchedCount++;
+        return usersChanged;
+    }
+
+    boolean isPending() {
+        return mPending;
+    }
+
+    private long delay(long now) {
+        long dueAt = Math.min(mLastRequestAt + mDebounceInterval, mFirstRequestAt + mMaxDebounceDelay);
+        if (mLastDispatchAt != Long.MIN_VALUE)
+            dueAt = Math.max(dueAt, mLastDispatchAt + mMinInterval);
+        return Math.max(0, dueAt - now);
+    }
+
+
+    //***BEGIN GETTERS AND SETTERS**
+    public long getMinInterval() {
+        return mMinInterval;
+    }
+
+    // at most one callback every minInterval milliseconds. default is 0.
+    public void setMinInterval(long minInterval) {
+        this.mMinInterval = minInterval;
+    }
+
+    public long getDebounceInterval() {
+        return mDebounceInterval;
+    }
+
+    // wait until there were no requests for debounceInterval milliseconds. default is 0.
+    public void setDebounceInterval(long debounceInterval) {
+        this.mDebounceInterval = debounceInterval;
+    }
+
+    public long getMaxDebounceDelay() {
+        return mMaxDebounceDelay;
+    }
+
+    // the longest the debounce holds a callback back. default is 1000.
+    public void setMaxDebounceDelay(long maxDebounceDelay) {
+        this.mMaxDebounceDelay = maxDebounceDelay;
+    }
+
+    public boolean isOnlyOnChange() {
+        return mOnlyOnChange;
+    }
+
+    // only call back when users were added, removed or changed, not just for new proximities
+    public void setOnlyOnChange(boolean onlyOnChange) {
+        this.mOnlyOnChange = onlyOnChange;
+    }
+
+    public long getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    public long getDispatchedCount() {
+        return mDispatchedCount;
+    }
+
+    // requests folded into a pending dispatch
+    public long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    // requests dropped because they didn't change the list (see setOnlyOnChange)
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    // all requests that didn't lead to a dispatch of their own
+    public long getSuppressedCount() {
+        return mCoalescedCount + mDroppedCount;
+    }
+    //***END GETTERS AND SETTERS**
+}
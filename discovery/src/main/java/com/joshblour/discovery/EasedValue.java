@@ -2,7 +2,11 @@ package com.joshblour.discovery;
 
 /**
  * Created by Yonah on 16/10/15.
+ *
+ * @deprecated BLEUser doesn't use it anymore, its proximity is smoothed by an RssiFilter.
+ * RssiFilter.eased() eases the same way without allocating.
  */
+@Deprecated
 public class EasedValue {
     private Float mValue;
     private Float mVelocity;
@@ -0,0 +1,88 @@
+package com.joshblour.discovery;
+
+/**
+ * Picks the user to forget when Discovery tracks as many users as it may.
+ *
+ * Users are kept in three least recently seen lists: devices that aren't ours, devices we haven't
+ * identified (yet), and identified users. The victim is the least recently seen user of the first
+ * list that isn't empty, so identified users only go once nothing else is left.
+ * Seeing a user moves it to the end of its list, and into another list if it's been identified
+ * or found not to be ours since, in constant time.
+ *
+ * The list links live in the users (BLEUser.mLruNext/mLruPrev/mLruClass). Not thread safe.
+ */
+class EvictionQueue {
+    static final int FOREIGN = 0;
+    static final int UNIDENTIFIED = 1;
+    static final int IDENTIFIED = 2;
+
+    private final BLEUser[] mHeads = new BLEUser[3];
+    private final BLEUser[] mTails = new BLEUser[3];
+    private final int[] mSizes = new int[3];
+
+    static int classOf(BLEUser user) {
+        if (user.isIdentified() != null && user.isIdentified())
+            return IDENTIFIED;
+        if (user.isMyService() != null && !user.isMyService())
+            return FOREIGN;
+        return UNIDENTIFIED;
+    }
+
+    // the user was just seen, or what we know about it changed
+    void touch(BLEUser user) {
+        if (user.mLruClass >= 0)
+            unlink(user);
+
+        int lruClass = classOf(user);
+        user.mLruClass = lruClass;
+        user.mLruNext = null;
+        user.mLruPrev = mTails[lruClass];
+        if (mTails[lruClass] == null) {
+            mHeads[lruClass] = user;
+        } else {
+            mTails[lruClass].mLruNext = user;
+        }
+        mTails[lruClass] = user;
+        mSizes[lruClass]++;
+    }
+
+    void remove(BLEUser user) {
+        if (user.mLruClass >= 0)
+            unlink(user);
+    }
+
+    // the user to forget first, or null if there are none
+    BLEUser victim() {
+        for (int lruClass = FOREIGN; lruClass <= IDENTIFIED; lruClass++) {
+            if (mHeads[lruClass] != null)
+                return mHeads[lruClass];
+        }
+        return null;
+    }
+
+    int size() {
+        return mSizes[FOREIGN] + mSizes[UNIDENTIFIED] + mSizes[IDENTIFIED];
+    }
+
+    int size(int lruClass) {
+        return mSizes[lruClass];
+    }
+
+    private void unlink(BLEUser user) {
+        int lruClass = user.mLruClass;
+        if (user.mLruPrev == null) {
+            mHeads[lruClass] = user.mLruNext;
+        } else {
+            user.mLruPrev.mLruNext = user.mLruNext;
+        }
+        if (user.mLruNext == null) {
+            mTails[lruClass] = user.mLruPrev;
+        } else {
+            user.mLruNext.mLruPrev = user.mLruPrev;
+        }
+        user.mLruNext = null;
+        user.mLruPrev = null;
+        user.mLruClass = -1;
+        mSizes[lruClass]--;
+    }
+}
@@ -0,0 +1,138 @@
+package com.joshblour.discovery;
+
+import java.util.List;
+
+/**
+ * A hashed timer wheel that finds users who haven't been seen for the user timeout, without
+ * walking every user we track.
+ *
+ * The wheel runs on PeerTracker's scan time, the time spent scanning, and users on when they were
+ * last seen on it (BLEUser.mExpirySeen), so users don't time out while the scanner is idle.
+ *
+ * Each user sits in the slot of the tick its deadline (last seen + timeout) falls in. Users are
+ * seen again all the time, so their deadline isn't moved on every scan result. Instead, when a
+ * slot's tick comes up the deadline is checked again, and users that were seen in the meantime
+ * are moved on to the slot of their new deadline. So an advance only touches the users in the
+ * slots that passed, and most of those have actually expired.
+ *
+ * Deadlines further away than a full turn of the wheel simply come round again.
+ * The list links live in the users (BLEUser.mExpiryNext/mExpiryPrev). Not thread safe.
+ */
+class ExpiryWheel {
+    private final BLEUser[] mSlots;
+    private final int mMask;
+    private final long mTickMillis;
+    private long mLastTick;
+    private int mSize;
+
+    // slots is rounded up to a power of two
+    ExpiryWheel(long tickMillis, int slots, long now) {
+        int capacity = 1;
+        while (capacity < slots) {
+            capacity <<= 1;
+        }
+        mSlots = new BLEUser[capacity];
+        mMask = capacity - 1;
+        mTickMillis = tickMillis;
+        mLastTick = now / tickMillis;
+    }
+
+    // starts watching the user, or moves it to the given deadline if it's already watched
+    void schedule(BLEUser user, long deadline) {
+        if (user.mExpirySlot >= 0) {
+            unlink(user);
+        } else {
+            mSize++;
+        }
+        link(user, tickOf(deadline));
+    }
+
+    void cancel(BLEUser user) {
+        if (user.mExpirySlot < 0)
+            return;
+        unlink(user);
+        mSize--;
+    }
+
+    boolean contains(BLEUser user) {
+        return user.mExpirySlot >= 0;
+    }
+
+    // goes over the slots of the ticks that passed since the last advance. users not seen for
+    // timeoutMillis are taken off the wheel and added to expired, the rest are rescheduled.
+    // returns the number of expired users.
+    int advance(long now, long timeoutMillis, List<BLEUser> expired) {
+        long nowTick = now / mTickMillis;
+        if (nowTick <= mLastTick)
+            return 0;
+
+        // every slot is visited at most once, no matter how long it's been
+        long firstTick = Math.max(mLastTick + 1, nowTick - mMask);
+        mLastTick = nowTick;
+
+        int count = 0;
+        for (long tick = firstTick; tick <= nowTick; tick++) {
+            int slot = (int) (tick & mMask);
+            // detach the slot first, so users rescheduled into it aren't visited twice
+            BLEUser user = mSlots[slot];
+            mSlots[slot] = null;
+
+            while (user != null) {
+                BLEUser next = user.mExpiryNext;
+                user.mExpiryNext = null;
+                user.mExpiryPrev = null;
+                user.mExpirySlot = -1;
+
+                long deadline = user.mExpirySeen + timeoutMillis;
+                if (deadline < now) {
+                    mSize--;
+                    expired.add(user);
+                    count++;
+                } else {
+                    link(user, tickOf(deadline));
+                }
+                user = next;
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long getTickMillis() {
+        return mTickMillis;
+    }
+
+    // the first tick at or after the deadline, and always after the last tick we advanced to
+    private long tickOf(long deadline) {
+        long tick = (deadline + mTickMillis - 1) / mTickMillis;
+        return Math.max(tick, mLastTick + 1);
+    }
+
+    private void link(BLEUser user, long tick) {
+        int slot = (int) (tick & mMask);
+        BLEUser head = mSlots[slot];
+        user.mExpiryPrev = null;
+        user.mExpiryNext = head;
+        if (head != null)
+            head.mExpiryPrev = user;
+        mSlots[slot] = user;
+        user.mExpirySlot = slot;
+    }
+
+    private void unlink(BLEUser user) {
+        if (user.mExpiryPrev != null) {
+            user.mExpiryPrev.mExpiryNext = user.mExpiryNext;
+        } else {
+            mSlots[user.mExpirySlot] = user.mExpiryNext;
+        }
+        if (user.mExpiryNext != null)
+            user.mExpiryNext.mExpiryPrev = user.mExpiryPrev;
+
+        user.mExpiryNext = null;
+        user.mExpiryPrev = null;
+        user.mExpirySlot = -1;
+    }
+}
@@ -0,0 +1,159 @@
+package com.joshblour.discovery;
+
+import java.util.Arrays;
+
+/**
+ * Remembers devices that turned out not to run our service, so their scan results can be dropped
+ * with a hash probe, instead of going through the users and being connected to again every time
+ * they come back after timing out.
+ *
+ * An aging Bloom filter of packed addresses (see MacAddress): two generations of bits, added
+ * devices go into the current one and both are probed. The current generation becomes the
+ * previous one (and the previous one is forgotten) every mTtl / 2 milliseconds, or once it holds
+ * mExpectedDevices devices (generations move on as the filter is used, so a little later when
+ * it's idle). So a device is remembered for between mTtl / 2 and mTtl, and is checked again
+ * after that (an iOS app that wasn't running may have started since). Each generation is sized
+ * so both together stay within mFalsePositiveRate.
+ *
+ * A false positive drops the scan results of a device of ours until its bits age out, so keep
+ * the rate low. Not thread safe.
+ */
+public class ForeignDeviceFilter {
+
+    private final int mExpectedDevices;
+    private final double mFalsePositiveRate;
+    private final long mTtl;
+
+    private final int mHashCount;
+    private long[] mCurrent;
+    private long[] mPrevious;
+    private final int mBitMask;
+    private int mCurrentCount;
+    private long mCurrentSince;
+
+    private volatile long mRejectedCount;
+
+    // 1024 devices at a time, one false positive in 10000, remembered for up to 30 minutes
+    public ForeignDeviceFilter() {
+        this(1024, 0.0001, 30 * 60 * 1000L);
+    }
+
+    public ForeignDeviceFilter(int expectedDevices, double falsePositiveRate, long ttl) {
+        if (expectedDevices <= 0)
+            throw new IllegalArgumentException("expectedDevices must be positive");
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+
+        mExpectedDevices = expectedDevices;
+        mFalsePositiveRate = falsePositiveRate;
+        mTtl = ttl;
+
+        // a probe is a false positive if either generation matches, so each gets half the rate
+        double rate = falsePositiveRate / 2;
+        double bits = -expectedDevices * Math.log(rate) / (Math.log(2) * Math.log(2));
+        int size = 64;
+        while (size < bits) {
+            size <<= 1;
+        }
+        mBitMask = size - 1;
+        mHashCount = Math.max(1, (int) Math.round(-Math.log(rate) / Math.log(2)));
+        mCurrent = new long[size / 64];
+        mPrevious = new long[size / 64];
+        mCurrentSince = Long.MIN_VALUE;
+    }
+
+    // remembers the device with the given packed address as not ours
+    public void add(long address, long now) {
+        age(now);
+
+        long hash = mix(address);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < mHashCount; i++) {
+            int bit = (h1 + i * h2) & mBitMask;
+            mCurrent[bit >>> 6] |= 1L << bit;
+        }
+        mCurrentCount++;
+    }
+
+    // true if the device was (most likely) added within the ttl
+    public boolean mightContain(long address, long now) {
+        age(now);
+
+        long hash = mix(address);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        if (contains(mCurrent, h1, h2) || contains(mPrevious, h1, h2)) {
+            mRejectedCount++;
+            return true;
+        }
+        return false;
+    }
+
+    // forgets every device
+    public void clear() {
+        Arrays.fill(mCurrent, 0);
+        Arrays.fill(mPrevious, 0);
+        mCurrentCount = 0;
+        mCurrentSince = Long.MIN_VALUE;
+    }
+
+    private boolean contains(long[] bits, int h1, int h2) {
+        for (int i = 0; i < mHashCount; i++) {
+            int bit = (h1 + i * h2) & mBitMask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    // moves on to a new generation when the current one is old or full
+    private void age(long now) {
+        if (mCurrentSince == Long.MIN_VALUE) {
+            mCurrentSince = now;
+            return;
+        }
+
+        long generation = mTtl / 2;
+        if (now - mCurrentSince < generation && mCurrentCount < mExpectedDevices)
+            return;
+
+        // the current generation is a whole ttl old, so it goes too
+        if (now - mCurrentSince >= mTtl)
+            Arrays.fill(mCurrent, 0);
+
+        long[] previous = mPrevious;
+        Arrays.fill(previous, 0);
+        mPrevious = mCurrent;
+        mCurrent = previous;
+        mCurrentCount = 0;
+        mCurrentSince = now;
+    }
+
+    // spreads all the bits of a mac address over the long (murmur3's finalizer)
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    public int getExpectedDevices() {
+        return mExpectedDevices;
+    }
+
+    public double getFalsePositiveRate() {
+        return mFalsePositiveRate;
+    }
+
+    public long getTtl() {
+        return mTtl;
+    }
+
+    // how many probes matched, scan results that were dropped
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+}
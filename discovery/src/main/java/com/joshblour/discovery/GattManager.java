@@ -10,15 +10,23 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Created by Yonah on 18/03/16.
+ *
+ * Connections are scheduled by a ConnectionScheduler: at most mMaxConcurrentConnections are in
+ * flight at any time (the android stack degrades badly beyond a handful) and the rest wait
+ * ordered by their latest rssi, so the closest devices are identified first.
+ * A watchdog tears down connections that haven't finished within mGattTimeoutInterval, and
+ * devices that keep failing are backed off (and eventually given up on) by a GattRetryPolicy.
+ * All scheduling state is only touched from the manager's looper (the main looper unless another
+ * one is given), and the callback is called on it too. identify() must be called on it as well.
  */
 public class GattManager {
     private final static String TAG = "discovery-GattManager";
@@ -29,23 +37,44 @@ public class GattManager {
     }
 
     private Integer mGattTimeoutInterval;
-    private Map<String, Long> mGattConnectionStartTimes;
-    private Map<String, BluetoothGatt> mGattConnections;
+    private Map<String, Connection> mGattConnections;
+
+    private Integer mMaxConcurrentConnections;
+    private Integer mQueueTimeoutInterval;
+    private ConnectionScheduler mScheduler;
+    private Handler mHandler;
 
     private ParcelUuid mServiceUUID;
     private GattManagerCallback mCallback;
     private Context mContext;
     private final MyBluetoothGattCallback mMyBluetoothGattCallback = new MyBluetoothGattCallback();
+    private final Runnable mConnectNextRunnable = new Runnable() {
+        @Override
+        public void run() {
+            connectNext();
+        }
+    };
 
     public GattManager(Context context, ParcelUuid serviceUUID, GattManagerCallback callback) {
+        this(context, serviceUUID, callback, Looper.getMainLooper());
+    }
+
+    public GattManager(Context context, ParcelUuid serviceUUID, GattManagerCallback callback, Looper looper) {
         mContext = context;
         mServiceUUID = serviceUUID;
         mCallback = callback;
 
         mGattConnections = new HashMap<>();
-        mGattConnectionStartTimes = new HashMap<>();
         mGattTimeoutInterval = 30;
 
+        mMaxConcurrentConnections = 3;
+        mQueueTimeoutInterval = 10;
+        mScheduler = new ConnectionScheduler();
+        mHandler = new Handler(looper);
+    }
+
+    public void identify(final BluetoothDevice device) {
+        identify(device, Integer.MIN_VALUE);
     }
 
     // call this method to try to identify a device.
@@ -53,49 +82,184 @@ public class GattManager {
     // if a service matching ours is found. the callback didMatchService is called and we try to read the characteristics
     // if we can read the characteristic matching our service, the callback didIdentify is called with the username
     // if no service matching ours is found, the callback failedToMatchService is called.
-    public void identify(final BluetoothDevice device) {
-        boolean shouldConnect = false;
-
-        // first check if there are any existing connection attempts in progress.
-        // If there are, check to see if they have timed out.
-        // If they have, cancel them and try again. If not, wait..
-        // if no existing attempts, start a new one and store it (if successful).
-        long currentTime = new Date().getTime();
-        BluetoothGatt existingGatt = mGattConnections.get(device.getAddress());
-
-        if (existingGatt == null) {
-            Log.v(TAG, device.getAddress() + " - device not identified. will connect");
-            shouldConnect = true;
-        } else {
-            long startedAt = mGattConnectionStartTimes.get(device.getAddress());
-            if (currentTime - startedAt < mGattTimeoutInterval * 1000) {
-                Log.v(TAG, device.getAddress() + " - device not identified. connection already in progress");
-                shouldConnect = false;
+    //
+    // the device is queued with its latest rssi, and connected to once a connection slot is free.
+    // calling this again for a device that is still queued just updates its priority.
+    public void identify(final BluetoothDevice device, int rssi) {
+        String address = device.getAddress();
+
+        // devices that failed recently are backed off, don't even queue them
+        if (!mScheduler.canAttempt(address, SystemClock.elapsedRealtime()))
+            return;
+
+        // if there is an attempt in progress, wait for it.
+        // the watchdog tears it down if it takes longer than mGattTimeoutInterval
+        if (mScheduler.isInFlight(address)) {
+            Log.v(TAG, address + " - device not identified. connection already in progress");
+            return;
+        }
+
+        // a device that is still queued just has its priority updated, in place
+        if (mScheduler.offer(device, address, rssi, SystemClock.elapsedRealtime()))
+            Log.v(TAG, address + " - device not identified. queued for connection");
+        if (mScheduler.hasFreeSlot())
+            mHandler.post(mConnectNextRunnable);
+    }
+
+    // starts connections for the closest queued devices until all slots are taken
+    private void connectNext() {
+        long now = SystemClock.elapsedRealtime();
+        ConnectionQueue.Entry pending;
+        while ((pending = mScheduler.next(now)) != null) {
+            String address = pending.mAddress;
+            BluetoothGatt gatt = pending.mDevice.connectGatt(mContext, false, mMyBluetoothGattCallback);
+            if (gatt != null) {
+                Log.v(TAG, address + " - attempted connection");
+                Connection connection = new Connection(gatt);
+                mGattConnections.put(address, connection);
+                mHandler.postDelayed(connection, mGattTimeoutInterval * 1000);
             } else {
-                Log.w(TAG, device.getAddress() + " - connection did timeout. will retry");
-                existingGatt.disconnect();
-                existingGatt.close();
-                mGattConnections.remove(device.getAddress());
-                mGattConnectionStartTimes.remove(device.getAddress());
-                shouldConnect = true;
+                mScheduler.finished(address, false, now);
             }
         }
+    }
 
-        if (shouldConnect) {
-            Handler handler = new Handler(Looper.getMainLooper());
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    BluetoothGatt gatt = device.connectGatt(mContext, false, mMyBluetoothGattCallback);
-                    if (gatt != null) {
-                        Log.v(TAG, device.getAddress() + " - attempted connection");
-                        mGattConnections.put(device.getAddress(), gatt);
-                        mGattConnectionStartTimes.put(device.getAddress(), new Date().getTime());
-                    }
-                }
-            });
+    // called on our looper once we got an answer from the device, whether or not it's ours
+    private void connectionResolved(BluetoothGatt gatt) {
+        Connection connection = mGattConnections.get(gatt.getDevice().getAddress());
+        if (connection != null && connection.mGatt == gatt)
+            connection.mResolved = true;
+    }
+
+    // called on our looper once a connection has been torn down, frees its slot
+    private void connectionFinished(BluetoothGatt gatt) {
+        String address = gatt.getDevice().getAddress();
+        Connection connection = mGattConnections.get(address);
+
+        if (connection != null && connection.mGatt == gatt) {
+            mHandler.removeCallbacks(connection);
+            mGattConnections.remove(address);
+
+            mScheduler.finished(address, connection.mResolved, SystemClock.elapsedRealtime());
         }
+        connectNext();
+    }
+
+    // called by the watchdog when a connection didn't finish in time
+    private void connectionTimedOut(Connection connection) {
+        String address = connection.mGatt.getDevice().getAddress();
+        if (mGattConnections.get(address) != connection)
+            return;
+
+        Log.w(TAG, address + " - connection did timeout");
+        connection.mGatt.disconnect();
+        connection.mGatt.close();
+        mGattConnections.remove(address);
 
+        mScheduler.timedOut(address, connection.mResolved, SystemClock.elapsedRealtime());
+        connectNext();
+    }
+
+
+    //***BEGIN GETTERS AND SETTERS**
+    public Integer getGattTimeoutInterval() {
+        return mGattTimeoutInterval;
+    }
+
+    // in seconds, default is 30. connections that haven't finished by then are torn down.
+    // only applies to connections started after the change.
+    public void setGattTimeoutInterval(Integer gattTimeoutInterval) {
+        this.mGattTimeoutInterval = gattTimeoutInterval;
+    }
+
+    // controls how devices that fail to connect are backed off and when we give up on them
+    public GattRetryPolicy getRetryPolicy() {
+        return mScheduler.getRetryPolicy();
+    }
+
+    public int getTimedOutCount() {
+        return mScheduler.getTimedOutCount();
+    }
+
+    public Integer getMaxConcurrentConnections() {
+        return mMaxConcurrentConnections;
+    }
+
+    // the maximum number of gatt connections in flight at the same time. default is 3.
+    public void setMaxConcurrentConnections(Integer maxConcurrentConnections) {
+        this.mMaxConcurrentConnections = Math.max(1, maxConcurrentConnections);
+        mScheduler.setMaxConcurrent(mMaxConcurrentConnections);
+        mHandler.post(mConnectNextRunnable);
+    }
+
+    public Integer getQueueTimeoutInterval() {
+        return mQueueTimeoutInterval;
+    }
+
+    // in seconds, default is 10. queued devices we haven't seen for this long are dropped.
+    public void setQueueTimeoutInterval(Integer queueTimeoutInterval) {
+        this.mQueueTimeoutInterval = queueTimeoutInterval;
+        mScheduler.setQueueTimeout(queueTimeoutInterval * 1000L);
+    }
+
+    public int getInFlightCount() {
+        return mScheduler.getInFlightCount();
+    }
+
+    public int getQueueDepth() {
+        return mScheduler.getQueueDepth();
+    }
+
+    // average time in milliseconds between queueing a device and connecting to it
+    public long getAverageWaitTime() {
+        return mScheduler.getAverageWaitTime();
+    }
+
+    public long getMaxWaitTime() {
+        return mScheduler.getMaxWaitTime();
+    }
+
+    public int getDroppedFromQueueCount() {
+        return mScheduler.getDroppedFromQueueCount();
+    }
+    //***END GETTERS AND SETTERS**
+
+
+    // an in-flight connection. It doubles as its own watchdog runnable.
+    private class Connection implements Runnable {
+        final BluetoothGatt mGatt;
+        boolean mResolved;
+
+        Connection(BluetoothGatt gatt) {
+            mGatt = gatt;
+        }
+
+        @Override
+        public void run() {
+            connectionTimedOut(this);
+        }
+    }
+
+    // the gatt callbacks arrive on binder threads, these move the results over to our looper
+
+    private void postIdentified(final BluetoothGatt gatt, final String username, final ParcelUuid uuid) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                connectionResolved(gatt);
+                mCallback.didIdentify(gatt.getDevice(), username, uuid);
+            }
+        });
+    }
+
+    private void postFailedToMatchService(final BluetoothGatt gatt) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                connectionResolved(gatt);
+                mCallback.failedToMatchService(gatt.getDevice());
+            }
+        });
     }
 
     private class MyBluetoothGattCallback extends BluetoothGattCallback {
@@ -114,8 +278,12 @@ public class GattManager {
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 Log.v(TAG, gatt.getDevice().getAddress() + " - disconnected...");
                 gatt.close();
-                mGattConnections.remove(gatt.getDevice().getAddress());
-                mGattConnectionStartTimes.remove(gatt.getDevice().getAddress());
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        connectionFinished(gatt);
+                    }
+                });
 
             } else {
                 Log.v(TAG, gatt.getDevice().getAddress() + " status: " + status);
@@ -145,7 +313,7 @@ public class GattManager {
 
 
             if (!isMyService) {
-                mCallback.failedToMatchService(gatt.getDevice());
+                postFailedToMatchService(gatt);
                 gatt.disconnect();
             }
 
@@ -166,8 +334,7 @@ public class GattManager {
                     // if the value is not nil, we found our username!
                     if (value != null && value.length() > 0) {
                         Log.v(TAG, gatt.getDevice().getAddress() + " - got username!!");
-
-                        mCallback.didIdentify(gatt.getDevice(), value, uuid);
+                        postIdentified(gatt, value, uuid);
 
                         // cancel the subscription to our characteristic
                         gatt.setCharacteristicNotification(characteristic, false);
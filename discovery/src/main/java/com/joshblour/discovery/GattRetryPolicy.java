@@ -0,0 +1,125 @@
+package com.joshblour.discovery;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Per-device retry bookkeeping for gatt identification.
+ *
+ * Every failed attempt doubles the time until the device may be tried again, starting at
+ * mBaseBackoff and capped at mMaxBackoff. After mMaxFailures consecutive failures we give up on
+ * the device for mGiveUpInterval. Once that has passed the device gets a single new attempt, and
+ * another failure puts it straight back into the given up state.
+ *
+ * All times are in milliseconds, and "now" is passed in so this can be driven by any clock.
+ */
+public class GattRetryPolicy {
+
+    private long mBaseBackoff;
+    private long mMaxBackoff;
+    private int mMaxFailures;
+    private long mGiveUpInterval;
+
+    private final Map<String, Backoff> mBackoffs;
+
+    public GattRetryPolicy() {
+        mBaseBackoff = 2 * 1000;
+        mMaxBackoff = 60 * 1000;
+        mMaxFailures = 5;
+        mGiveUpInterval = 10 * 60 * 1000;
+        mBackoffs = new HashMap<>();
+    }
+
+    // true if the device isn't currently backed off or given up on
+    public boolean canAttempt(String address, long now) {
+        Backoff backoff = mBackoffs.get(address);
+        return backoff == null || now >= backoff.mNextAttemptAt;
+    }
+
+    public boolean isGivenUp(String address, long now) {
+        Backoff backoff = mBackoffs.get(address);
+        return backoff != null && backoff.mFailures >= mMaxFailures && now < backoff.mNextAttemptAt;
+    }
+
+    public int getFailureCount(String address) {
+        Backoff backoff = mBackoffs.get(address);
+        return backoff == null ? 0 : backoff.mFailures;
+    }
+
+    // the attempt got an answer (either our service or not), forget about previous failures
+    public void onSuccess(String address) {
+        mBackoffs.remove(address);
+    }
+
+    public void onFailure(String address, long now) {
+        Backoff backoff = mBackoffs.get(address);
+        if (backoff == null) {
+            backoff = new Backoff();
+            mBackoffs.put(address, backoff);
+        }
+
+        backoff.mFailures = Math.min(backoff.mFailures + 1, mMaxFailures);
+
+        if (backoff.mFailures >= mMaxFailures) {
+            backoff.mNextAttemptAt = now + mGiveUpInterval;
+        } else {
+            // past the cap, doubling again could overflow
+            int doublings = backoff.mFailures - 1;
+            long delay = doublings >= 63 || mBaseBackoff > (mMaxBackoff >> doublings) ? mMaxBackoff : mBaseBackoff << doublings;
+            backoff.mNextAttemptAt = now + Math.min(delay, mMaxBackoff);
+        }
+    }
+
+    // drops entries whose backoff has expired and that would be allowed through anyway, and
+    // devices we gave up on that weren't tried again for another give up interval after theirs
+    // ended, so devices we never see again don't accumulate
+    public void prune(long now) {
+        for (Iterator<Backoff> iterator = mBackoffs.values().iterator(); iterator.hasNext(); ) {
+            Backoff backoff = iterator.next();
+            long keepFor = backoff.mFailures < mMaxFailures ? mMaxBackoff : mGiveUpInterval;
+            if (now >= backoff.mNextAttemptAt + keepFor) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public int size() {
+        return mBackoffs.size();
+    }
+
+
+    //***BEGIN GETTERS AND SETTERS**
+    public long getBaseBackoff() {
+        return mBaseBackoff;
+    }
+    public void setBaseBackoff(long baseBackoff) {
+        this.mBaseBackoff = baseBackoff;
+    }
+    public long getMaxBackoff() {
+        return mMaxBackoff;
+    }
+    public void setMaxBackoff(long maxBackoff) {
+        this.mMaxBackoff = maxBackoff;
+    }
+    public int getMaxFailures() {
+        return mMaxFailures;
+    }
+    // at least 1
+    public void setMaxFailures(int maxFailures) {
+        if (maxFailures < 1)
+            throw new IllegalArgumentException("maxFailures must be at least 1");
+        this.mMaxFailures = maxFailures;
+    }
+    public long getGiveUpInterval() {
+        return mGiveUpInterval;
+    }
+    public void setGiveUpInterval(long giveUpInterval) {
+        this.mGiveUpInterval = giveUpInterval;
+    }
+
+    private static class Backoff {
+        int mFailures;
+        long mNextAttemptAt;
+    }
+}
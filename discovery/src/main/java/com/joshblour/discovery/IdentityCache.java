@@ -0,0 +1,264 @@
+package com.joshblour.discovery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers what we learned about devices across restarts, so peers we identified a few
+ * minutes ago don't need another gatt round trip after the app is killed.
+ *
+ * Entries map a packed device address to {username, isMyService, lastSeen}. They expire after
+ * mTimeToLive and the least recently used entries are evicted beyond mMaxEntries.
+ *
+ * The file is a small binary format:
+ *  magic (int), version (byte), count (int), then for each entry:
+ *  address (6 bytes), lastSeen (long), flags (byte), username (modified utf-8, if flagged)
+ * Entries are written least recently used first, so loading them back keeps the lru order.
+ *
+ * load() and save() do blocking IO, call them off the main thread. Until load() has finished,
+ * get() simply returns null. Thread safe.
+ */
+public class IdentityCache {
+    private static final int MAGIC = 0x44534943; // "DSIC"
+    private static final int VERSION = 1;
+
+    private static final int FLAG_HAS_USERNAME = 0x01;
+    private static final int FLAG_SERVICE_KNOWN = 0x02;
+    private static final int FLAG_IS_MY_SERVICE = 0x04;
+
+    private final File mFile;
+    private long mTimeToLive;
+    private int mMaxEntries;
+
+    private final LinkedHashMap<Long, Entry> mEntries;
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    public IdentityCache(File file) {
+        mFile = file;
+        mTimeToLive = 24 * 60 * 60 * 1000;
+        mMaxEntries = 2000;
+        // access ordered, so iteration goes from least to most recently used
+        mEntries = new LinkedHashMap<Long, IdentityCache.Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, IdentityCache.Entry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    public static class Entry {
+        private final String mUsername;
+        private final Boolean mIsMyService;
+        private final long mLastSeen;
+
+        public Entry(String username, Boolean isMyService, long lastSeen) {
+            mUsername = username;
+            mIsMyService = isMyService;
+            mLastSeen = lastSeen;
+        }
+
+        public String getUsername() {
+            return mUsername;
+        }
+
+        public Boolean isMyService() {
+            return mIsMyService;
+        }
+
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+    }
+
+    // returns the entry for the address, or null if we don't know it, it expired,
+    // or the cache hasn't been loaded yet.
+    public synchronized Entry get(long address, long now) {
+        if (!mLoaded)
+            return null;
+
+        Entry entry = mEntries.get(address);
+        if (entry != null && now - entry.mLastSeen > mTimeToLive) {
+            mEntries.remove(address);
+            mDirty = true;
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void put(long address, String username, Boolean isMyService, long now) {
+        if (address == MacAddress.INVALID)
+            return;
+
+        mEntries.put(address, new Entry(username, isMyService, now));
+        mDirty = true;
+    }
+
+    public synchronized void remove(long address) {
+        if (mEntries.remove(address) != null)
+            mDirty = true;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    public synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * Reads the cache file, dropping entries that expired while we weren't running.
+     * Entries put before the load finished win over the ones on disk.
+     * A missing or unreadable file just leaves the cache empty.
+     */
+    public void load(long now) {
+        LinkedHashMap<Long, Entry> loaded = new LinkedHashMap<>();
+        try {
+            readFrom(mFile, loaded, now, getTimeToLive());
+        } catch (FileNotFoundException e) {
+            // nothing cached yet
+        } catch (IOException e) {
+            loaded.clear();
+        }
+
+        synchronized (this) {
+            if (mLoaded)
+                return;
+
+            LinkedHashMap<Long, Entry> early = new LinkedHashMap<>(mEntries);
+            mEntries.clear();
+            mEntries.putAll(loaded);
+            mEntries.putAll(early);
+            mLoaded = true;
+        }
+    }
+
+    /**
+     * Writes the cache to a temporary file and moves it in place.
+     */
+    public void save(long now) throws IOException {
+        long[] addresses;
+        Entry[] snapshot;
+        synchronized (this) {
+            if (!mDirty && mFile.exists())
+                return;
+
+            // don't write out entries we would drop when loading anyway
+            for (Iterator<Entry> iterator = mEntries.values().iterator(); iterator.hasNext(); ) {
+                if (now - iterator.next().mLastSeen > mTimeToLive)
+                    iterator.remove();
+            }
+
+            addresses = new long[mEntries.size()];
+            snapshot = new Entry[mEntries.size()];
+            int i = 0;
+            for (Map.Entry<Long, Entry> mapEntry : mEntries.entrySet()) {
+                addresses[i] = mapEntry.getKey();
+                snapshot[i] = mapEntry.getValue();
+                i++;
+            }
+            mDirty = false;
+        }
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(snapshot.length);
+            for (int i = 0; i < snapshot.length; i++) {
+                long address = addresses[i];
+                Entry entry = snapshot[i];
+
+                out.writeShort((int) (address >>> 32));
+                out.writeInt((int) address);
+                out.writeLong(entry.mLastSeen);
+
+                int flags = 0;
+                if (entry.mUsername != null)
+                    flags |= FLAG_HAS_USERNAME;
+                if (entry.mIsMyService != null) {
+                    flags |= FLAG_SERVICE_KNOWN;
+                    if (entry.mIsMyService)
+                        flags |= FLAG_IS_MY_SERVICE;
+                }
+                out.writeByte(flags);
+
+                if (entry.mUsername != null)
+                    out.writeUTF(entry.mUsername);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(mFile)) {
+            mFile.delete();
+            if (!temp.renameTo(mFile)) {
+                synchronized (this) {
+                    mDirty = true;
+                }
+                throw new IOException("could not replace " + mFile);
+            }
+        }
+    }
+
+    private static void readFrom(File file, Map<Long, Entry> entries, long now, long timeToLive) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION)
+                throw new IOException("not an identity cache");
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long address = ((long) (in.readShort() & 0xFFFF) << 32) | (in.readInt() & 0xFFFFFFFFL);
+                long lastSeen = in.readLong();
+                int flags = in.readByte();
+                String username = (flags & FLAG_HAS_USERNAME) != 0 ? in.readUTF() : null;
+                Boolean isMyService = (flags & FLAG_SERVICE_KNOWN) != 0 ? (flags & FLAG_IS_MY_SERVICE) != 0 : null;
+
+                if (now - lastSeen <= timeToLive)
+                    entries.put(address, new Entry(username, isMyService, lastSeen));
+            }
+        } catch (EOFException e) {
+            throw new IOException("truncated identity cache", e);
+        } finally {
+            in.close();
+        }
+    }
+
+
+    //***BEGIN GETTERS AND SETTERS**
+    public File getFile() {
+        return mFile;
+    }
+    public synchronized long getTimeToLive() {
+        return mTimeToLive;
+    }
+    // in milliseconds, default is 24 hours
+    public synchronized void setTimeToLive(long timeToLive) {
+        this.mTimeToLive = timeToLive;
+    }
+    public synchronized int getMaxEntries() {
+        return mMaxEntries;
+    }
+    // default is 2000. least recently used entries are evicted beyond this.
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.mMaxEntries = Math.max(1, maxEntries);
+    }
+}
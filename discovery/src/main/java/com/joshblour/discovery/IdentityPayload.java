@@ -0,0 +1,141 @@
+package com.joshblour.discovery;
+
+import java.nio.charset.Charset;
+
+/**
+ * Compact encoding of a username for the service data of our scan response, so that
+ * scanners can identify us without a GATT connection.
+ *
+ * The payload is a header byte followed by the encoded username:
+ *  - the top two bits of the header hold the encoding
+ *  - the low six bits hold the number of characters (packed) or bytes (utf-8)
+ *
+ * Usernames made only of [0-9a-zA-Z._] are packed at six bits per character, anything else
+ * is sent as plain utf-8. With a 128 bit service uuid there are 13 bytes left for the payload
+ * in a scan response, which fits 16 packed characters or 12 utf-8 bytes.
+ */
+public class IdentityPayload {
+
+    // a scan response is 31 bytes, minus 2 bytes of AD header and 16 bytes of service uuid
+    public static final int MAX_PAYLOAD_LENGTH = 13;
+
+    static final int ENCODING_PACKED = 0;
+    static final int ENCODING_UTF8 = 1;
+
+    private static final String ALPHABET =
+            "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ._";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // reverse lookup from ascii to alphabet index, -1 for characters we can't pack
+    private static final byte[] INDEX = new byte[128];
+
+    static {
+        for (int i = 0; i < INDEX.length; i++) {
+            INDEX[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length(); i++) {
+            INDEX[ALPHABET.charAt(i)] = (byte) i;
+        }
+    }
+
+    /**
+     * Returns the encoded payload, or null if the username doesn't fit in a scan response.
+     * In that case scanners fall back to reading it over GATT.
+     */
+    public static byte[] encode(String username) {
+        return encode(username, MAX_PAYLOAD_LENGTH);
+    }
+
+    public static byte[] encode(String username, int maxLength) {
+        if (username == null || username.length() == 0)
+            return null;
+
+        if (isPackable(username)) {
+            int length = username.length();
+            byte[] payload = new byte[1 + (length * 6 + 7) / 8];
+            if (payload.length > maxLength || length > 0x3F)
+                return null;
+
+            payload[0] = (byte) ((ENCODING_PACKED << 6) | length);
+            int bitPosition = 0;
+            for (int i = 0; i < length; i++) {
+                writeBits(payload, 1, bitPosition, INDEX[username.charAt(i)]);
+                bitPosition += 6;
+            }
+            return payload;
+        }
+
+        byte[] bytes = username.getBytes(UTF8);
+        if (bytes.length + 1 > maxLength || bytes.length > 0x3F)
+            return null;
+
+        byte[] payload = new byte[bytes.length + 1];
+        payload[0] = (byte) ((ENCODING_UTF8 << 6) | bytes.length);
+        System.arraycopy(bytes, 0, payload, 1, bytes.length);
+        return payload;
+    }
+
+    /**
+     * Decodes a payload found at the given offset in a scan record.
+     * Returns null if the payload is malformed.
+     */
+    public static String decode(byte[] record, int offset, int length) {
+        if (record == null || length < 1 || offset < 0 || offset + length > record.length)
+            return null;
+
+        int header = record[offset] & 0xFF;
+        int encoding = header >>> 6;
+        int count = header & 0x3F;
+
+        if (count == 0)
+            return null;
+
+        if (encoding == ENCODING_UTF8) {
+            if (count > length - 1)
+                return null;
+            return new String(record, offset + 1, count, UTF8);
+        }
+
+        if (encoding != ENCODING_PACKED || (count * 6 + 7) / 8 > length - 1)
+            return null;
+
+        char[] chars = new char[count];
+        int bitPosition = 0;
+        for (int i = 0; i < count; i++) {
+            chars[i] = ALPHABET.charAt(readBits(record, offset + 1, bitPosition));
+            bitPosition += 6;
+        }
+        return new String(chars);
+    }
+
+    static boolean isPackable(String username) {
+        for (int i = 0; i < username.length(); i++) {
+            char c = username.charAt(i);
+            if (c >= INDEX.length || INDEX[c] < 0)
+                return false;
+        }
+        return true;
+    }
+
+    // writes a six bit value, most significant bit first
+    private static void writeBits(byte[] buffer, int offset, int bitPosition, int value) {
+        for (int bit = 5; bit >= 0; bit--) {
+            if (((value >>> bit) & 1) != 0) {
+                int index = offset + (bitPosition >>> 3);
+                buffer[index] = (byte) (buffer[index] | (0x80 >>> (bitPosition & 7)));
+            }
+            bitPosition++;
+        }
+    }
+
+    private static int readBits(byte[] buffer, int offset, int bitPosition) {
+        int value = 0;
+        for (int i = 0; i < 6; i++) {
+            int index = offset + (bitPosition >>> 3);
+            int bit = (buffer[index] >>> (7 - (bitPosition & 7))) & 1;
+            value = (value << 1) | bit;
+            bitPosition++;
+        }
+        return value;
+    }
+}
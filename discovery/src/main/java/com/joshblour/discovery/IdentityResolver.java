@@ -0,0 +1,122 @@
+package com.joshblour.discovery;
+
+/**
+ * Recognizes peers that rotated to a new private address (iOS and recent Android versions do
+ * every 15 minutes or so) as a user we already know, instead of a new device.
+ *
+ * A new address is linked to a known user when:
+ *  - the new address advertises the same username (in its identity payload or local name)
+ *  - the known user went quiet before the new address showed up, at most mMaxGap before.
+ *    Addresses don't overlap, the peer stops using the old one when it rotates.
+ *  - the sample's rssi is within mMaxRssiJump dB of the known user's proximity
+ * If several users match, the one with the closest proximity wins.
+ *
+ * Peers that don't advertise a username (iOS apps in the background) can optionally be linked on
+ * timing and rssi alone, if exactly one known user of our service fits. Two people swapping places
+ * within the gap could be mixed up that way, so it's off by default.
+ *
+ * Looks through the identified users, which only happens the first time we see an address.
+ * Configuration may be changed from any thread, resolve() is called on the discovery thread.
+ */
+public class IdentityResolver {
+
+    private volatile boolean mEnabled;
+    private volatile long mMaxGap;
+    private volatile int mMaxRssiJump;
+    private volatile boolean mResolveWithoutUsername;
+
+    private volatile long mResolvedCount;
+
+    public IdentityResolver() {
+        mEnabled = true;
+        mMaxGap = 5000;
+        mMaxRssiJump = 15;
+        mResolveWithoutUsername = false;
+    }
+
+    // the known user that newUser is, or null. called with the first sample of a new address:
+    // username is what it advertises (null if nothing), rssi and time are of the sample.
+    BLEUser resolve(ProximityIndex index, BLEUser newUser, String username, int rssi, long time) {
+        if (!mEnabled)
+            return null;
+        if (username == null && (!mResolveWithoutUsername || newUser.isMyService() == null || !newUser.isMyService()))
+            return null;
+
+        BLEUser match = null;
+        int matchJump = Integer.MAX_VALUE;
+        int matchCount = 0;
+        for (int rank = 0; rank < index.size(); rank++) {
+            BLEUser user = index.get(rank);
+            if (user == newUser || user.isMyService() == null || !user.isMyService())
+                continue;
+            if (username != null && !username.equals(user.getUsername()))
+                continue;
+
+            long lastSeen = user.getUpdateTime();
+            if (lastSeen > time || time - lastSeen > mMaxGap)
+                continue;
+
+            int jump = Math.abs(rssi - user.proximity());
+            if (jump > mMaxRssiJump)
+                continue;
+
+            matchCount++;
+            if (jump < matchJump) {
+                match = user;
+                matchJump = jump;
+            }
+        }
+
+        // without a username, only an unambiguous match will do
+        if (username == null && matchCount > 1)
+            return null;
+
+        if (match != null)
+            mResolvedCount++;
+        return match;
+    }
+
+
+    //***BEGIN GETTERS AND SETTERS**
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    // default is true
+    public void setEnabled(boolean enabled) {
+        this.mEnabled = enabled;
+    }
+
+    public long getMaxGap() {
+        return mMaxGap;
+    }
+
+    // in milliseconds, default is 5000
+    public void setMaxGap(long maxGap) {
+        this.mMaxGap = maxGap;
+    }
+
+    public int getMaxRssiJump() {
+        return mMaxRssiJump;
+    }
+
+    // in dB, default is 15
+    public void setMaxRssiJump(int maxRssiJump) {
+        this.mMaxRssiJump = maxRssiJump;
+    }
+
+    public boolean getResolveWithoutUsername() {
+        return mResolveWithoutUsername;
+    }
+
+    // default is false
+    public void setResolveWithoutUsername(boolean resolveWithoutUsername) {
+        this.mResolveWithoutUsername = resolveWithoutUsername;
+    }
+
+    // how many new addresses were linked to known users
+    public long getResolvedCount() {
+        return mResolvedCount;
+    }
+    //***END GETTERS AND SETTERS**
+}
@@ -0,0 +1,168 @@
+package com.joshblour.discovery;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map with primitive long keys, used to look up peers by their packed
+ * address (see MacAddress) without boxing or allocating on every scan result.
+ *
+ * Uses linear probing, and backward shift deletion so there are no tombstones. Empty slots
+ * are marked by a null value, so every long is a valid key but null values can't be stored.
+ *
+ * Slots can be walked directly with capacity(), keyAt() and valueAt(). Not thread safe.
+ */
+public class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+    private int mMask;
+    private int mResizeThreshold;
+
+    public LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mMask = capacity - 1;
+        mResizeThreshold = capacity * 3 / 4;
+    }
+
+    // spreads the bits of a mac address, whose low bits are often sequential
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = hash(key) & mMask;
+        Object value;
+        while ((value = mValues[index]) != null) {
+            if (mKeys[index] == key)
+                return (V) value;
+            index = (index + 1) & mMask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    // returns the previous value for the key, or null
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("null values are not supported");
+
+        int index = hash(key) & mMask;
+        Object existing;
+        while ((existing = mValues[index]) != null) {
+            if (mKeys[index] == key) {
+                mValues[index] = value;
+                return (V) existing;
+            }
+            index = (index + 1) & mMask;
+        }
+
+        mKeys[index] = key;
+        mValues[index] = value;
+        if (++mSize > mResizeThreshold)
+            resize(mKeys.length << 1);
+        return null;
+    }
+
+    // returns the removed value, or null
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = hash(key) & mMask;
+        Object value;
+        while ((value = mValues[index]) != null) {
+            if (mKeys[index] == key) {
+                removeAt(index);
+                return (V) value;
+            }
+            index = (index + 1) & mMask;
+        }
+        return null;
+    }
+
+    // backward shift: move following entries of the probe sequence into the hole
+    private void removeAt(int hole) {
+        mValues[hole] = null;
+        mSize--;
+
+        int index = (hole + 1) & mMask;
+        while (mValues[index] != null) {
+            int home = hash(mKeys[index]) & mMask;
+            // the entry can move into the hole if its home slot isn't between the hole and it
+            if (((index - home) & mMask) >= ((index - hole) & mMask)) {
+                mKeys[hole] = mKeys[index];
+                mValues[hole] = mValues[index];
+                mValues[index] = null;
+                hole = index;
+            }
+            index = (index + 1) & mMask;
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] keys = mKeys;
+        Object[] values = mValues;
+        allocate(capacity);
+
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] == null)
+                continue;
+
+            int index = hash(keys[i]) & mMask;
+            while (mValues[index] != null) {
+                index = (index + 1) & mMask;
+            }
+            mKeys[index] = keys[i];
+            mValues[index] = values[i];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    // the number of slots, for walking the map with keyAt() and valueAt()
+    public int capacity() {
+        return mValues.length;
+    }
+
+    public long keyAt(int slot) {
+        return mKeys[slot];
+    }
+
+    // the value in the slot, or null if the slot is empty
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) mValues[slot];
+    }
+}
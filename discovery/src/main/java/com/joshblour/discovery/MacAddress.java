@@ -0,0 +1,48 @@
+package com.joshblour.discovery;
+
+/**
+ * Helpers to pack a bluetooth address ("AA:BB:CC:DD:EE:FF") into the low 48 bits of a long
+ * and back, so addresses can be stored and compared without strings.
+ */
+public class MacAddress {
+
+    public static final long INVALID = -1L;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private MacAddress() {}
+
+    // returns INVALID if the string isn't a well formed address
+    public static long pack(String address) {
+        if (address == null || address.length() != 17)
+            return INVALID;
+
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':')
+                    return INVALID;
+                continue;
+            }
+
+            int digit = Character.digit(c, 16);
+            if (digit < 0)
+                return INVALID;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    public static String unpack(long value) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (value >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = HEX[octet >>> 4];
+            chars[i * 3 + 1] = HEX[octet & 0x0F];
+            if (i < 5)
+                chars[i * 3 + 2] = ':';
+        }
+        return new String(chars);
+    }
+}
@@ -5,9 +5,11 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.os.Build;
+import android.os.Handler;
 import android.os.ParcelUuid;
 import android.util.Log;
 
@@ -28,8 +30,18 @@ import java.util.UUID;
  * Note: specifying the service uuid will prevent discovery of ios apps in the background
  * since all serviceUUIDs get moved to an overflow area when the app goes to background,
  * and to our scanner, they disappear. To discovery ios backgrounded apps, you need to
- * start an unfiltered scan and then filter the results yourself.
+ * also filter on their overflow area (see AppleOverflowArea), or start an unfiltered scan
+ * and then filter the results yourself.
  *
+ * Starts go through a ScanStartGovernor, so we don't start scans often enough to be throttled.
+ * Between scan cycles, call idle() rather than stop(). If starting again after the idle gap
+ * would be throttled, the scan just keeps running (and results keep coming) instead.
+ * If a start would be throttled anyway, it's put off until it's allowed.
+ * Use it from a single thread with a looper.
+ *
+ * A ScanConfig sets the scan mode, hardware batching and filters. Filters and batching need the
+ * Android 5 scanner, so it's used for them even if usePreLScanner is set. The old scanner
+ * applies the filters in software.
  */
 public class MultiScanner {
     private final static String TAG = "discovery-MultiScanner";
@@ -39,6 +51,14 @@ public class MultiScanner {
         void onScanFailed(int errorCode);
     }
 
+    // callbacks that also implement this get batched results (see ScanConfig.setReportDelay) in
+    // one go. others get them one by one through onScanResult.
+    public interface BatchCallback {
+        // the arrays are reused for the next batch, copy what you need before returning.
+        // timestamps are when each result was seen, in SystemClock.elapsedRealtime() milliseconds.
+        void onBatchScanResults(BluetoothDevice[] devices, int[] rssis, byte[][] scanRecords, long[] timestamps, int count);
+    }
+
     BluetoothAdapter mAdapter;
     ParcelUuid mServiceUUID;
     MultiScannerCallback mScanCallback;
@@ -46,6 +66,23 @@ public class MultiScanner {
     PostLScanCallback mPostLScanCallback;
     BluetoothAdapter.LeScanCallback mPreLScanCallback;
 
+    volatile ScanConfig mScanConfig;
+    // for filtering results of the old scanner, used on its binder thread
+    private final ScanRecordParser mFilterParser = new ScanRecordParser();
+
+    ScanStartGovernor mStartGovernor;
+    Clock mClock;
+    Handler mHandler;
+    // a scan is actually running. it may be kept running while we're idle.
+    boolean mScanning;
+    private final Runnable mDeferredStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mScanning && mAdapter.isEnabled())
+                startScanning();
+        }
+    };
+
     public MultiScanner(BluetoothAdapter adapter, ParcelUuid uuid, MultiScannerCallback callback) {
         this(adapter, uuid, callback, false);
     }
@@ -62,41 +99,55 @@ public class MultiScanner {
         mServiceUUID = uuid;
         mScanCallback = callback;
         mUsePreLScanner = usePreLScanner;
-
+        mScanConfig = new ScanConfig();
+        mStartGovernor = new ScanStartGovernor();
+        mClock = Clock.ELAPSED_REALTIME;
     }
 
     public void start() {
         if (!mAdapter.isEnabled())
             return;
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && !mUsePreLScanner) {
-            // we only listen to the service that belongs to our uuid
-            // this is important for performance and battery consumption
-            ScanSettings settings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
-                    .build();
+        // still running since the last cycle
+        if (mScanning)
+            return;
+
+        if (mHandler == null)
+            mHandler = new Handler();
+        mHandler.removeCallbacks(mDeferredStartRunnable);
+
+        long now = mClock.now();
+        if (!mStartGovernor.canStart(now)) {
+            long startAt = mStartGovernor.nextStartAt(now);
+            Log.v(TAG, "scan start deferred by " + (startAt - now) + "ms to avoid throttling");
+            mStartGovernor.onDeferred();
+            mHandler.postDelayed(mDeferredStartRunnable, startAt - now);
+            return;
+        }
+
+        startScanning();
+    }
 
-            List<ScanFilter> filters = new ArrayList<>();
+    private void startScanning() {
+        mScanning = true;
+        mStartGovernor.onStarted(mClock.now());
 
+        boolean useLScanner = !mUsePreLScanner || mScanConfig.needsLollipopScanner();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && useLScanner) {
+            ScanSettings settings = buildScanSettings();
+
+            // the controller drops advertisements that don't match, without waking us up
+            List<ScanFilter> filters = buildScanFilters();
+
+            // we only listen to the service that belongs to our uuid
+            // this is important for performance and battery consumption
             if (mServiceUUID != null) {
                 // filtering by the ServiceUUID prevents us from discovering iOS devices broadcasting in the background
                 // since their serviceUUID gets moved into the 'overflow area'.
-                // we need to find a way to filter also by the manufacturerData to find only devices with our UUID.
+                // to find them too, add ScanConfig.addAppleOverflowFilter() for our bit in the overflow area.
                 // more here: https://forums.developer.apple.com/thread/11705
                 ScanFilter serviceUUIDFilter = new ScanFilter.Builder().setServiceUuid(mServiceUUID).build();
                 filters.add(serviceUUIDFilter);
-
-
-//                // An alternative is to filter by manufacturer data,
-//                // but I still haven't figured out how to show only apple devices
-//
-//                // Empty data
-//                byte[] manData = new byte[]{1,0,0,0,0,0,0,0,0,0,0,0,0,8,64,0,0};
-//                // Data Mask
-//                byte[] mask = new byte[]{1,1,1,1,1,1,1,1,1,1,1,1,1,1,0,1,1};
-//                // Add data array to filters
-//                ScanFilter manDataFilter = new ScanFilter.Builder().setManufacturerData(76, manData, mask).build();
-//                filters.add(manDataFilter);
             }
 
 
@@ -116,13 +167,84 @@ public class MultiScanner {
         }
     }
 
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ScanSettings buildScanSettings() {
+        ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setScanMode(mScanConfig.getScanMode());
+
+        // without hardware support the report delay makes the scan fail
+        if (mScanConfig.getReportDelay() > 0 && mAdapter.isOffloadedScanBatchingSupported())
+            builder.setReportDelay(mScanConfig.getReportDelay());
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            builder.setMatchMode(mScanConfig.getMatchMode());
+            builder.setNumOfMatches(mScanConfig.getNumOfMatches());
+        }
+        return builder.build();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private List<ScanFilter> buildScanFilters() {
+        List<ScanFilter> filters = new ArrayList<>();
+        for (ScanConfig.Filter filter : mScanConfig.getFilters()) {
+            ScanFilter.Builder builder = new ScanFilter.Builder();
+            switch (filter.getType()) {
+                case ScanConfig.Filter.TYPE_SERVICE_UUID:
+                    if (filter.getUuidMask() != null) {
+                        builder.setServiceUuid(new ParcelUuid(filter.getUuid()), new ParcelUuid(filter.getUuidMask()));
+                    } else {
+                        builder.setServiceUuid(new ParcelUuid(filter.getUuid()));
+                    }
+                    break;
+                case ScanConfig.Filter.TYPE_SERVICE_DATA:
+                    builder.setServiceData(new ParcelUuid(filter.getUuid()), filter.getData(), filter.getMask());
+                    break;
+                case ScanConfig.Filter.TYPE_MANUFACTURER_DATA:
+                    builder.setManufacturerData(filter.getManufacturerId(), filter.getData(), filter.getMask());
+                    break;
+            }
+            filters.add(builder.build());
+        }
+        return filters;
+    }
+
+    // pauses scanning until the next start(), which we expect in restartDelay milliseconds.
+    // if that start would be throttled, we keep scanning instead.
+    public void idle(long restartDelay) {
+        if (mHandler != null)
+            mHandler.removeCallbacks(mDeferredStartRunnable);
+
+        if (!mScanning || !mAdapter.isEnabled())
+            return;
+
+        if (!mStartGovernor.canStart(mClock.now() + restartDelay)) {
+            Log.v(TAG, "scan kept running to avoid throttling");
+            mStartGovernor.onKeptRunning();
+            return;
+        }
+
+        stopScanning();
+    }
+
     public void stop() {
-        if (!mAdapter.isEnabled())
+        if (mHandler != null)
+            mHandler.removeCallbacks(mDeferredStartRunnable);
+
+        if (!mAdapter.isEnabled()) {
+            mScanning = false;
             return;
+        }
+
+        stopScanning();
+    }
+
+    private void stopScanning() {
+        mScanning = false;
 
         if (mPostLScanCallback != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            mAdapter.getBluetoothLeScanner().stopScan(mPostLScanCallback);
+            // hand over what the controller batched up before we stop
             mAdapter.getBluetoothLeScanner().flushPendingScanResults(mPostLScanCallback);
+            mAdapter.getBluetoothLeScanner().stopScan(mPostLScanCallback);
         }
 
         if (mPreLScanCallback != null) {
@@ -131,25 +253,80 @@ public class MultiScanner {
     }
 
 
+    public ScanConfig getScanConfig() {
+        return new ScanConfig(mScanConfig);
+    }
+
+    // takes effect the next time a scan is started
+    public void setScanConfig(ScanConfig scanConfig) {
+        mScanConfig = new ScanConfig(scanConfig);
+    }
+
+    public ScanStartGovernor getStartGovernor() {
+        return mStartGovernor;
+    }
+
     private class PreLScanCallback implements BluetoothAdapter.LeScanCallback {
         @Override
         public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            ScanConfig scanConfig = mScanConfig;
+            if (!scanConfig.getFilters().isEmpty()) {
+                synchronized (mFilterParser) {
+                    mFilterParser.parse(scanRecord);
+                    if (!scanConfig.matches(mFilterParser))
+                        return;
+                }
+            }
             mScanCallback.onScanResult(device, rssi, scanRecord);
         }
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     private class PostLScanCallback extends ScanCallback {
+        // reused for every batch, the callback copies what it needs. batches are delivered one
+        // at a time on the binder thread.
+        private BluetoothDevice[] mBatchDevices = new BluetoothDevice[0];
+        private int[] mBatchRssis = new int[0];
+        private byte[][] mBatchScanRecords = new byte[0][];
+        private long[] mBatchTimestamps = new long[0];
+
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            mScanCallback.onScanResult(result.getDevice(), result.getRssi(), result.getScanRecord().getBytes());
+            // getBytes() hands over the record the platform already parsed, it isn't copied
+            ScanRecord scanRecord = result.getScanRecord();
+            mScanCallback.onScanResult(result.getDevice(), result.getRssi(), scanRecord == null ? null : scanRecord.getBytes());
         }
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
-            Log.v(TAG, "ScanCallback batch results: " + results);
-            for (ScanResult r : results) {
-                onScanResult(-1, r);
+            int count = results.size();
+            if (!(mScanCallback instanceof BatchCallback)) {
+                for (int i = 0; i < count; i++)
+                    onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, results.get(i));
+                return;
+            }
+
+            if (count > mBatchDevices.length) {
+                mBatchDevices = new BluetoothDevice[count];
+                mBatchRssis = new int[count];
+                mBatchScanRecords = new byte[count][];
+                mBatchTimestamps = new long[count];
+            }
+
+            for (int i = 0; i < count; i++) {
+                ScanResult result = results.get(i);
+                ScanRecord scanRecord = result.getScanRecord();
+                mBatchDevices[i] = result.getDevice();
+                mBatchRssis[i] = result.getRssi();
+                mBatchScanRecords[i] = scanRecord == null ? null : scanRecord.getBytes();
+                mBatchTimestamps[i] = result.getTimestampNanos() / 1000000;
+            }
+            ((BatchCallback) mScanCallback).onBatchScanResults(mBatchDevices, mBatchRssis, mBatchScanRecords, mBatchTimestamps, count);
+
+            // don't hold on to the devices and records until the next batch
+            for (int i = 0; i < count; i++) {
+                mBatchDevices[i] = null;
+                mBatchScanRecords[i] = null;
             }
         }
 
@@ -0,0 +1,171 @@
+package com.joshblour.discovery;
+
+import java.util.Arrays;
+
+/**
+ * The state Discovery keeps about each peer to turn its samples into a proximity, stored in
+ * columns: parallel primitive arrays indexed by the peer's slot (BLEUser.mSlot), instead of fields
+ * and a filter state array on every user.
+ *
+ * Only the discovery thread needs this state, so it isn't part of the users handed to the app
+ * (copies of a user leave it behind), and tracking a peer doesn't allocate anything but the user.
+ * What the app sees of a user (its rssi, proximity, flags and times) stays on BLEUser, so copies
+ * and standalone users don't need a store. Each slot holds:
+ *  - the state of the user's rssi filter (mStride floats from slot * mStride) and when its last
+ *    sample was taken (-1 before the first one)
+ *  - the SampleAggregator window: samples in it, their sum and strongest rssi, when it started,
+ *    the time and scan record of its latest sample, and whether the user is on the aggregator's
+ *    list of open windows
+ *  - the ProximityZones zone the user is heading for, and since when
+ *
+ * The window and zone columns are only allocated once the aggregator or zones use them
+ * (useWindows(), useZones()), so they cost nothing while those are off. Slots of forgotten users
+ * are reused, the columns grow as more peers are tracked at once. Not thread safe.
+ */
+class PeerStore {
+    private int mCapacity;
+    private int mStride;
+    // slots up to mUsed were handed out at some point, the free ones are on mFreeSlots
+    private int mUsed;
+    private int[] mFreeSlots;
+    private int mFreeCount;
+    private int mSize;
+
+    float[] mFilterStates;
+    long[] mFilterTimes;
+
+    // null until useWindows()
+    int[] mWindowCounts;
+    int[] mWindowSums;
+    int[] mWindowMaxes;
+    long[] mWindowStarts;
+    long[] mWindowTimes;
+    byte[][] mWindowScanRecords;
+    boolean[] mWindowOpen;
+
+    // null until useZones()
+    int[] mPendingZones;
+    long[] mPendingZoneSince;
+
+    PeerStore(int capacity) {
+        mCapacity = Math.max(1, capacity);
+        mStride = RssiFilter.eased().stateSize();
+        mFreeSlots = new int[mCapacity];
+        mFilterStates = new float[mCapacity * mStride];
+        mFilterTimes = new long[mCapacity];
+    }
+
+    // allocates the SampleAggregator columns, if they aren't yet
+    void useWindows() {
+        if (mWindowCounts != null)
+            return;
+        mWindowCounts = new int[mCapacity];
+        mWindowSums = new int[mCapacity];
+        mWindowMaxes = new int[mCapacity];
+        mWindowStarts = new long[mCapacity];
+        mWindowTimes = new long[mCapacity];
+        mWindowScanRecords = new byte[mCapacity][];
+        mWindowOpen = new boolean[mCapacity];
+    }
+
+    // allocates the ProximityZones columns, if they aren't yet
+    void useZones() {
+        if (mPendingZones != null)
+            return;
+        mPendingZones = new int[mCapacity];
+        Arrays.fill(mPendingZones, ProximityZones.UNKNOWN);
+        mPendingZoneSince = new long[mCapacity];
+    }
+
+    // a cleared slot for a new peer, set the user's filter before its first sample
+    int allocate() {
+        int slot;
+        if (mFreeCount > 0) {
+            slot = mFreeSlots[--mFreeCount];
+        } else {
+            if (mUsed == mCapacity)
+                grow(mCapacity * 2);
+            slot = mUsed++;
+        }
+        mSize++;
+
+        clearFilter(slot);
+        if (mWindowCounts != null) {
+            mWindowCounts[slot] = 0;
+            mWindowScanRecords[slot] = null;
+            mWindowOpen[slot] = false;
+        }
+        if (mPendingZones != null)
+            mPendingZones[slot] = ProximityZones.UNKNOWN;
+        return slot;
+    }
+
+    void free(int slot) {
+        if (mWindowScanRecords != null)
+            mWindowScanRecords[slot] = null;
+        mFreeSlots[mFreeCount++] = slot;
+        mSize--;
+    }
+
+    // how many slots are in use
+    int size() {
+        return mSize;
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    // switching filters starts smoothing over from the next sample
+    void setFilter(int slot, RssiFilter filter) {
+        if (filter.stateSize() > mStride)
+            restride(filter.stateSize());
+        clearFilter(slot);
+    }
+
+    // filters a sample taken at the given time, in elapsed realtime milliseconds. the filter is
+    // the one last set for the slot.
+    float filter(int slot, RssiFilter filter, int rssi, long time) {
+        // batched results may be handed over slightly out of order
+        long filterTime = mFilterTimes[slot];
+        long elapsed = filterTime < 0 ? -1 : Math.max(0, time - filterTime);
+        mFilterTimes[slot] = Math.max(filterTime, time);
+        return filter.update(mFilterStates, slot * mStride, rssi, elapsed);
+    }
+
+    private void clearFilter(int slot) {
+        Arrays.fill(mFilterStates, slot * mStride, (slot + 1) * mStride, 0);
+        mFilterTimes[slot] = -1;
+    }
+
+    // makes room for filters with more state, every slot keeps its own
+    private void restride(int stride) {
+        float[] states = new float[mCapacity * stride];
+        for (int slot = 0; slot < mUsed; slot++) {
+            System.arraycopy(mFilterStates, slot * mStride, states, slot * stride, mStride);
+        }
+        mFilterStates = states;
+        mStride = stride;
+    }
+
+    private void grow(int capacity) {
+        mFreeSlots = Arrays.copyOf(mFreeSlots, capacity);
+        mFilterStates = Arrays.copyOf(mFilterStates, capacity * mStride);
+        mFilterTimes = Arrays.copyOf(mFilterTimes, capacity);
+        if (mWindowCounts != null) {
+            mWindowCounts = Arrays.copyOf(mWindowCounts, capacity);
+            mWindowSums = Arrays.copyOf(mWindowSums, capacity);
+            mWindowMaxes = Arrays.copyOf(mWindowMaxes, capacity);
+            mWindowStarts = Arrays.copyOf(mWindowStarts, capacity);
+            mWindowTimes = Arrays.copyOf(mWindowTimes, capacity);
+            mWindowScanRecords = Arrays.copyOf(mWindowScanRecords, capacity);
+            mWindowOpen = Arrays.copyOf(mWindowOpen, capacity);
+        }
+        if (mPendingZones != null) {
+            mPendingZones = Arrays.copyOf(mPendingZones, capacity);
+            Arrays.fill(mPendingZones, mCapacity, capacity, ProximityZones.UNKNOWN);
+            mPendingZoneSince = Arrays.copyOf(mPendingZoneSince, capacity);
+        }
+        mCapacity = capacity;
+    }
+}
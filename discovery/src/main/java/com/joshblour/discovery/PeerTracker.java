@@ -0,0 +1,698 @@
+package com.joshblour.discovery;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The users Discovery tracks, and what it does with each scan result and gatt result: work out
+ * from the advertisement whether the device is ours and who it is, filter its rssi, sort it by
+ * proximity, and forget it when it times out or to make room for others.
+ *
+ * Everything that needs a phone (connecting over gatt, the system's cache of device names and
+ * services, the scan cycle and the callbacks) is behind Host. BluetoothDevices are only passed
+ * through as handles, addresses are passed on their own, so the tracker can be driven on the JVM
+ * with null devices (see the simulator in the tests).
+ *
+ * Configuration and counters may be read from any thread, the rest is used on one thread (the
+ * discovery thread, for Discovery).
+ */
+class PeerTracker {
+    private final static String TAG = "discovery-PeerTracker";
+
+    interface Host {
+        // connect to the device to find out whether it's ours, and its username. answered with
+        // didIdentify() or failedToMatchService().
+        void identify(BluetoothDevice device, String address, int rssi);
+
+        // the name the system knows the device by, or null
+        String getName(BluetoothDevice device);
+
+        // whether the system's cached copy of the device's service uuids has the given one
+        boolean hasCachedService(BluetoothDevice device, UUID uuid);
+
+        // we saw a device we weren't tracking
+        void onNewPeer();
+
+        // what we know about a device changed, the identity cache should be saved
+        void onIdentityCacheChanged();
+
+        // users were added to or removed from the list outside of a scan result, like by a gatt
+        // result or to make room
+        void onListChanged();
+    }
+
+    private final Host mHost;
+    private final UUID mServiceUuid;
+    private final Clock mClock;
+    private final IdentityCache mIdentityCache;
+
+    private final LongHashMap<BLEUser> mUsers = new LongHashMap<>();
+    private final Map<String, BLEUser> mUsersMap = new UsersMapView(mUsers);
+    private final ProximityIndex mProximityIndex = new ProximityIndex();
+    private final ExpiryWheel mExpiryWheel;
+    private final ArrayList<BLEUser> mExpiredUsers = new ArrayList<>();
+    private final EvictionQueue mEvictionQueue = new EvictionQueue();
+    private final PeerStore mPeerStore = new PeerStore(64);
+    private final SampleAggregator mSampleAggregator = new SampleAggregator();
+    private final ArrayList<BLEUser> mDueWindows = new ArrayList<>();
+    private final IdentityResolver mIdentityResolver = new IdentityResolver();
+    private final UsersDeltaTracker mDeltaTracker = new UsersDeltaTracker();
+    private final ScanRecordParser mScanRecordParser = new ScanRecordParser();
+
+    private volatile long mUserTimeout = 5000;
+    private volatile AppleOverflowArea mAppleOverflowArea;
+    private volatile RssiFilter mRssiFilter = RssiFilter.eased();
+    private volatile int mNearestLimit;
+    private volatile ProximityZones mProximityZones;
+    private volatile ForeignDeviceFilter mForeignDeviceFilter = new ForeignDeviceFilter();
+    private volatile int mMaxUsers = 1024;
+    private volatile long mEvictedCount;
+    private volatile long mEvictedIdentifiedCount;
+    // changes are only recorded for the delta callback while there is one
+    private boolean mDeltasEnabled;
+    // a listed user moved to another zone since the last update
+    private boolean mZoneChanged;
+    // the clock users time out on, which only runs while we scan: the time spent scanning before
+    // the current scan, and when that started (-1 while we don't scan). so an idle gap in the scan
+    // cycle, when nobody can be seen, doesn't count towards the user timeout.
+    private long mScanTime;
+    private long mScanStartedAt;
+
+    PeerTracker(Host host, UUID serviceUuid, Clock clock, IdentityCache identityCache) {
+        mHost = host;
+        mServiceUuid = serviceUuid;
+        mClock = clock;
+        mIdentityCache = identityCache;
+        mExpiryWheel = new ExpiryWheel(250, 64, 0);
+        // until we hear otherwise, we're scanning
+        mScanStartedAt = clock.now();
+    }
+
+    // the scanner started, users time out again
+    void onScanStarted(long now) {
+        if (mScanStartedAt < 0)
+            mScanStartedAt = now;
+    }
+
+    // the scanner stopped, for a gap in the scan cycle or for good. users don't time out until
+    // it starts again.
+    void onScanStopped(long now) {
+        if (mScanStartedAt < 0)
+            return;
+        mScanTime += Math.max(0, now - mScanStartedAt);
+        mScanStartedAt = -1;
+    }
+
+    // the time spent scanning up to the given time, which is what users time out on
+    long scanTime(long time) {
+        if (mScanStartedAt < 0)
+            return mScanTime;
+        return mScanTime + Math.max(0, time - mScanStartedAt);
+    }
+
+    // handles a scan result seen at the given time.
+    // returns true if the list of users changed
+    boolean onScanResult(BluetoothDevice device, String deviceAddress, int rssi, byte[] scanRecord, long time) {
+        long address = MacAddress.pack(deviceAddress);
+        // devices we found aren't ours are dropped before anything else
+        ForeignDeviceFilter foreignDeviceFilter = mForeignDeviceFilter;
+        if (foreignDeviceFilter != null && foreignDeviceFilter.mightContain(address, time))
+            return false;
+
+        BLEUser bleUser = mUsers.get(address);
+        boolean isNew = bleUser == null;
+        if (isNew) {
+            bleUser = addUser(device, deviceAddress, address, false);
+            // we're full of users we know more about
+            if (bleUser == null)
+                return false;
+        }
+
+        // users we're done working out only get a sample per aggregation window
+        if (!isNew && mSampleAggregator.isEnabled() && isSettled(bleUser)) {
+            if (mSampleAggregator.add(bleUser, rssi, scanRecord, time))
+                return false;
+
+            // the window is over: pass it on, and start the next one with this sample
+            boolean usersChanged = forwardWindow(bleUser);
+            mSampleAggregator.add(bleUser, rssi, scanRecord, time);
+            return usersChanged;
+        }
+
+        mSampleAggregator.pass();
+        return processSample(bleUser, isNew, device, deviceAddress, address, rssi, scanRecord, time);
+    }
+
+    // after a run of scan results: passes on the aggregation windows that ended by now, and works
+    // out whether the app should hear about the changes. usersChanged is what the scan results
+    // returned. returns true if the list should be updated as changed.
+    boolean endScanResults(boolean usersChanged, long now) {
+        if (forwardDueWindows(now))
+            usersChanged = true;
+
+        // when the app only gets the nearest users, them changing places is a change too
+        if (hasNearestLimit() && mProximityIndex.takeNearestChanged())
+            usersChanged = true;
+        if (mZoneChanged) {
+            usersChanged = true;
+            mZoneChanged = false;
+        }
+        return usersChanged;
+    }
+
+    // at the end of a scan cycle: removes the users who timed out. returns whether the list
+    // should be updated as changed, or null if there is nothing to update.
+    Boolean endScanCycle(long now) {
+        // update the list if we removed a user.
+        // otherwise simply update the list, because the order of the users may have changed.
+        boolean usersChanged = removeExpiredUsers(now) > 0;
+        if (hasNearestLimit() && mProximityIndex.takeNearestChanged())
+            usersChanged = true;
+
+        // with zones, zone changes are passed on as they happen, and new proximities aren't
+        if (mProximityZones != null && !usersChanged)
+            return null;
+        return usersChanged;
+    }
+
+    // identifies the user as far as the sample lets us, and updates its proximity.
+    // returns true if the list of users changed
+    private boolean processSample(BLEUser bleUser, boolean isNew, BluetoothDevice device, String deviceAddress,
+                                  long address, int rssi, byte[] scanRecord, long time) {
+        boolean usersChanged = false;
+
+        // before we report this device to our delegate as a success, two things:
+        // 1) Make sure it contains our service (it's another device advertising with our unique uuid)
+        // 2) Make sure we can read its username
+
+        // first we look at the raw advertisement. If the peer is advertising in the foreground
+        // it carries our service uuid and (for short usernames) its name, so we can identify it
+        // without connecting.
+        mScanRecordParser.parse(scanRecord);
+
+        // an iOS peer that was in the background may come to the foreground, so a user that
+        // isn't ours yet is checked again when it advertises our service.
+        if (bleUser.isMyService() == null || !bleUser.isMyService()) {
+            if (mScanRecordParser.hasServiceUuid(mServiceUuid)) {
+                bleUser.setIsMyService(true);
+                bleUser.mOverflowBitClear = false;
+                usersChanged = true;
+            }
+        }
+
+        if (bleUser.isMyService() == null || bleUser.mOverflowBitClear) {
+            // backgrounded iOS peers only advertise a bit in the overflow area. a clear bit tells
+            // us they're not ours (yet) without connecting, a set bit that they (most likely) are.
+            // users are checked again while their bit is clear, the app may start on the peer.
+            AppleOverflowArea overflowArea = mAppleOverflowArea;
+            int overflow = overflowArea == null ? AppleOverflowArea.NOT_PRESENT : overflowArea.classify(mScanRecordParser);
+            if (overflow == AppleOverflowArea.BIT_SET) {
+                bleUser.setIsMyService(true);
+                bleUser.mOverflowBitClear = false;
+                usersChanged = true;
+            } else if (overflow == AppleOverflowArea.BIT_CLEAR) {
+                bleUser.setIsMyService(false);
+                bleUser.mOverflowBitClear = true;
+            } else if (bleUser.isMyService() == null && mHost.hasCachedService(device, mServiceUuid)) {
+                // fall back to a cached copy of the devices service uuids
+                bleUser.setIsMyService(true);
+                usersChanged = true;
+            }
+        }
+
+        // Android peers put their username in the service data of their scan response.
+        // If it's there, we know everything we need in one go.
+        if (bleUser.getUsername() == null) {
+            int index = mScanRecordParser.findServiceData(mServiceUuid);
+            if (index >= 0) {
+                String username = IdentityPayload.decode(scanRecord,
+                        mScanRecordParser.getServiceDataOffset(index),
+                        mScanRecordParser.getServiceDataLength(index));
+
+                if (username != null) {
+                    bleUser.setIsMyService(true);
+                    bleUser.mOverflowBitClear = false;
+                    bleUser.setUsername(username);
+                    bleUser.setIdentified(true);
+                    rememberUser(bleUser);
+                    usersChanged = true;
+                }
+            }
+        }
+
+        // We check if we can get the username from the advertisement data,
+        // in case the advertising peer application is working at foreground
+        if (bleUser.getUsername() == null) {
+            String username = mScanRecordParser.hasLocalName() ? mScanRecordParser.getLocalName() : mHost.getName(device);
+
+            if (username != null && username.length() > 0) {
+                bleUser.setUsername(username);
+                usersChanged = true;
+            }
+        }
+
+        // a new address may be a peer we know, that rotated its address. if so we carry on with
+        // the user we know, rather than identifying it again and listing it twice.
+        if (isNew && mProximityIndex.size() > 0) {
+            BLEUser knownUser = mIdentityResolver.resolve(mProximityIndex, bleUser, bleUser.getUsername(), rssi, time);
+            if (knownUser != null) {
+                bleUser = mergeUser(bleUser, knownUser, device, deviceAddress, address);
+                usersChanged = false;
+            }
+        }
+
+        //if you have the username and a boolean value for isMyService, you have enough to identify the user
+        if (bleUser.isMyService() != null && bleUser.getUsername() != null) {
+            if (bleUser.isMyService() && !bleUser.isIdentified()) {
+                bleUser.setIdentified(true);
+                rememberUser(bleUser);
+                usersChanged = true;
+            }
+        }
+
+
+        if (bleUser.isIdentified()) {
+            /// great! we know everything we need to about this service. just update the rssi and time and we're done
+            // (only built when enabled, this runs for every scan result)
+            if (Log.isLoggable(TAG, Log.VERBOSE))
+                Log.v(TAG, deviceAddress + " - device is identified");
+        } else if (bleUser.isMyService() == null || bleUser.isMyService()) {
+            // ok, maybe we know the username but we dont know if it's our service, so connect to gatt and check.
+            // or it's our service but the username was too long to fit in the advertisement, so read it from gatt.
+            // (devices that keep failing to connect are backed off, the host skips those)
+            mHost.identify(device, deviceAddress, rssi);
+        } else if (!bleUser.isMyService()) {
+            /// Ok, this isn't our service, we don't care about it.
+            if (Log.isLoggable(TAG, Log.VERBOSE))
+                Log.v(TAG, deviceAddress + " - device not our service");
+        }
+
+        bleUser.setRssi(rssi, time);
+        bleUser.setUpdateTime(time);
+        bleUser.mExpirySeen = Math.max(bleUser.mExpirySeen, scanTime(time));
+        mEvictionQueue.touch(bleUser);
+
+        // with zones, a listed user moving to another zone is a change worth passing on
+        ProximityZones proximityZones = mProximityZones;
+        if (proximityZones != null && proximityZones.update(bleUser, time) && isDelivered(bleUser))
+            mZoneChanged = true;
+
+        // moves the user into place, or adds it if it was just identified
+        // (users we remember from the identity cache are identified as soon as we see them)
+        if (updateIndex(bleUser))
+            usersChanged = true;
+
+        return usersChanged;
+    }
+
+    // identified users and devices that aren't ours, there's nothing left to find out about them
+    private boolean isSettled(BLEUser bleUser) {
+        return bleUser.isIdentified() || (bleUser.isMyService() != null && !bleUser.isMyService());
+    }
+
+    // passes the user's aggregation window on as one sample.
+    // returns true if the list of users changed
+    private boolean forwardWindow(BLEUser bleUser) {
+        long time = mSampleAggregator.windowTime(bleUser);
+        byte[] scanRecord = mSampleAggregator.windowScanRecord(bleUser);
+        int rssi = mSampleAggregator.take(bleUser);
+        String deviceAddress = bleUser.getCurrentAddress();
+        return processSample(bleUser, false, bleUser.getDevice(), deviceAddress, MacAddress.pack(deviceAddress),
+                rssi, scanRecord, time);
+    }
+
+    // passes on the aggregation windows that ended by now, for users that went quiet since.
+    // returns true if the list of users changed
+    private boolean forwardDueWindows(long now) {
+        mSampleAggregator.collectDue(now, mDueWindows);
+        boolean usersChanged = false;
+        for (int i = 0; i < mDueWindows.size(); i++) {
+            if (forwardWindow(mDueWindows.get(i)))
+                usersChanged = true;
+        }
+        mDueWindows.clear();
+        return usersChanged;
+    }
+
+    // the gatt connection found the device is ours, and its username
+    void didIdentify(BluetoothDevice device, String deviceAddress, String username) {
+        long address = MacAddress.pack(deviceAddress);
+        BLEUser bleUser = mUsers.get(address);
+        if (bleUser == null)
+            bleUser = addUser(device, deviceAddress, address, true);
+        if (bleUser == null)
+            return;
+        String previousUsername = bleUser.getUsername();
+        bleUser.setUsername(username);
+        bleUser.setIdentified(true);
+        bleUser.setIsMyService(true);
+        bleUser.mOverflowBitClear = false;
+        rememberUser(bleUser);
+        mEvictionQueue.touch(bleUser);
+
+        if (mDeltasEnabled && previousUsername != null && !previousUsername.equals(username))
+            mDeltaTracker.userRenamed(bleUser);
+        updateIndex(bleUser);
+        mHost.onListChanged();
+    }
+
+    // the gatt connection found the device doesn't have our service
+    void failedToMatchService(BluetoothDevice device, String deviceAddress) {
+        long address = MacAddress.pack(deviceAddress);
+        // so it isn't connected to again when it comes back after timing out
+        ForeignDeviceFilter foreignDeviceFilter = mForeignDeviceFilter;
+        if (foreignDeviceFilter != null)
+            foreignDeviceFilter.add(address, mClock.now());
+
+        // it timed out (or was evicted) while we were connected, there's no need to track it again
+        BLEUser bleUser = mUsers.get(address);
+        if (bleUser == null)
+            return;
+
+        bleUser.setIsMyService(false);
+        bleUser.mOverflowBitClear = false;
+        rememberUser(bleUser);
+        mEvictionQueue.touch(bleUser);
+
+        // we may have identified it from a stale cache entry, take it off the list
+        if (bleUser.isIdentified()) {
+            bleUser.setIdentified(false);
+            updateIndex(bleUser);
+            mHost.onListChanged();
+        }
+    }
+
+    // moves the user into place in the proximity index (adding or removing it if its identified
+    // state changed), and records what happened for the delta callback.
+    // returns true if the user was added to or removed from the list.
+    private boolean updateIndex(BLEUser bleUser) {
+        boolean wasListed = mProximityIndex.contains(bleUser);
+        boolean moved = mProximityIndex.update(bleUser);
+        boolean listed = mProximityIndex.contains(bleUser);
+
+        if (mDeltasEnabled) {
+            if (listed && !wasListed) {
+                mDeltaTracker.userAdded(bleUser);
+            } else if (wasListed && !listed) {
+                // identified users only leave the list when they turn out not to be ours
+                mDeltaTracker.userRemoved(bleUser, UsersDelta.RemovalReason.NOT_MY_SERVICE);
+            } else if (moved) {
+                mDeltaTracker.userMoved(bleUser);
+            }
+        }
+
+        return wasListed != listed;
+    }
+
+    boolean hasNearestLimit() {
+        return mProximityIndex.getNearestLimit() > 0;
+    }
+
+    // true if the user is on the list the callback gets
+    private boolean isDelivered(BLEUser bleUser) {
+        return mProximityIndex.contains(bleUser) && bleUser.mIndexRank >= mProximityIndex.getNearestStart();
+    }
+
+    // We remove the user if we haven't seen him for the user timeout.
+    // the expiry wheel hands us just the users whose time is up, instead of us checking all of them.
+    // returns how many users were removed.
+    int removeExpiredUsers(long now) {
+        // a user's last samples may still be waiting in an aggregation window that ended by now,
+        // and count towards when it was last seen. forwarding them only moves settled users,
+        // which the nearest and zone flags pick up.
+        forwardDueWindows(now);
+        long scanTime = scanTime(now);
+        mExpiryWheel.advance(scanTime, mUserTimeout, mExpiredUsers);
+
+        int removedCount = 0;
+        for (int i = 0; i < mExpiredUsers.size(); i++) {
+            BLEUser bleUser = mExpiredUsers.get(i);
+            // the same goes for the window of a user whose time seems up, even if it's still open
+            if (mSampleAggregator.hasWindow(bleUser)) {
+                forwardWindow(bleUser);
+                if (scanTime - bleUser.mExpirySeen <= mUserTimeout) {
+                    mExpiryWheel.schedule(bleUser, bleUser.mExpirySeen + mUserTimeout);
+                    continue;
+                }
+            }
+            removeUser(bleUser, UsersDelta.RemovalReason.TIMEOUT);
+            removedCount++;
+        }
+        mExpiredUsers.clear();
+        return removedCount;
+    }
+
+    // forgets the user. the expiry wheel is left to the caller.
+    private void removeUser(BLEUser bleUser, UsersDelta.RemovalReason reason) {
+        mUsers.remove(MacAddress.pack(bleUser.getCurrentAddress()));
+        mEvictionQueue.remove(bleUser);
+        mSampleAggregator.discard(bleUser);
+        if (mDeltasEnabled)
+            mDeltaTracker.userRemoved(bleUser, reason);
+        mProximityIndex.remove(bleUser);
+        bleUser.detach();
+    }
+
+    // forgets the least recently seen users until we track fewer than maxUsers, devices that
+    // aren't ours and unidentified ones first (see EvictionQueue). only users of an EvictionQueue
+    // class up to maxClass are forgotten. returns true if we track fewer than maxUsers.
+    private boolean evictUsers(int maxUsers, int maxClass) {
+        boolean usersChanged = false;
+        BLEUser bleUser;
+        while (mUsers.size() >= maxUsers && (bleUser = mEvictionQueue.victim()) != null
+                && bleUser.mLruClass <= maxClass) {
+            if (bleUser.isIdentified())
+                mEvictedIdentifiedCount++;
+            mEvictedCount++;
+            if (mProximityIndex.contains(bleUser))
+                usersChanged = true;
+
+            mExpiryWheel.cancel(bleUser);
+            removeUser(bleUser, UsersDelta.RemovalReason.EVICTED);
+        }
+
+        if (usersChanged)
+            mHost.onListChanged();
+        return mUsers.size() < maxUsers;
+    }
+
+    // starts tracking the device. identified is true if we know it's ours, whatever the identity
+    // cache says. returns null, tracking nothing, if we're full of users we know more about.
+    private BLEUser addUser(BluetoothDevice device, String deviceAddress, long address, boolean identified) {
+        BLEUser bleUser = new BLEUser(device, deviceAddress);
+        bleUser.attach(mPeerStore);
+        bleUser.setRssiFilter(mRssiFilter);
+        bleUser.setUsername(null);
+        bleUser.setIdentified(false);
+
+        // maybe we identified this device before (possibly before a restart)
+        IdentityCache.Entry entry = mIdentityCache.get(address, System.currentTimeMillis());
+        if (entry != null) {
+            bleUser.setUsername(entry.getUsername());
+            bleUser.setIsMyService(entry.isMyService());
+            if (entry.isMyService() != null && entry.isMyService() && entry.getUsername() != null)
+                bleUser.setIdentified(true);
+        }
+
+        // make room for it if we have to. a newcomer only pushes out users we know as little about
+        // as we know about it, so devices we haven't worked out yet don't push out listed users.
+        int lruClass = identified ? EvictionQueue.IDENTIFIED : EvictionQueue.classOf(bleUser);
+        if (!evictUsers(mMaxUsers, lruClass)) {
+            bleUser.detach();
+            return null;
+        }
+        mUsers.put(address, bleUser);
+        mEvictionQueue.touch(bleUser);
+        mHost.onNewPeer();
+        bleUser.setUpdateTime(mClock.now());
+        bleUser.mExpirySeen = scanTime(bleUser.getUpdateTime());
+        mExpiryWheel.schedule(bleUser, bleUser.mExpirySeen + mUserTimeout);
+        return bleUser;
+    }
+
+    // the peer behind newUser rotated its address away from knownUser. knownUser moves to the new
+    // address, keeping its place, proximity and everything else, and newUser is forgotten.
+    private BLEUser mergeUser(BLEUser newUser, BLEUser knownUser, BluetoothDevice device, String deviceAddress, long address) {
+        Log.v(TAG, knownUser.getCurrentAddress() + " moved to " + deviceAddress);
+        mUsers.remove(MacAddress.pack(knownUser.getCurrentAddress()));
+        mUsers.put(address, knownUser);
+        mExpiryWheel.cancel(newUser);
+        mEvictionQueue.remove(newUser);
+        newUser.detach();
+        knownUser.setCurrentDevice(device, deviceAddress);
+        rememberUser(knownUser);
+        return knownUser;
+    }
+
+    // stores what we know about the user in the identity cache, the host schedules a save.
+    // a clear overflow bit is only what the peer advertised then, it isn't remembered.
+    private void rememberUser(BLEUser bleUser) {
+        Boolean isMyService = bleUser.mOverflowBitClear ? null : bleUser.isMyService();
+        mIdentityCache.put(MacAddress.pack(bleUser.getCurrentAddress()), bleUser.getUsername(),
+                isMyService, System.currentTimeMillis());
+        mHost.onIdentityCacheChanged();
+    }
+
+    // copies of the count users closest to us, nearest first
+    ArrayList<BLEUser> copyNearest(int count) {
+        int size = mProximityIndex.size();
+        count = Math.max(0, Math.min(count, size));
+        ArrayList<BLEUser> users = new ArrayList<>(count);
+        for (int rank = size - 1; rank >= size - count; rank--) {
+            users.add(new BLEUser(mProximityIndex.get(rank)));
+        }
+        return users;
+    }
+
+    // copies of the users the list callback gets, in proximity order like the whole list
+    ArrayList<BLEUser> copyDelivered() {
+        int start = mProximityIndex.getNearestStart();
+        ArrayList<BLEUser> users = new ArrayList<>(mProximityIndex.size() - start);
+        for (int rank = start; rank < mProximityIndex.size(); rank++) {
+            users.add(new BLEUser(mProximityIndex.get(rank)));
+        }
+        return users;
+    }
+
+    boolean hasDelta() {
+        return mDeltasEnabled && mDeltaTracker.hasChanges();
+    }
+
+    // what changed since the last delta
+    UsersDelta takeDelta() {
+        return mDeltaTracker.flush(mProximityIndex);
+    }
+
+    // starts or stops recording changes for the delta callback. when started, the first delta
+    // adds the users that are already in the list.
+    void setDeltasEnabled(boolean deltasEnabled) {
+        mDeltasEnabled = deltasEnabled;
+
+        mDeltaTracker.clear();
+        for (int slot = 0; slot < mUsers.capacity(); slot++) {
+            BLEUser bleUser = mUsers.valueAt(slot);
+            if (bleUser != null)
+                bleUser.mDelivered = false;
+        }
+
+        if (deltasEnabled) {
+            for (int rank = 0; rank < mProximityIndex.size(); rank++) {
+                mDeltaTracker.userAdded(mProximityIndex.get(rank));
+            }
+        }
+    }
+
+    // the identified users, nearest first
+    ProximityIndex getProximityIndex() {
+        return mProximityIndex;
+    }
+
+    // a read-only view of all the devices we're tracking, keyed by address
+    Map<String, BLEUser> getUsersMap() {
+        return mUsersMap;
+    }
+
+    int size() {
+        return mUsers.size();
+    }
+
+    long getUserTimeout() {
+        return mUserTimeout;
+    }
+
+    // in milliseconds
+    void setUserTimeout(long userTimeout) {
+        this.mUserTimeout = userTimeout;
+
+        // users are only rechecked when their slot comes up, so move them to their new deadlines
+        for (int slot = 0; slot < mUsers.capacity(); slot++) {
+            BLEUser bleUser = mUsers.valueAt(slot);
+            if (bleUser != null)
+                mExpiryWheel.schedule(bleUser, bleUser.mExpirySeen + userTimeout);
+        }
+    }
+
+    int getNearestLimit() {
+        return mNearestLimit;
+    }
+
+    void setNearestLimit(int nearestLimit) {
+        this.mNearestLimit = Math.max(0, nearestLimit);
+        mProximityIndex.setNearestLimit(mNearestLimit);
+    }
+
+    ProximityZones getProximityZones() {
+        return mProximityZones;
+    }
+
+    void setProximityZones(ProximityZones proximityZones) {
+        this.mProximityZones = proximityZones;
+        // zones are assigned again with the next sample
+        for (int slot = 0; slot < mUsers.capacity(); slot++) {
+            BLEUser bleUser = mUsers.valueAt(slot);
+            if (bleUser != null) {
+                bleUser.mZone = ProximityZones.UNKNOWN;
+                if (mPeerStore.mPendingZones != null)
+                    mPeerStore.mPendingZones[bleUser.mSlot] = ProximityZones.UNKNOWN;
+            }
+        }
+    }
+
+    RssiFilter getRssiFilter() {
+        return mRssiFilter;
+    }
+
+    void setRssiFilter(RssiFilter rssiFilter) {
+        this.mRssiFilter = rssiFilter;
+        for (int slot = 0; slot < mUsers.capacity(); slot++) {
+            BLEUser bleUser = mUsers.valueAt(slot);
+            if (bleUser != null)
+                bleUser.setRssiFilter(rssiFilter);
+        }
+    }
+
+    AppleOverflowArea getAppleOverflowArea() {
+        return mAppleOverflowArea;
+    }
+
+    void setAppleOverflowArea(AppleOverflowArea appleOverflowArea) {
+        this.mAppleOverflowArea = appleOverflowArea;
+    }
+
+    ForeignDeviceFilter getForeignDeviceFilter() {
+        return mForeignDeviceFilter;
+    }
+
+    void setForeignDeviceFilter(ForeignDeviceFilter foreignDeviceFilter) {
+        this.mForeignDeviceFilter = foreignDeviceFilter;
+    }
+
+    int getMaxUsers() {
+        return mMaxUsers;
+    }
+
+    void setMaxUsers(int maxUsers) {
+        this.mMaxUsers = Math.max(1, maxUsers);
+        evictUsers(mMaxUsers + 1, EvictionQueue.IDENTIFIED);
+    }
+
+    long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    long getEvictedIdentifiedCount() {
+        return mEvictedIdentifiedCount;
+    }
+
+    SampleAggregator getSampleAggregator() {
+        return mSampleAggregator;
+    }
+
+    IdentityResolver getIdentityResolver() {
+        return mIdentityResolver;
+    }
+}
@@ -0,0 +1,181 @@
+package com.joshblour.discovery;
+
+import java.util.List;
+
+/**
+ * The identified users, kept ordered by proximity (ascending, the same order updateList() has
+ * always delivered). Instead of sorting on every update, users are moved into place as their
+ * proximity or identified state changes:
+ *  - a user whose proximity changed is bubbled towards its new rank, which is a step or two
+ *    for the small changes the eased proximity makes between scans
+ *  - a newly identified user is inserted at its binary searched rank
+ *  - a removed user is cut out of the array
+ *
+ * Each user remembers its rank (BLEUser.mIndexRank), so finding it is O(1).
+ * Users with equal proximity keep their relative order. Not thread safe.
+ *
+ * Proximity is the rssi (negative dBm), so the nearest users have the highest proximity and
+ * come last: since the users are always in order, the nearest k are simply the last k. With a
+ * nearest limit set, the index also notes whether an update added, removed or moved a user
+ * within the last k ranks, so apps that only show the closest few hear when those change.
+ */
+class ProximityIndex {
+    private BLEUser[] mUsers;
+    private int mSize;
+    private int mNearestLimit;
+    private boolean mNearestChanged;
+
+    ProximityIndex() {
+        mUsers = new BLEUser[16];
+    }
+
+    // call this whenever the user's proximity or identified state changed.
+    // identified users are added or moved into place, others are removed.
+    // returns true if a listed user changed places with its neighbours.
+    boolean update(BLEUser user) {
+        if (!user.isIdentified()) {
+            remove(user);
+            return false;
+        }
+
+        int rank = user.mIndexRank;
+        if (rank < 0 || rank >= mSize || mUsers[rank] != user) {
+            insert(user);
+            return false;
+        }
+
+        int start = rank;
+        int proximity = proximityOf(user);
+
+        // move towards the front while the previous user is further away
+        while (rank > 0 && proximityOf(mUsers[rank - 1]) > proximity) {
+            place(mUsers[rank - 1], rank);
+            rank--;
+        }
+        // move towards the back while the next user is closer
+        while (rank < mSize - 1 && proximityOf(mUsers[rank + 1]) < proximity) {
+            place(mUsers[rank + 1], rank);
+            rank++;
+        }
+        place(user, rank);
+        if (rank != start && isNearest(Math.max(rank, start), mSize))
+            mNearestChanged = true;
+        return rank != start;
+    }
+
+    void remove(BLEUser user) {
+        int rank = user.mIndexRank;
+        if (rank < 0 || rank >= mSize || mUsers[rank] != user)
+            return;
+
+        if (isNearest(rank, mSize))
+            mNearestChanged = true;
+
+        System.arraycopy(mUsers, rank + 1, mUsers, rank, mSize - rank - 1);
+        mSize--;
+        mUsers[mSize] = null;
+        user.mIndexRank = -1;
+
+        for (int i = rank; i < mSize; i++) {
+            mUsers[i].mIndexRank = i;
+        }
+    }
+
+    private void insert(BLEUser user) {
+        if (mSize == mUsers.length) {
+            BLEUser[] grown = new BLEUser[mUsers.length * 2];
+            System.arraycopy(mUsers, 0, grown, 0, mSize);
+            mUsers = grown;
+        }
+
+        // first rank whose user is further away than this one (after any equal ones)
+        int proximity = proximityOf(user);
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (proximityOf(mUsers[middle]) <= proximity) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        // the users after it keep their place among the nearest
+        if (isNearest(low, mSize + 1))
+            mNearestChanged = true;
+
+        System.arraycopy(mUsers, low, mUsers, low + 1, mSize - low);
+        mSize++;
+        place(user, low);
+        for (int i = low + 1; i < mSize; i++) {
+            mUsers[i].mIndexRank = i;
+        }
+    }
+
+    // true if the rank is one of the nearest, in an index of the given size
+    private boolean isNearest(int rank, int size) {
+        return mNearestLimit > 0 && rank >= size - mNearestLimit;
+    }
+
+    private void place(BLEUser user, int rank) {
+        mUsers[rank] = user;
+        user.mIndexRank = rank;
+    }
+
+    void clear() {
+        if (mSize > 0 && mNearestLimit > 0)
+            mNearestChanged = true;
+        for (int i = 0; i < mSize; i++) {
+            mUsers[i].mIndexRank = -1;
+            mUsers[i] = null;
+        }
+        mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    BLEUser get(int rank) {
+        return mUsers[rank];
+    }
+
+    boolean contains(BLEUser user) {
+        int rank = user.mIndexRank;
+        return rank >= 0 && rank < mSize && mUsers[rank] == user;
+    }
+
+    int getNearestLimit() {
+        return mNearestLimit;
+    }
+
+    // the rank of the furthest of the nearest users, 0 without a nearest limit
+    int getNearestStart() {
+        return mNearestLimit > 0 ? Math.max(0, mSize - mNearestLimit) : 0;
+    }
+
+    // the number of nearest users to watch for changes, 0 for none
+    void setNearestLimit(int nearestLimit) {
+        mNearestLimit = nearestLimit;
+        mNearestChanged = true;
+    }
+
+    // true if the nearest users changed since the last call
+    boolean takeNearestChanged() {
+        boolean changed = mNearestChanged;
+        mNearestChanged = false;
+        return changed;
+    }
+
+    // appends the users in proximity order
+    void copyTo(List<BLEUser> users) {
+        for (int i = 0; i < mSize; i++) {
+            users.add(mUsers[i]);
+        }
+    }
+
+    private static int proximityOf(BLEUser user) {
+        return user.proximity();
+    }
+}
@@ -0,0 +1,102 @@
+package com.joshblour.discovery;
+
+/**
+ * Sorts users into proximity zones (immediate, near, far, or any bands of dBm you like) that
+ * only change when a user really moved, rather than with every bit of radio noise.
+ *
+ * Zones are numbered from the closest (0) outwards, and split at the given boundaries, from the
+ * closest to the furthest: a user whose proximity is at or above boundaries[0] is in zone 0,
+ * at or above boundaries[1] in zone 1, and so on. A user leaves its zone once its proximity is
+ * more than mHysteresis dBm past the zone's edge, and only once it stayed out for mDwellTime
+ * milliseconds. Its first zone is assigned right away.
+ *
+ * The zone of each user is kept on the user (see BLEUser.getZone()), and the zone it's heading for
+ * in its PeerStore slot, so one ProximityZones is shared by all users. Not thread safe.
+ */
+public class ProximityZones {
+    public static final int UNKNOWN = -1;
+    public static final int IMMEDIATE = 0;
+    public static final int NEAR = 1;
+    public static final int FAR = 2;
+
+    private final int[] mBoundaries;
+    private final int mHysteresis;
+    private final long mDwellTime;
+
+    // immediate above -55dBm, near above -75dBm and far below that, with 3dB of hysteresis and
+    // 2 seconds of dwell time
+    public ProximityZones() {
+        this(new int[]{-55, -75}, 3, 2000);
+    }
+
+    public ProximityZones(int[] boundaries, int hysteresis, long dwellTime) {
+        for (int i = 1; i < boundaries.length; i++) {
+            if (boundaries[i] >= boundaries[i - 1])
+                throw new IllegalArgumentException("boundaries must go from the closest to the furthest");
+        }
+
+        mBoundaries = boundaries.clone();
+        mHysteresis = hysteresis;
+        mDwellTime = dwellTime;
+    }
+
+    public int getZoneCount() {
+        return mBoundaries.length + 1;
+    }
+
+    // the zone a proximity falls in, without hysteresis
+    public int zoneOf(int proximity) {
+        int zone = 0;
+        while (zone < mBoundaries.length && proximity < mBoundaries[zone]) {
+            zone++;
+        }
+        return zone;
+    }
+
+    // moves the user to the zone its current proximity puts it in, if it's been out of its zone
+    // long enough. time is when the proximity was measured. returns true if the zone changed.
+    boolean update(BLEUser user, long time) {
+        int proximity = user.proximity();
+        int zone = user.mZone;
+        PeerStore store = user.store();
+        store.useZones();
+        int slot = user.mSlot;
+        if (zone == UNKNOWN) {
+            user.mZone = zoneOf(proximity);
+            store.mPendingZones[slot] = UNKNOWN;
+            return true;
+        }
+
+        // still within the zone, give or take the hysteresis
+        boolean belowTop = zone == 0 || proximity < mBoundaries[zone - 1] + mHysteresis;
+        boolean aboveBottom = zone == mBoundaries.length || proximity >= mBoundaries[zone] - mHysteresis;
+        if (belowTop && aboveBottom) {
+            store.mPendingZones[slot] = UNKNOWN;
+            return false;
+        }
+
+        int target = zoneOf(proximity);
+        if (target != store.mPendingZones[slot]) {
+            store.mPendingZones[slot] = target;
+            store.mPendingZoneSince[slot] = time;
+        }
+        if (time - store.mPendingZoneSince[slot] < mDwellTime)
+            return false;
+
+        user.mZone = target;
+        store.mPendingZones[slot] = UNKNOWN;
+        return true;
+    }
+
+    public int[] getBoundaries() {
+        return mBoundaries.clone();
+    }
+
+    public int getHysteresis() {
+        return mHysteresis;
+    }
+
+    public long getDwellTime() {
+        return mDwellTime;
+    }
+}
@@ -0,0 +1,189 @@
+package com.joshblour.discovery;
+
+/**
+ * Smooths a user's rssi samples into its proximity.
+ *
+ * A filter only holds its parameters, the state of each user is stateSize() floats in an array
+ * kept elsewhere (see PeerStore), so one filter is shared by all users and filtering a sample
+ * never allocates. Samples come with the time since the previous one, so filters that care about time
+ * converge at the same rate however often a device advertises, and batched results replayed in
+ * one go are smoothed over the time they were actually seen.
+ *
+ *  - eased(): the spring Discovery has always used. Steps once per sample and ignores time.
+ *    It starts from 0 and eases in, so new users seem to approach. The default.
+ *  - kalman(): a one dimensional Kalman filter. Its uncertainty grows with the time between
+ *    samples, so samples after a gap count for more.
+ *  - ema(): an exponential moving average that decays with time, a sample's weight halves
+ *    every halfLife milliseconds.
+ *  - median(): the median of the last few samples, samples older than maxAge are dropped.
+ *    Ignores single outliers (a reflection, a hand over the phone) entirely.
+ *
+ * Filters return the filtered rssi (negative dBm), which is the proximity we report.
+ */
+public abstract class RssiFilter {
+
+    private static final RssiFilter EASED = new RssiFilter() {
+        // [velocity, current], the current value is of the absolute rssi
+        @Override
+        int stateSize() {
+            return 2;
+        }
+
+        @Override
+        float update(float[] state, int offset, float rssi, long elapsed) {
+            float target = Math.abs(rssi);
+            float velocity = state[offset];
+            float current = state[offset + 1];
+
+            velocity += (target - current) * 0.01f;
+            velocity *= 0.7f;
+            current += velocity;
+            if (Math.abs(target - current) < 0.001f) {
+                current = target;
+                velocity = 0.0f;
+            }
+            current = Math.max(0.0f, current);
+
+            state[offset] = velocity;
+            state[offset + 1] = current;
+            return -current;
+        }
+    };
+
+    public static RssiFilter eased() {
+        return EASED;
+    }
+
+    // processNoise is how much the rssi is expected to drift per second (as a variance, dBm^2),
+    // measurementNoise how noisy a single sample is. for example kalman(4, 16).
+    public static RssiFilter kalman(final float processNoise, final float measurementNoise) {
+        return new RssiFilter() {
+            // [estimate, variance of the estimate]
+            @Override
+            int stateSize() {
+                return 2;
+            }
+
+            @Override
+            float update(float[] state, int offset, float rssi, long elapsed) {
+                if (elapsed < 0) {
+                    state[offset] = rssi;
+                    state[offset + 1] = measurementNoise;
+                    return rssi;
+                }
+
+                float variance = state[offset + 1] + processNoise * elapsed / 1000f;
+                float gain = variance / (variance + measurementNoise);
+                state[offset] += gain * (rssi - state[offset]);
+                state[offset + 1] = (1 - gain) * variance;
+                return state[offset];
+            }
+        };
+    }
+
+    // halfLife in milliseconds
+    public static RssiFilter ema(long halfLife) {
+        final double decay = -Math.log(2) / halfLife;
+        return new RssiFilter() {
+            // [average]
+            @Override
+            int stateSize() {
+                return 1;
+            }
+
+            @Override
+            float update(float[] state, int offset, float rssi, long elapsed) {
+                if (elapsed < 0) {
+                    state[offset] = rssi;
+                    return rssi;
+                }
+
+                float weight = (float) (1 - Math.exp(decay * elapsed));
+                state[offset] += weight * (rssi - state[offset]);
+                return state[offset];
+            }
+        };
+    }
+
+    // the median of the last size samples (at most 31). maxAge in milliseconds.
+    public static RssiFilter median(final int size, final long maxAge) {
+        if (size < 1 || size > 31)
+            throw new IllegalArgumentException("size must be between 1 and 31");
+
+        return new RssiFilter() {
+            // [count, next], a ring of (sample, age) pairs, then the same samples kept sorted.
+            // ages are in milliseconds before the newest sample, so they fit in a float.
+            @Override
+            int stateSize() {
+                return 2 + size * 3;
+            }
+
+            @Override
+            float update(float[] state, int offset, float rssi, long elapsed) {
+                int count = elapsed < 0 ? 0 : (int) state[offset];
+                int next = elapsed < 0 ? 0 : (int) state[offset + 1];
+
+                // age the samples. they're in order, so the ones that got too old are the
+                // first ones, and dropping them just leaves them out of the count.
+                for (int i = 0; i < count; i++) {
+                    state[slot(offset, next, count, i) + 1] += elapsed;
+                }
+                while (count > 0 && state[slot(offset, next, count, 0) + 1] > maxAge) {
+                    removeSorted(state, offset, count, state[slot(offset, next, count, 0)]);
+                    count--;
+                }
+                // the oldest sample makes room
+                if (count == size) {
+                    removeSorted(state, offset, count, state[slot(offset, next, count, 0)]);
+                    count--;
+                }
+
+                state[offset + 2 + next * 2] = rssi;
+                state[offset + 2 + next * 2 + 1] = 0;
+                insertSorted(state, offset, count, rssi);
+                next = (next + 1) % size;
+                count++;
+                state[offset] = count;
+                state[offset + 1] = next;
+                return state[offset + 2 + size * 2 + count / 2];
+            }
+
+            // the state index of the i-th oldest of count samples
+            private int slot(int offset, int next, int count, int i) {
+                return offset + 2 + ((next - count + i + size) % size) * 2;
+            }
+
+            private void removeSorted(float[] state, int offset, int count, float value) {
+                int sorted = offset + 2 + size * 2;
+                int i = sorted;
+                while (state[i] != value) {
+                    i++;
+                }
+                System.arraycopy(state, i + 1, state, i, sorted + count - i - 1);
+            }
+
+            private void insertSorted(float[] state, int offset, int count, float value) {
+                int sorted = offset + 2 + size * 2;
+                int i = sorted + count;
+                while (i > sorted && state[i - 1] > value) {
+                    state[i] = state[i - 1];
+                    i--;
+                }
+                state[i] = value;
+            }
+        };
+    }
+
+    // how many floats of state a user needs
+    abstract int stateSize();
+
+    // filters a sample. the user's state starts at offset. elapsed is the time since the previous
+    // sample in milliseconds, or -1 for the first one (the state is all zeros then). returns the
+    // filtered rssi.
+    abstract float update(float[] state, int offset, float rssi, long elapsed);
+
+    // for a state of its own
+    final float update(float[] state, float rssi, long elapsed) {
+        return update(state, 0, rssi, elapsed);
+    }
+}
@@ -0,0 +1,177 @@
+package com.joshblour.discovery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Folds the scan results of a device into one sample per window, so a crowd of devices that
+ * advertise many times a second doesn't push every single advertisement through identification,
+ * the filter, the zones and the proximity index.
+ *
+ * Only users we're done working out are aggregated: identified users, and devices we know aren't
+ * ours. A device's first sample, and the samples of devices we're still identifying, always go
+ * through on their own. For the rest, a window starts with a sample and lasts mWindow
+ * milliseconds. It's passed on as one sample, with the mean (or the max) rssi of the window, at
+ * the time of the window's last sample, once a sample arrives after the window ended or once the
+ * window is collected as due (see collectDue()).
+ *
+ * The window of each user is kept in its PeerStore slot, so one SampleAggregator is shared by all
+ * users.
+ * Configuration may be changed from any thread, the rest is called on the discovery thread.
+ */
+public class SampleAggregator {
+
+    private volatile long mWindow;
+    private volatile boolean mUseMax;
+
+    // users with a window open, in no particular order. users whose window was taken are dropped
+    // on the next collectDue().
+    private final ArrayList<BLEUser> mOpen = new ArrayList<>();
+
+    private volatile long mSampleCount;
+    private volatile long mForwardedCount;
+
+    public SampleAggregator() {
+        mWindow = 0;
+        mUseMax = false;
+    }
+
+    boolean isEnabled() {
+        return mWindow > 0;
+    }
+
+    // counts a sample that goes through on its own
+    void pass() {
+        mSampleCount++;
+        mForwardedCount++;
+    }
+
+    // folds a sample into the user's window, starting one if it has none. returns false, without
+    // folding it in, if the user's window is over: take() the window first.
+    boolean add(BLEUser user, int rssi, byte[] scanRecord, long time) {
+        PeerStore store = user.store();
+        store.useWindows();
+        int slot = user.mSlot;
+        int count = store.mWindowCounts[slot];
+        if (count > 0 && time - store.mWindowStarts[slot] >= mWindow)
+            return false;
+
+        mSampleCount++;
+        if (count == 0) {
+            store.mWindowStarts[slot] = time;
+            store.mWindowMaxes[slot] = rssi;
+            store.mWindowSums[slot] = 0;
+            store.mWindowTimes[slot] = time;
+            if (!store.mWindowOpen[slot]) {
+                store.mWindowOpen[slot] = true;
+                mOpen.add(user);
+            }
+        }
+        store.mWindowCounts[slot] = count + 1;
+        store.mWindowSums[slot] += rssi;
+        store.mWindowMaxes[slot] = Math.max(store.mWindowMaxes[slot], rssi);
+        // batched results may be handed over slightly out of order
+        store.mWindowTimes[slot] = Math.max(store.mWindowTimes[slot], time);
+        store.mWindowScanRecords[slot] = scanRecord;
+        return true;
+    }
+
+    // true if the user has samples waiting in a window
+    boolean hasWindow(BLEUser user) {
+        PeerStore store = user.store();
+        return store.mWindowCounts != null && store.mWindowCounts[user.mSlot] > 0;
+    }
+
+    // the time of the latest sample in the user's window
+    long windowTime(BLEUser user) {
+        return user.store().mWindowTimes[user.mSlot];
+    }
+
+    // the scan record of the latest sample in the user's window
+    byte[] windowScanRecord(BLEUser user) {
+        return user.store().mWindowScanRecords[user.mSlot];
+    }
+
+    // ends the user's window and returns the rssi it's passed on with. the time and the scan
+    // record to pass on are windowTime() and windowScanRecord(), read them first.
+    int take(BLEUser user) {
+        PeerStore store = user.store();
+        int slot = user.mSlot;
+        int rssi = mUseMax ? store.mWindowMaxes[slot] : Math.round(store.mWindowSums[slot] / (float) store.mWindowCounts[slot]);
+        discard(user);
+        mForwardedCount++;
+        return rssi;
+    }
+
+    // forgets the user's window, for users that are forgotten themselves
+    void discard(BLEUser user) {
+        PeerStore store = user.store();
+        if (store.mWindowCounts == null)
+            return;
+        store.mWindowCounts[user.mSlot] = 0;
+        store.mWindowScanRecords[user.mSlot] = null;
+    }
+
+    // adds the users whose window ended by now to due, for the caller to take(). call it with
+    // Long.MAX_VALUE to collect every open window.
+    void collectDue(long now, List<BLEUser> due) {
+        long window = mWindow;
+        int kept = 0;
+        for (int i = 0; i < mOpen.size(); i++) {
+            BLEUser user = mOpen.get(i);
+            // forgotten since, its slot may be someone else's by now
+            PeerStore store = user.mStore;
+            if (store == null)
+                continue;
+
+            int slot = user.mSlot;
+            if (store.mWindowCounts[slot] > 0 && now - store.mWindowStarts[slot] < window) {
+                mOpen.set(kept++, user);
+                continue;
+            }
+
+            store.mWindowOpen[slot] = false;
+            if (store.mWindowCounts[slot] > 0)
+                due.add(user);
+        }
+        for (int i = mOpen.size() - 1; i >= kept; i--) {
+            mOpen.remove(i);
+        }
+    }
+
+    //***BEGIN GETTERS AND SETTERS**
+    public long getWindow() {
+        return mWindow;
+    }
+
+    // in milliseconds, 0 (the default) passes every sample on as it comes
+    public void setWindow(long window) {
+        this.mWindow = Math.max(0, window);
+    }
+
+    public boolean getUseMax() {
+        return mUseMax;
+    }
+
+    // pass windows on with their strongest rssi instead of the mean. default is false.
+    public void setUseMax(boolean useMax) {
+        this.mUseMax = useMax;
+    }
+
+    // how many scan results came in
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    // how many samples were passed on, scan results on their own and windows
+    public long getForwardedCount() {
+        return mForwardedCount;
+    }
+
+    // the share of scan results that didn't go through on their own, between 0 and 1
+    public float getDropRatio() {
+        long samples = mSampleCount;
+        return samples == 0 ? 0 : 1 - mForwardedCount / (float) samples;
+    }
+    //***END GETTERS AND SETTERS**
+}
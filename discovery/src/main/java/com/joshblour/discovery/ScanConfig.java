@@ -0,0 +1,239 @@
+package com.joshblour.discovery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * How MultiScanner scans: the scan mode, hardware batching, match settings and filters.
+ *
+ * Filters are handed to the bluetooth controller, which drops advertisements that don't match
+ * any of them without waking up the app. A filter matches on one thing: a service uuid, service
+ * data or manufacturer data, each with an optional mask (only bits set in the mask are compared).
+ * An advertisement is reported if it matches any filter, or if there are no filters.
+ * Service and manufacturer data are compared from the start of their payload (the bytes after
+ * the uuid or company id), and the payload may be longer than the filter's data.
+ *
+ * With a report delay the controller collects results and hands them over in batches, where the
+ * hardware supports it. The match mode and number of matches apply on Android 6 and up.
+ * The scanner takes a copy, change the config and set it again to apply changes.
+ */
+public class ScanConfig {
+    // the values of ScanSettings, which doesn't exist before Android 5
+    public static final int SCAN_MODE_LOW_POWER = 0;
+    public static final int SCAN_MODE_BALANCED = 1;
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+    public static final int MATCH_MODE_AGGRESSIVE = 1;
+    public static final int MATCH_MODE_STICKY = 2;
+    public static final int MATCH_NUM_ONE_ADVERTISEMENT = 1;
+    public static final int MATCH_NUM_FEW_ADVERTISEMENT = 2;
+    public static final int MATCH_NUM_MAX_ADVERTISEMENT = 3;
+
+    public static class Filter {
+        public static final int TYPE_SERVICE_UUID = 0;
+        public static final int TYPE_SERVICE_DATA = 1;
+        public static final int TYPE_MANUFACTURER_DATA = 2;
+
+        private final int mType;
+        private final UUID mUuid;
+        private final UUID mUuidMask;
+        private final int mManufacturerId;
+        private final byte[] mData;
+        private final byte[] mMask;
+
+        Filter(int type, UUID uuid, UUID uuidMask, int manufacturerId, byte[] data, byte[] mask) {
+            if (data != null && mask != null && mask.length != data.length)
+                throw new IllegalArgumentException("mask must be as long as data");
+
+            mType = type;
+            mUuid = uuid;
+            mUuidMask = uuidMask;
+            mManufacturerId = manufacturerId;
+            mData = data == null ? null : data.clone();
+            mMask = mask == null ? null : mask.clone();
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        // null to compare the whole uuid
+        public UUID getUuidMask() {
+            return mUuidMask;
+        }
+
+        public int getManufacturerId() {
+            return mManufacturerId;
+        }
+
+        public byte[] getData() {
+            return mData == null ? null : mData.clone();
+        }
+
+        // null to compare all of the data
+        public byte[] getMask() {
+            return mMask == null ? null : mMask.clone();
+        }
+
+        // the same check the controller makes, for scanners that can't filter in hardware
+        public boolean matches(ScanRecordParser parser) {
+            byte[] record = parser.getRecord();
+            if (record == null)
+                return false;
+
+            switch (mType) {
+                case TYPE_SERVICE_UUID:
+                    if (mUuidMask == null)
+                        return parser.hasServiceUuid(mUuid);
+                    return parser.hasServiceUuid(mUuid.getMostSignificantBits(), mUuid.getLeastSignificantBits(),
+                            mUuidMask.getMostSignificantBits(), mUuidMask.getLeastSignificantBits());
+                case TYPE_SERVICE_DATA: {
+                    int index = parser.findServiceData(mUuid);
+                    return index >= 0 && dataMatches(record,
+                            parser.getServiceDataOffset(index), parser.getServiceDataLength(index));
+                }
+                case TYPE_MANUFACTURER_DATA: {
+                    int index = parser.findManufacturerData(mManufacturerId);
+                    return index >= 0 && dataMatches(record,
+                            parser.getManufacturerDataOffset(index), parser.getManufacturerDataLength(index));
+                }
+                default:
+                    return false;
+            }
+        }
+
+        private boolean dataMatches(byte[] record, int offset, int length) {
+            if (mData == null)
+                return true;
+            if (length < mData.length)
+                return false;
+
+            for (int i = 0; i < mData.length; i++) {
+                int mask = mMask == null ? 0xFF : mMask[i];
+                if (((record[offset + i] ^ mData[i]) & mask) != 0)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private int mScanMode;
+    private long mReportDelay;
+    private int mMatchMode;
+    private int mNumOfMatches;
+    private final List<Filter> mFilters;
+
+    public ScanConfig() {
+        mScanMode = SCAN_MODE_LOW_POWER;
+        mReportDelay = 0;
+        mMatchMode = MATCH_MODE_AGGRESSIVE;
+        mNumOfMatches = MATCH_NUM_MAX_ADVERTISEMENT;
+        mFilters = new ArrayList<>();
+    }
+
+    public ScanConfig(ScanConfig config) {
+        mScanMode = config.mScanMode;
+        mReportDelay = config.mReportDelay;
+        mMatchMode = config.mMatchMode;
+        mNumOfMatches = config.mNumOfMatches;
+        mFilters = new ArrayList<>(config.mFilters);
+    }
+
+    public void addServiceUuidFilter(UUID uuid) {
+        addServiceUuidFilter(uuid, null);
+    }
+
+    public void addServiceUuidFilter(UUID uuid, UUID mask) {
+        mFilters.add(new Filter(Filter.TYPE_SERVICE_UUID, uuid, mask, 0, null, null));
+    }
+
+    public void addServiceDataFilter(UUID uuid, byte[] data, byte[] mask) {
+        mFilters.add(new Filter(Filter.TYPE_SERVICE_DATA, uuid, null, 0, data, mask));
+    }
+
+    public void addManufacturerDataFilter(int manufacturerId, byte[] data, byte[] mask) {
+        mFilters.add(new Filter(Filter.TYPE_MANUFACTURER_DATA, null, null, manufacturerId, data, mask));
+    }
+
+    // lets through iOS apps advertising our service in the background, see AppleOverflowArea
+    public void addAppleOverflowFilter(AppleOverflowArea overflowArea) {
+        addManufacturerDataFilter(AppleOverflowArea.APPLE_COMPANY_ID, overflowArea.getData(), overflowArea.getMask());
+    }
+
+    public void clearFilters() {
+        mFilters.clear();
+    }
+
+    public List<Filter> getFilters() {
+        return Collections.unmodifiableList(mFilters);
+    }
+
+    // true if the advertisement passes the filters (or there aren't any)
+    public boolean matches(ScanRecordParser parser) {
+        if (mFilters.isEmpty())
+            return true;
+
+        for (int i = 0; i < mFilters.size(); i++) {
+            if (mFilters.get(i).matches(parser))
+                return true;
+        }
+        return false;
+    }
+
+    // true if this needs the android 5 scanner, the old one can't batch or filter on data
+    public boolean needsLollipopScanner() {
+        if (mReportDelay > 0)
+            return true;
+
+        for (int i = 0; i < mFilters.size(); i++) {
+            if (mFilters.get(i).getType() != Filter.TYPE_SERVICE_UUID || mFilters.get(i).getUuidMask() != null)
+                return true;
+        }
+        return false;
+    }
+
+
+    //***BEGIN GETTERS AND SETTERS**
+    public int getScanMode() {
+        return mScanMode;
+    }
+
+    // one of the SCAN_MODE constants, default is SCAN_MODE_LOW_POWER
+    public void setScanMode(int scanMode) {
+        this.mScanMode = scanMode;
+    }
+
+    public long getReportDelay() {
+        return mReportDelay;
+    }
+
+    // in milliseconds, default is 0 (report every result right away). results are batched by the
+    // controller for up to this long, if it supports it.
+    public void setReportDelay(long reportDelay) {
+        this.mReportDelay = reportDelay;
+    }
+
+    public int getMatchMode() {
+        return mMatchMode;
+    }
+
+    // one of the MATCH_MODE constants, default is MATCH_MODE_AGGRESSIVE
+    public void setMatchMode(int matchMode) {
+        this.mMatchMode = matchMode;
+    }
+
+    public int getNumOfMatches() {
+        return mNumOfMatches;
+    }
+
+    // one of the MATCH_NUM constants, default is MATCH_NUM_MAX_ADVERTISEMENT
+    public void setNumOfMatches(int numOfMatches) {
+        this.mNumOfMatches = numOfMatches;
+    }
+    //***END GETTERS AND SETTERS**
+}
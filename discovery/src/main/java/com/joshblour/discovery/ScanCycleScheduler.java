@@ -0,0 +1,176 @@
+package com.joshblour.discovery;
+
+/**
+ * Decides when to scan and when to rest. Detection alternates between a scan window and an idle
+ * gap, whose lengths adapt to how much the neighbourhood changes:
+ *  - when new peers showed up during a scan window, the next window is longer and the gap
+ *    shorter, so we find the rest of them quickly
+ *  - when nobody new showed up, the window shrinks and the gap grows, to save battery
+ * Both stay within the bounds set by the caller. Setting min and max to the same value fixes them.
+ *
+ * This is just the state machine, the owner starts and stops the scanner. It calls start(), then
+ * advance() whenever the returned delay has passed, and scans while the state is SCANNING.
+ * All times are in milliseconds and come from the given clock. Configuration may be changed
+ * from any thread, the rest is used by one thread.
+ */
+public class ScanCycleScheduler {
+
+    public enum State {
+        STOPPED,
+        SCANNING,
+        IDLE
+    }
+
+    private final Clock mClock;
+
+    private volatile long mMinScanWindow;
+    private volatile long mMaxScanWindow;
+    private volatile long mMinIdleGap;
+    private volatile long mMaxIdleGap;
+    // how many new peers in a window count as churn
+    private volatile int mChurnThreshold;
+
+    private State mState = State.STOPPED;
+    private long mScanWindow;
+    private long mIdleGap;
+    private long mStateSince;
+    private int mNewPeerCount;
+    private int mLastNewPeerCount;
+    private volatile long mCycleCount;
+
+    public ScanCycleScheduler(Clock clock) {
+        mClock = clock;
+        mMinScanWindow = 5 * 1000;
+        mMaxScanWindow = 10 * 1000;
+        mMinIdleGap = 5 * 1000;
+        mMaxIdleGap = 15 * 1000;
+        mChurnThreshold = 1;
+        mScanWindow = mMinScanWindow;
+        mIdleGap = mMinIdleGap;
+    }
+
+    // starts scanning (again) from the beginning of a window. returns the time until advance().
+    long start() {
+        mState = State.SCANNING;
+        mStateSince = mClock.now();
+        mNewPeerCount = 0;
+        mScanWindow = clamp(mScanWindow, mMinScanWindow, mMaxScanWindow);
+        mIdleGap = clamp(mIdleGap, mMinIdleGap, mMaxIdleGap);
+        return mScanWindow;
+    }
+
+    void stop() {
+        mState = State.STOPPED;
+    }
+
+    // a device we didn't know about was seen
+    void onNewPeer() {
+        if (mState == State.SCANNING)
+            mNewPeerCount++;
+    }
+
+    // moves on to the next state. returns the time until the next advance(), or -1 if stopped.
+    // call it early and it just returns the time left.
+    long advance() {
+        long now = mClock.now();
+        if (mState == State.STOPPED)
+            return -1;
+
+        long duration = mState == State.SCANNING ? mScanWindow : mIdleGap;
+        long left = mStateSince + duration - now;
+        if (left > 0)
+            return left;
+
+        if (mState == State.SCANNING) {
+            adapt();
+            mState = State.IDLE;
+            mStateSince = now;
+            return mIdleGap;
+        } else {
+            mState = State.SCANNING;
+            mStateSince = now;
+            mNewPeerCount = 0;
+            mCycleCount++;
+            return mScanWindow;
+        }
+    }
+
+    // called at the end of a scan window, with what we saw during it
+    private void adapt() {
+        mLastNewPeerCount = mNewPeerCount;
+        if (mNewPeerCount >= mChurnThreshold) {
+            mScanWindow = clamp(mScanWindow * 3 / 2, mMinScanWindow, mMaxScanWindow);
+            mIdleGap = clamp(mIdleGap / 2, mMinIdleGap, mMaxIdleGap);
+        } else {
+            mScanWindow = clamp(mScanWindow * 3 / 4, mMinScanWindow, mMaxScanWindow);
+            mIdleGap = clamp(mIdleGap * 3 / 2, mMinIdleGap, mMaxIdleGap);
+        }
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+
+    //***BEGIN GETTERS AND SETTERS**
+    public State getState() {
+        return mState;
+    }
+
+    // the length of the current (or next) scan window
+    public long getScanWindow() {
+        return mScanWindow;
+    }
+
+    // the length of the current (or next) idle gap
+    public long getIdleGap() {
+        return mIdleGap;
+    }
+
+    // new peers seen in the last complete scan window
+    public int getLastNewPeerCount() {
+        return mLastNewPeerCount;
+    }
+
+    public long getCycleCount() {
+        return mCycleCount;
+    }
+
+    public long getMinScanWindow() {
+        return mMinScanWindow;
+    }
+
+    public long getMaxScanWindow() {
+        return mMaxScanWindow;
+    }
+
+    // default is 5 to 10 seconds. takes effect at the next window.
+    public void setScanWindowBounds(long minScanWindow, long maxScanWindow) {
+        this.mMinScanWindow = minScanWindow;
+        this.mMaxScanWindow = Math.max(minScanWindow, maxScanWindow);
+    }
+
+    public long getMinIdleGap() {
+        return mMinIdleGap;
+    }
+
+    public long getMaxIdleGap() {
+        return mMaxIdleGap;
+    }
+
+    // default is 5 to 15 seconds. takes effect at the next gap.
+    public void setIdleGapBounds(long minIdleGap, long maxIdleGap) {
+        this.mMinIdleGap = minIdleGap;
+        this.mMaxIdleGap = Math.max(minIdleGap, maxIdleGap);
+    }
+
+    public int getChurnThreshold() {
+        return mChurnThreshold;
+    }
+
+    // the number of new peers in a scan window that makes us scan more. default is 1.
+    public void setChurnThreshold(int churnThreshold) {
+        this.mChurnThreshold = Math.max(1, churnThreshold);
+    }
+    //***END GETTERS AND SETTERS**
+}
@@ -0,0 +1,135 @@
+package com.joshblour.discovery;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Hands scan results from the binder threads the scanner calls us on, over to the discovery
+ * thread that owns the users.
+ *
+ * Producers append to a fixed size batch under a short lock. The consumer swaps the filled batch
+ * for an empty one and processes it without holding the lock, so scan callbacks never wait for
+ * us to process results. offer() tells the producer when the queue goes from empty to non-empty,
+ * so the consumer is woken once per batch rather than once per result.
+ *
+ * When the consumer falls behind and a batch is full, new results are dropped (and counted).
+ * The scanner reports every device again a moment later, so there's no point in buffering more.
+ */
+class ScanQueue {
+
+    static class Batch {
+        final BluetoothDevice[] mDevices;
+        final int[] mRssis;
+        final byte[][] mScanRecords;
+        final long[] mTimes;
+        int mSize;
+
+        Batch(int capacity) {
+            mDevices = new BluetoothDevice[capacity];
+            mRssis = new int[capacity];
+            mScanRecords = new byte[capacity][];
+            mTimes = new long[capacity];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        BluetoothDevice getDevice(int i) {
+            return mDevices[i];
+        }
+
+        int getRssi(int i) {
+            return mRssis[i];
+        }
+
+        byte[] getScanRecord(int i) {
+            return mScanRecords[i];
+        }
+
+        long getTime(int i) {
+            return mTimes[i];
+        }
+
+        // drops the references, so devices and records can be collected
+        void clear() {
+            for (int i = 0; i < mSize; i++) {
+                mDevices[i] = null;
+                mScanRecords[i] = null;
+            }
+            mSize = 0;
+        }
+    }
+
+    private Batch mFilling;
+    private Batch mSpare;
+    private long mOfferedCount;
+    private long mDroppedCount;
+
+    ScanQueue(int capacity) {
+        mFilling = new Batch(capacity);
+        mSpare = new Batch(capacity);
+    }
+
+    // returns true if the queue was empty, in which case the consumer should be woken up
+    synchronized boolean offer(BluetoothDevice device, int rssi, byte[] scanRecord, long time) {
+        mOfferedCount++;
+        Batch batch = mFilling;
+        if (batch.mSize == batch.mDevices.length) {
+            mDroppedCount++;
+            return false;
+        }
+
+        int i = batch.mSize++;
+        batch.mDevices[i] = device;
+        batch.mRssis[i] = rssi;
+        batch.mScanRecords[i] = scanRecord;
+        batch.mTimes[i] = time;
+        return i == 0;
+    }
+
+    // queues a batch of results under a single lock. returns true if the queue was empty.
+    synchronized boolean offerAll(BluetoothDevice[] devices, int[] rssis, byte[][] scanRecords, long[] times, int count) {
+        mOfferedCount += count;
+        Batch batch = mFilling;
+        boolean wasEmpty = batch.mSize == 0;
+
+        int accepted = Math.min(count, batch.mDevices.length - batch.mSize);
+        System.arraycopy(devices, 0, batch.mDevices, batch.mSize, accepted);
+        System.arraycopy(rssis, 0, batch.mRssis, batch.mSize, accepted);
+        System.arraycopy(scanRecords, 0, batch.mScanRecords, batch.mSize, accepted);
+        System.arraycopy(times, 0, batch.mTimes, batch.mSize, accepted);
+        batch.mSize += accepted;
+        mDroppedCount += count - accepted;
+
+        return wasEmpty && accepted > 0;
+    }
+
+    // takes the queued results. hand the batch back with recycle() once it's processed.
+    // returns null if nothing is queued, or the previous batch wasn't recycled.
+    synchronized Batch take() {
+        if (mFilling.mSize == 0 || mSpare == null)
+            return null;
+
+        Batch batch = mFilling;
+        mFilling = mSpare;
+        mSpare = null;
+        return batch;
+    }
+
+    synchronized void recycle(Batch batch) {
+        batch.clear();
+        mSpare = batch;
+    }
+
+    synchronized int size() {
+        return mFilling.mSize;
+    }
+
+    synchronized long getOfferedCount() {
+        return mOfferedCount;
+    }
+
+    synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
@@ -0,0 +1,338 @@
+package com.joshblour.discovery;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Walks the AD structures of a raw advertisement (the scanRecord handed to us by the scanner)
+ * without allocating. An instance is meant to be reused: call parse() with each new record and
+ * then query it. Only offsets into the record are stored, so the record must not be modified
+ * until the next call to parse().
+ *
+ * Each AD structure is laid out as [length][type][data...] where length counts the type byte.
+ * A length of zero marks the end of the significant part (legacy records are zero padded).
+ *
+ * Not thread safe.
+ */
+public class ScanRecordParser {
+
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32_COMPLETE = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+    public static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+    public static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    public static final int TYPE_SERVICE_DATA_UUID16 = 0x16;
+    public static final int TYPE_SERVICE_DATA_UUID32 = 0x20;
+    public static final int TYPE_SERVICE_DATA_UUID128 = 0x21;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    // the bluetooth base uuid (0000xxxx-0000-1000-8000-00805F9B34FB), 16 and 32 bit uuids are
+    // shorthands for it with the xxxx part replaced.
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // we only keep track of the first few occurrences of each repeatable field.
+    // real advertisements rarely carry more than one or two of each.
+    private static final int MAX_FIELDS = 8;
+
+    private byte[] mRecord;
+
+    private final int[] mUuidOffsets = new int[MAX_FIELDS];
+    private final int[] mUuidLengths = new int[MAX_FIELDS];
+    private final int[] mUuidWidths = new int[MAX_FIELDS];
+    private int mUuidFieldCount;
+
+    private final int[] mServiceDataOffsets = new int[MAX_FIELDS];
+    private final int[] mServiceDataLengths = new int[MAX_FIELDS];
+    private final int[] mServiceDataWidths = new int[MAX_FIELDS];
+    private int mServiceDataCount;
+
+    private final int[] mManufacturerDataOffsets = new int[MAX_FIELDS];
+    private final int[] mManufacturerDataLengths = new int[MAX_FIELDS];
+    private int mManufacturerDataCount;
+
+    private int mNameOffset;
+    private int mNameLength;
+    private boolean mNameComplete;
+
+    private boolean mMalformed;
+
+    /**
+     * Parses the given record. Returns false if the record is null or malformed
+     * (a structure runs past the end of the buffer). Whatever was parsed before the
+     * malformed structure can still be queried.
+     */
+    public boolean parse(byte[] record) {
+        mRecord = record;
+        mUuidFieldCount = 0;
+        mServiceDataCount = 0;
+        mManufacturerDataCount = 0;
+        mNameOffset = -1;
+        mNameLength = 0;
+        mNameComplete = false;
+        mMalformed = false;
+
+        if (record == null) {
+            mMalformed = true;
+            return false;
+        }
+
+        int position = 0;
+        while (position < record.length) {
+            int length = record[position] & 0xFF;
+            if (length == 0)
+                break;
+
+            if (position + length >= record.length) {
+                mMalformed = true;
+                break;
+            }
+
+            int type = record[position + 1] & 0xFF;
+            int dataOffset = position + 2;
+            int dataLength = length - 1;
+
+            switch (type) {
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16_COMPLETE:
+                    addUuidField(dataOffset, dataLength, 2);
+                    break;
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32_COMPLETE:
+                    addUuidField(dataOffset, dataLength, 4);
+                    break;
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128_COMPLETE:
+                    addUuidField(dataOffset, dataLength, 16);
+                    break;
+                case TYPE_LOCAL_NAME_SHORT:
+                    // a complete name always wins over a shortened one
+                    if (!mNameComplete) {
+                        mNameOffset = dataOffset;
+                        mNameLength = dataLength;
+                    }
+                    break;
+                case TYPE_LOCAL_NAME_COMPLETE:
+                    mNameOffset = dataOffset;
+                    mNameLength = dataLength;
+                    mNameComplete = true;
+                    break;
+                case TYPE_SERVICE_DATA_UUID16:
+                    addServiceData(dataOffset, dataLength, 2);
+                    break;
+                case TYPE_SERVICE_DATA_UUID32:
+                    addServiceData(dataOffset, dataLength, 4);
+                    break;
+                case TYPE_SERVICE_DATA_UUID128:
+                    addServiceData(dataOffset, dataLength, 16);
+                    break;
+                case TYPE_MANUFACTURER_DATA:
+                    if (dataLength >= 2 && mManufacturerDataCount < MAX_FIELDS) {
+                        mManufacturerDataOffsets[mManufacturerDataCount] = dataOffset;
+                        mManufacturerDataLengths[mManufacturerDataCount] = dataLength;
+                        mManufacturerDataCount++;
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            position += length + 1;
+        }
+
+        return !mMalformed;
+    }
+
+    private void addUuidField(int offset, int length, int width) {
+        if (mUuidFieldCount < MAX_FIELDS) {
+            mUuidOffsets[mUuidFieldCount] = offset;
+            mUuidLengths[mUuidFieldCount] = length - (length % width);
+            mUuidWidths[mUuidFieldCount] = width;
+            mUuidFieldCount++;
+        }
+    }
+
+    private void addServiceData(int offset, int length, int width) {
+        if (length >= width && mServiceDataCount < MAX_FIELDS) {
+            mServiceDataOffsets[mServiceDataCount] = offset;
+            mServiceDataLengths[mServiceDataCount] = length;
+            mServiceDataWidths[mServiceDataCount] = width;
+            mServiceDataCount++;
+        }
+    }
+
+    public byte[] getRecord() {
+        return mRecord;
+    }
+
+    public boolean isMalformed() {
+        return mMalformed;
+    }
+
+    //***BEGIN SERVICE UUIDS***
+    public boolean hasServiceUuid(UUID uuid) {
+        return hasServiceUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    // true if any of the 16, 32 or 128 bit service uuid lists contains the given uuid
+    public boolean hasServiceUuid(long msb, long lsb) {
+        for (int i = 0; i < mUuidFieldCount; i++) {
+            int width = mUuidWidths[i];
+            int end = mUuidOffsets[i] + mUuidLengths[i];
+            for (int offset = mUuidOffsets[i]; offset < end; offset += width) {
+                if (uuidEquals(mRecord, offset, width, msb, lsb))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // like hasServiceUuid(), but only compares the bits set in the mask.
+    // 16 and 32 bit uuids are compared as full uuids on the bluetooth base uuid.
+    public boolean hasServiceUuid(long msb, long lsb, long msbMask, long lsbMask) {
+        for (int i = 0; i < mUuidFieldCount; i++) {
+            int width = mUuidWidths[i];
+            int end = mUuidOffsets[i] + mUuidLengths[i];
+            for (int offset = mUuidOffsets[i]; offset < end; offset += width) {
+                long uuidMsb;
+                long uuidLsb;
+                if (width == 16) {
+                    uuidLsb = readLongLE(mRecord, offset);
+                    uuidMsb = readLongLE(mRecord, offset + 8);
+                } else {
+                    long shortUuid = 0;
+                    for (int j = width - 1; j >= 0; j--) {
+                        shortUuid = (shortUuid << 8) | (mRecord[offset + j] & 0xFF);
+                    }
+                    uuidMsb = (shortUuid << 32) | BASE_UUID_MSB;
+                    uuidLsb = BASE_UUID_LSB;
+                }
+
+                if (((uuidMsb ^ msb) & msbMask) == 0 && ((uuidLsb ^ lsb) & lsbMask) == 0)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    public int getServiceUuidCount() {
+        int count = 0;
+        for (int i = 0; i < mUuidFieldCount; i++) {
+            count += mUuidLengths[i] / mUuidWidths[i];
+        }
+        return count;
+    }//***END SERVICE UUIDS***
+
+
+    //***BEGIN LOCAL NAME***
+    public boolean hasLocalName() {
+        return mNameOffset >= 0 && mNameLength > 0;
+    }
+
+    public boolean isLocalNameComplete() {
+        return mNameComplete;
+    }
+
+    public int getLocalNameOffset() {
+        return mNameOffset;
+    }
+
+    public int getLocalNameLength() {
+        return mNameLength;
+    }
+
+    // allocates a new string, only call it once you actually need the name
+    public String getLocalName() {
+        if (!hasLocalName())
+            return null;
+        return new String(mRecord, mNameOffset, mNameLength, UTF8);
+    }//***END LOCAL NAME***
+
+
+    //***BEGIN SERVICE DATA***
+    public int getServiceDataCount() {
+        return mServiceDataCount;
+    }
+
+    public int findServiceData(UUID uuid) {
+        return findServiceData(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    // returns the index of the service data entry for the given uuid, or -1
+    public int findServiceData(long msb, long lsb) {
+        for (int i = 0; i < mServiceDataCount; i++) {
+            if (uuidEquals(mRecord, mServiceDataOffsets[i], mServiceDataWidths[i], msb, lsb))
+                return i;
+        }
+        return -1;
+    }
+
+    // offset of the payload of a service data entry (the bytes after its uuid)
+    public int getServiceDataOffset(int index) {
+        return mServiceDataOffsets[index] + mServiceDataWidths[index];
+    }
+
+    public int getServiceDataLength(int index) {
+        return mServiceDataLengths[index] - mServiceDataWidths[index];
+    }//***END SERVICE DATA***
+
+
+    //***BEGIN MANUFACTURER DATA***
+    public int getManufacturerDataCount() {
+        return mManufacturerDataCount;
+    }
+
+    public int getManufacturerId(int index) {
+        int offset = mManufacturerDataOffsets[index];
+        return (mRecord[offset] & 0xFF) | ((mRecord[offset + 1] & 0xFF) << 8);
+    }
+
+    // returns the index of the manufacturer data entry for the given company id, or -1
+    public int findManufacturerData(int manufacturerId) {
+        for (int i = 0; i < mManufacturerDataCount; i++) {
+            if (getManufacturerId(i) == manufacturerId)
+                return i;
+        }
+        return -1;
+    }
+
+    // offset of the payload of a manufacturer data entry (the bytes after the company id)
+    public int getManufacturerDataOffset(int index) {
+        return mManufacturerDataOffsets[index] + 2;
+    }
+
+    public int getManufacturerDataLength(int index) {
+        return mManufacturerDataLengths[index] - 2;
+    }//***END MANUFACTURER DATA***
+
+
+    // compares a little endian uuid of the given width (2, 4 or 16 bytes) against a full uuid
+    static boolean uuidEquals(byte[] record, int offset, int width, long msb, long lsb) {
+        if (width == 16) {
+            return readLongLE(record, offset) == lsb && readLongLE(record, offset + 8) == msb;
+        }
+
+        if (lsb != BASE_UUID_LSB || (msb & 0xFFFFFFFFL) != BASE_UUID_MSB)
+            return false;
+
+        long shortUuid = 0;
+        for (int i = width - 1; i >= 0; i--) {
+            shortUuid = (shortUuid << 8) | (record[offset + i] & 0xFF);
+        }
+        return (msb >>> 32) == shortUuid;
+    }
+
+    static long readLongLE(byte[] record, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (record[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,94 @@
+package com.joshblour.discovery;
+
+/**
+ * Keeps track of when scans were started, so we stay under the platform's start rate limit.
+ * Since Android 7, an app that starts scans more than 5 times in 30 seconds has its scans
+ * silently downgraded to opportunistic ones, which only see results other apps asked for.
+ *
+ * The last mMaxStarts start times are kept in a ring, oldest first.
+ * All times are in milliseconds, and "now" is passed in so this can be driven by any clock.
+ * Counters may be read from any thread, the rest is used by one thread.
+ */
+public class ScanStartGovernor {
+    private final int mMaxStarts;
+    private final long mWindow;
+    private final long[] mStarts;
+    private int mNext;
+    private int mCount;
+
+    private volatile long mStartCount;
+    private volatile long mKeptRunningCount;
+    private volatile long mDeferredCount;
+
+    public ScanStartGovernor() {
+        this(5, 30 * 1000);
+    }
+
+    // at most maxStarts (at least 1) starts within any window milliseconds
+    public ScanStartGovernor(int maxStarts, long window) {
+        if (maxStarts < 1)
+            throw new IllegalArgumentException("maxStarts must be at least 1");
+        mMaxStarts = maxStarts;
+        mWindow = window;
+        mStarts = new long[maxStarts];
+    }
+
+    // true if a scan started at the given time would stay under the limit
+    public boolean canStart(long at) {
+        return at >= nextStartAt(at);
+    }
+
+    // the earliest time (not before now) at which a scan may be started
+    public long nextStartAt(long now) {
+        if (mCount < mMaxStarts)
+            return now;
+
+        // the ring is full, so the next slot holds the oldest start. once that one has left
+        // the window there's room for another.
+        long oldest = mStarts[mNext];
+        return Math.max(now, oldest + mWindow);
+    }
+
+    public void onStarted(long now) {
+        mStarts[mNext] = now;
+        mNext = (mNext + 1) % mMaxStarts;
+        if (mCount < mMaxStarts)
+            mCount++;
+        mStartCount++;
+    }
+
+    // we kept a scan running instead of stopping it, so we won't need to start it again
+    void onKeptRunning() {
+        mKeptRunningCount++;
+    }
+
+    // we put off starting a scan until the limit allows it
+    void onDeferred() {
+        mDeferredCount++;
+    }
+
+    public int getMaxStarts() {
+        return mMaxStarts;
+    }
+
+    public long getWindow() {
+        return mWindow;
+    }
+
+    public long getStartCount() {
+        return mStartCount;
+    }
+
+    public long getKeptRunningCount() {
+        return mKeptRunningCount;
+    }
+
+    public long getDeferredCount() {
+        return mDeferredCount;
+    }
+
+    // every time we did something to avoid being throttled
+    public long getThrottleAvoidedCount() {
+        return mKeptRunningCount + mDeferredCount;
+    }
+}
@@ -0,0 +1,104 @@
+package com.joshblour.discovery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What changed in the list of identified users since the previous delta.
+ * Delivered to Discovery.DiscoveryDeltaCallback, so apps can apply just the changes
+ * instead of diffing the whole list on every update.
+ *
+ * Ranks are positions in the proximity ordered list (the same order as didUpdateUsers) at the
+ * time the delta was built.
+ *  - added: users that were identified and entered the list
+ *  - removed: users that left the list, with the reason
+ *  - moved: users whose rank changed relative to their neighbours (not users that merely shifted
+ *    because another user was added or removed in front of them)
+ *  - renamed: users whose username changed
+ *
+ * The users are copies taken when the delta was built. They are equal to (but not the same
+ * objects as) the copies in earlier deltas and lists.
+ */
+public class UsersDelta {
+
+    public enum RemovalReason {
+        // we haven't seen the user for the user timeout interval
+        TIMEOUT,
+        // it turned out the device doesn't belong to our service
+        NOT_MY_SERVICE,
+        // we were tracking as many users as we may, and this one was the least recently seen
+        EVICTED
+    }
+
+    public static class Change {
+        private final BLEUser mUser;
+        private final int mRank;
+        private final RemovalReason mReason;
+
+        Change(BLEUser user, int rank, RemovalReason reason) {
+            mUser = user;
+            mRank = rank;
+            mReason = reason;
+        }
+
+        public BLEUser getUser() {
+            return mUser;
+        }
+
+        // the rank of the user in the list, -1 for removed users
+        public int getRank() {
+            return mRank;
+        }
+
+        // why the user was removed, null for other changes
+        public RemovalReason getReason() {
+            return mReason;
+        }
+    }
+
+    private final List<Change> mAdded = new ArrayList<>();
+    private final List<Change> mRemoved = new ArrayList<>();
+    private final List<Change> mMoved = new ArrayList<>();
+    private final List<Change> mRenamed = new ArrayList<>();
+
+    public List<Change> getAdded() {
+        return Collections.unmodifiableList(mAdded);
+    }
+
+    public List<Change> getRemoved() {
+        return Collections.unmodifiableList(mRemoved);
+    }
+
+    public List<Change> getMoved() {
+        return Collections.unmodifiableList(mMoved);
+    }
+
+    public List<Change> getRenamed() {
+        return Collections.unmodifiableList(mRenamed);
+    }
+
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mRemoved.isEmpty() && mMoved.isEmpty() && mRenamed.isEmpty();
+    }
+
+    public int size() {
+        return mAdded.size() + mRemoved.size() + mMoved.size() + mRenamed.size();
+    }
+
+    void add(BLEUser user, int rank) {
+        mAdded.add(new Change(new BLEUser(user), rank, null));
+    }
+
+    void remove(BLEUser user, RemovalReason reason) {
+        mRemoved.add(new Change(new BLEUser(user), -1, reason));
+    }
+
+    void move(BLEUser user, int rank) {
+        mMoved.add(new Change(new BLEUser(user), rank, null));
+    }
+
+    void rename(BLEUser user, int rank) {
+        mRenamed.add(new Change(new BLEUser(user), rank, null));
+    }
+}
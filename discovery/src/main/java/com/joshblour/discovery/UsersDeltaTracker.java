@@ -0,0 +1,101 @@
+package com.joshblour.discovery;
+
+import java.util.ArrayList;
+
+/**
+ * Collects changes to the identified users as Discovery makes them, and turns them into a
+ * UsersDelta when the list is delivered. Only the users that changed are touched, so building a
+ * delta costs O(changes) rather than a diff over the whole list.
+ *
+ * A user is only reported as removed if it was reported as added before, and changes to a user
+ * that is added in the same delta are folded into the add. Not thread safe.
+ */
+class UsersDeltaTracker {
+    static final int CHANGE_ADDED = 1;
+    static final int CHANGE_MOVED = 1 << 1;
+    static final int CHANGE_RENAMED = 1 << 2;
+
+    private final ArrayList<BLEUser> mChangedUsers = new ArrayList<>();
+    private final ArrayList<BLEUser> mRemovedUsers = new ArrayList<>();
+    private final ArrayList<UsersDelta.RemovalReason> mRemovalReasons = new ArrayList<>();
+
+    void userAdded(BLEUser user) {
+        mark(user, CHANGE_ADDED);
+    }
+
+    void userMoved(BLEUser user) {
+        if (user.mDelivered)
+            mark(user, CHANGE_MOVED);
+    }
+
+    void userRenamed(BLEUser user) {
+        if (user.mDelivered)
+            mark(user, CHANGE_RENAMED);
+    }
+
+    void userRemoved(BLEUser user, UsersDelta.RemovalReason reason) {
+        if (user.mDelivered) {
+            user.mDelivered = false;
+            mRemovedUsers.add(user);
+            mRemovalReasons.add(reason);
+        }
+    }
+
+    private void mark(BLEUser user, int change) {
+        if (user.mPendingChanges == 0)
+            mChangedUsers.add(user);
+        user.mPendingChanges |= change;
+    }
+
+    // forgets pending changes, e.g. when the delta callback is replaced
+    void clear() {
+        for (int i = 0; i < mChangedUsers.size(); i++) {
+            mChangedUsers.get(i).mPendingChanges = 0;
+        }
+        mChangedUsers.clear();
+        mRemovedUsers.clear();
+        mRemovalReasons.clear();
+    }
+
+    boolean hasChanges() {
+        return !mChangedUsers.isEmpty() || !mRemovedUsers.isEmpty();
+    }
+
+    // builds the delta against the current state of the index and resets the tracker
+    UsersDelta flush(ProximityIndex index) {
+        UsersDelta delta = new UsersDelta();
+
+        for (int i = 0; i < mRemovedUsers.size(); i++) {
+            delta.remove(mRemovedUsers.get(i), mRemovalReasons.get(i));
+        }
+
+        for (int i = 0; i < mChangedUsers.size(); i++) {
+            BLEUser user = mChangedUsers.get(i);
+            int changes = user.mPendingChanges;
+            user.mPendingChanges = 0;
+
+            // changed and then left the list before we got to deliver it
+            if (!index.contains(user))
+                continue;
+
+            int rank = user.mIndexRank;
+            if (!user.mDelivered) {
+                if ((changes & CHANGE_ADDED) != 0) {
+                    user.mDelivered = true;
+                    delta.add(user, rank);
+                }
+                continue;
+            }
+
+            if ((changes & CHANGE_MOVED) != 0)
+                delta.move(user, rank);
+            if ((changes & CHANGE_RENAMED) != 0)
+                delta.rename(user, rank);
+        }
+
+        mChangedUsers.clear();
+        mRemovedUsers.clear();
+        mRemovalReasons.clear();
+        return delta;
+    }
+}
@@ -0,0 +1,95 @@
+package com.joshblour.discovery;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only Map view of the users, keyed by device address string (the address each user
+ * advertises from now, see BLEUser.getCurrentAddress()).
+ * Discovery stores its users by packed address (see LongHashMap), this keeps
+ * Discovery.getUsersMap() working for apps that expect a Map.
+ *
+ * Lookups pack the key and go straight to the underlying map, iteration walks its slots.
+ * Like the underlying map, it is only safe to use from the thread that updates the users.
+ */
+class UsersMapView extends AbstractMap<String, BLEUser> {
+    private final LongHashMap<BLEUser> mUsers;
+    private Set<Map.Entry<String, BLEUser>> mEntrySet;
+
+    UsersMapView(LongHashMap<BLEUser> users) {
+        mUsers = users;
+    }
+
+    @Override
+    public BLEUser get(Object key) {
+        if (!(key instanceof String))
+            return null;
+        return mUsers.get(MacAddress.pack((String) key));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return mUsers.size();
+    }
+
+    @Override
+    public Set<Map.Entry<String, BLEUser>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Map.Entry<String, BLEUser>>() {
+                @Override
+                public Iterator<Map.Entry<String, BLEUser>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return mUsers.size();
+                }
+            };
+        }
+        return mEntrySet;
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, BLEUser>> {
+        private int mSlot = -1;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            do {
+                mSlot++;
+            } while (mSlot < mUsers.capacity() && mUsers.valueAt(mSlot) == null);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mSlot < mUsers.capacity();
+        }
+
+        @Override
+        public Map.Entry<String, BLEUser> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            BLEUser user = mUsers.valueAt(mSlot);
+            advance();
+            return new SimpleImmutableEntry<>(user.getCurrentAddress(), user);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("the users map is read-only");
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.joshblour.discovery;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Counts the bytes the current thread allocates, with the HotSpot per-thread allocation counter.
+ * Tests using it are skipped on JVMs without one.
+ */
+class AllocationCounter {
+    private final com.sun.management.ThreadMXBean mAllocations;
+    private final long mThread;
+    // what asking for the counter allocates itself
+    private final long mOverhead;
+    private long mStart;
+
+    private AllocationCounter(com.sun.management.ThreadMXBean allocations) {
+        mAllocations = allocations;
+        mThread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(mThread);
+        mOverhead = allocations.getThreadAllocatedBytes(mThread) - before;
+    }
+
+    // skips the calling test if allocations can't be counted
+    static AllocationCounter start() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue("allocation counting isn't supported", threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue("allocation counting isn't enabled",
+                allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+
+        AllocationCounter counter = new AllocationCounter(allocations);
+        counter.reset();
+        return counter;
+    }
+
+    void reset() {
+        mStart = mAllocations.getThreadAllocatedBytes(mThread);
+    }
+
+    // bytes allocated since the last reset
+    long allocated() {
+        return mAllocations.getThreadAllocatedBytes(mThread) - mStart - mOverhead;
+    }
+}
@@ -0,0 +1,88 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import static com.joshblour.discovery.ScanRecordParserTest.bytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AppleOverflowAreaTest {
+
+    // a backgrounded iOS app, its service uuid sets bit 106 (0x20 in the 14th byte of the bitmask)
+    private static final byte[] IOS_BACKGROUND = bytes(
+            0x02, 0x01, 0x06,
+            0x14, 0xFF, 0x4C, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x20, 0x00, 0x00);
+
+    private static final byte[] IBEACON = bytes(
+            0x02, 0x01, 0x06,
+            0x1A, 0xFF, 0x4C, 0x00, 0x02, 0x15,
+            0xB9, 0x40, 0x7F, 0x30, 0xF5, 0xF8, 0x46, 0x6E, 0xAF, 0xF9, 0x25, 0x55, 0x6B, 0x57, 0xFE, 0x99,
+            0x00, 0x01, 0x00, 0x02, 0xC5);
+
+    private static final byte[] NO_MANUFACTURER_DATA = bytes(
+            0x02, 0x01, 0x06,
+            0x03, 0x03, 0xAA, 0xFE);
+
+    @Test
+    public void classifiesTheOverflowBit() {
+        ScanRecordParser parser = parse(IOS_BACKGROUND);
+        assertEquals(AppleOverflowArea.BIT_SET, new AppleOverflowArea(106).classify(parser));
+        assertEquals(AppleOverflowArea.BIT_CLEAR, new AppleOverflowArea(105).classify(parser));
+        assertEquals(AppleOverflowArea.BIT_CLEAR, new AppleOverflowArea(0).classify(parser));
+        assertEquals(AppleOverflowArea.BIT_CLEAR, new AppleOverflowArea(127).classify(parser));
+    }
+
+    @Test
+    public void ignoresOtherAdvertisements() {
+        AppleOverflowArea overflowArea = new AppleOverflowArea(106);
+        assertEquals(AppleOverflowArea.NOT_PRESENT, overflowArea.classify(parse(IBEACON)));
+        assertEquals(AppleOverflowArea.NOT_PRESENT, overflowArea.classify(parse(NO_MANUFACTURER_DATA)));
+    }
+
+    @Test
+    public void filtersLikeItClassifies() {
+        ScanConfig config = new ScanConfig();
+        config.addAppleOverflowFilter(new AppleOverflowArea(106));
+        assertTrue(config.matches(parse(IOS_BACKGROUND)));
+        assertFalse(config.matches(parse(IBEACON)));
+        assertFalse(config.matches(parse(NO_MANUFACTURER_DATA)));
+
+        config = new ScanConfig();
+        config.addAppleOverflowFilter(new AppleOverflowArea(107));
+        assertFalse(config.matches(parse(IOS_BACKGROUND)));
+    }
+
+    @Test
+    public void precomputesTheFilter() {
+        AppleOverflowArea overflowArea = new AppleOverflowArea(9);
+        byte[] data = overflowArea.getData();
+        byte[] mask = overflowArea.getMask();
+        assertEquals(17, data.length);
+        assertEquals(AppleOverflowArea.OVERFLOW_AREA_TYPE, data[0]);
+        assertEquals((byte) 0xFF, mask[0]);
+        // bit 9 is the second most significant bit of the second byte
+        assertEquals(0x40, data[2]);
+        assertEquals(0x40, mask[2]);
+        int bits = 0;
+        for (int i = 1; i < mask.length; i++) {
+            bits += Integer.bitCount(mask[i] & 0xFF);
+        }
+        assertEquals(1, bits);
+    }
+
+    @Test
+    public void rejectsBitsOutsideTheBitmask() {
+        try {
+            new AppleOverflowArea(128);
+            throw new AssertionError("expected the bit to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static ScanRecordParser parse(byte[] record) {
+        ScanRecordParser parser = new ScanRecordParser();
+        parser.parse(record);
+        return parser;
+    }
+}
@@ -0,0 +1,127 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionQueueTest {
+
+    @Test
+    public void pollsTheStrongestFirst() {
+        ConnectionQueue queue = new ConnectionQueue();
+        assertTrue(queue.offer(null, "A", -80, 0));
+        assertTrue(queue.offer(null, "B", -50, 0));
+        assertTrue(queue.offer(null, "C", -65, 0));
+
+        assertEquals("B", queue.poll().mAddress);
+        assertEquals("C", queue.poll().mAddress);
+        assertEquals("A", queue.poll().mAddress);
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void updatesAQueuedDeviceInPlace() {
+        ConnectionQueue queue = new ConnectionQueue();
+        queue.offer(null, "A", -80, 0);
+        queue.offer(null, "B", -50, 0);
+
+        // seen again, closer: one entry, moved up, still waiting since it was first queued
+        assertFalse(queue.offer(null, "A", -40, 500));
+        assertEquals(2, queue.size());
+        ConnectionQueue.Entry head = queue.peek();
+        assertEquals("A", head.mAddress);
+        assertEquals(0, head.mEnqueuedAt);
+        assertEquals(500, head.mLastSeen);
+
+        // and further away again
+        queue.offer(null, "A", -90, 600);
+        assertEquals("B", queue.peek().mAddress);
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void removesDevicesFromTheMiddle() {
+        ConnectionQueue queue = new ConnectionQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.offer(null, "D" + i, -50 - i, 0);
+        }
+
+        assertTrue(queue.remove("D4"));
+        assertFalse(queue.remove("D4"));
+        assertNull(queue.get("D4"));
+        assertEquals(9, queue.size());
+        for (int i = 0; i < 10; i++) {
+            if (i != 4)
+                assertEquals("D" + i, queue.poll().mAddress);
+        }
+    }
+
+    @Test
+    public void dropsDevicesThatWentAway() {
+        ConnectionQueue queue = new ConnectionQueue();
+        for (int i = 0; i < 100; i++) {
+            queue.offer(null, "D" + i, -50 - i % 40, i * 100);
+        }
+
+        // the ones last seen before 5000
+        assertEquals(50, queue.removeStale(5000));
+        assertEquals(50, queue.size());
+        assertNull(queue.get("D0"));
+        int previousRssi = Integer.MAX_VALUE;
+        ConnectionQueue.Entry entry;
+        while ((entry = queue.poll()) != null) {
+            assertTrue(entry.mLastSeen >= 5000);
+            assertTrue(entry.mRssi <= previousRssi);
+            previousRssi = entry.mRssi;
+        }
+    }
+
+    /**
+     * Devices seen over and over with changing rssi, some connected to and some going away:
+     * the queue holds one entry per waiting device, and polls in the same order as a plain map.
+     */
+    @Test
+    public void staysAsBigAsTheDevicesWaiting() {
+        ConnectionQueue queue = new ConnectionQueue();
+        HashMap<String, Integer> waiting = new HashMap<>();
+        Random random = new Random(5);
+
+        for (int i = 0; i < 20000; i++) {
+            String address = "D" + random.nextInt(200);
+            int action = random.nextInt(10);
+            if (action < 7) {
+                int rssi = -40 - random.nextInt(60);
+                queue.offer(null, address, rssi, i);
+                waiting.put(address, rssi);
+            } else if (action < 8) {
+                assertEquals(waiting.remove(address) != null, queue.remove(address));
+            } else if (!waiting.isEmpty()) {
+                ConnectionQueue.Entry head = queue.poll();
+                int strongest = Integer.MIN_VALUE;
+                for (int rssi : waiting.values()) {
+                    strongest = Math.max(strongest, rssi);
+                }
+                assertEquals(strongest, head.mRssi);
+                assertEquals(head.mRssi, (int) waiting.remove(head.mAddress));
+            }
+            assertEquals(waiting.size(), queue.size());
+        }
+
+        ArrayList<Integer> rest = new ArrayList<>();
+        ConnectionQueue.Entry entry;
+        while ((entry = queue.poll()) != null) {
+            rest.add(entry.mRssi);
+        }
+        assertEquals(waiting.size(), rest.size());
+        for (int i = 1; i < rest.size(); i++) {
+            assertTrue(rest.get(i) <= rest.get(i - 1));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionSchedulerTest {
+
+    @Test
+    public void startsTheStrongestUntilTheSlotsAreTaken() {
+        ConnectionScheduler scheduler = new ConnectionScheduler();
+        scheduler.setMaxConcurrent(2);
+        scheduler.offer(null, "A", -80, 0);
+        scheduler.offer(null, "B", -50, 0);
+        scheduler.offer(null, "C", -65, 0);
+
+        assertEquals("B", scheduler.next(100).mAddress);
+        assertEquals("C", scheduler.next(100).mAddress);
+        assertNull(scheduler.next(100));
+        assertTrue(scheduler.isInFlight("B"));
+        assertFalse(scheduler.hasFreeSlot());
+        assertEquals(1, scheduler.getQueueDepth());
+
+        // a connection ending frees its slot for the next one
+        scheduler.finished("B", true, 1000);
+        assertFalse(scheduler.isInFlight("B"));
+        assertEquals("A", scheduler.next(1000).mAddress);
+        assertEquals(2, scheduler.getInFlightCount());
+        assertEquals(3, scheduler.getStartedFromQueueCount());
+        assertEquals(1000, scheduler.getMaxWaitTime());
+    }
+
+    @Test
+    public void dropsDevicesItHasntSeenLately() {
+        ConnectionScheduler scheduler = new ConnectionScheduler();
+        scheduler.setMaxConcurrent(1);
+        scheduler.setQueueTimeout(10000);
+        scheduler.offer(null, "A", -50, 0);
+        scheduler.offer(null, "B", -60, 0);
+        scheduler.offer(null, "C", -70, 8000);
+
+        // A and B weren't seen for longer than the timeout, C still is
+        assertEquals("C", scheduler.next(15000).mAddress);
+        assertEquals(2, scheduler.getDroppedFromQueueCount());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void backsOffDevicesThatFail() {
+        ConnectionScheduler scheduler = new ConnectionScheduler();
+        scheduler.offer(null, "A", -50, 0);
+        scheduler.next(0);
+        scheduler.finished("A", false, 100);
+
+        assertFalse(scheduler.canAttempt("A", 100));
+        assertEquals(1, scheduler.getRetryPolicy().getFailureCount("A"));
+
+        // the watchdog tearing down a connection counts as a failure too, once
+        scheduler.offer(null, "B", -50, 0);
+        scheduler.next(0);
+        scheduler.timedOut("B", false, 30000);
+        scheduler.timedOut("B", false, 30000);
+        assertEquals(1, scheduler.getTimedOutCount());
+        assertEquals(1, scheduler.getRetryPolicy().getFailureCount("B"));
+        assertEquals(0, scheduler.getInFlightCount());
+    }
+}
@@ -0,0 +1,78 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DispatchThrottleTest {
+
+    @Test
+    public void dispatchesRightAwayByDefault() {
+        DispatchThrottle throttle = new DispatchThrottle();
+        for (long now = 0; now < 10; now++) {
+            assertEquals(0, throttle.request(true, now));
+            assertTrue(throttle.dispatched(now));
+        }
+        assertEquals(10, throttle.getDispatchedCount());
+        assertEquals(0, throttle.getSuppressedCount());
+    }
+
+    @Test
+    public void limitsTheRate() {
+        DispatchThrottle throttle = new DispatchThrottle();
+        throttle.setMinInterval(500);
+
+        assertEquals(0, throttle.request(true, 0));
+        throttle.dispatched(0);
+
+        // the next one has to wait for the interval, and the ones after it are coalesced into it
+        assertEquals(400, throttle.request(false, 100));
+        assertEquals(-1, throttle.request(true, 200));
+        assertEquals(-1, throttle.request(false, 300));
+        assertEquals(0, throttle.due(500));
+        assertTrue(throttle.dispatched(500));
+
+        assertEquals(2, throttle.getDispatchedCount());
+        assertEquals(2, throttle.getCoalescedCount());
+        assertEquals(-1, throttle.due(600));
+    }
+
+    @Test
+    public void debouncesOnTheTrailingEdge() {
+        DispatchThrottle throttle = new DispatchThrottle();
+        throttle.setDebounceInterval(200);
+        throttle.setMaxDebounceDelay(1000);
+
+        assertEquals(200, throttle.request(true, 0));
+        assertEquals(-1, throttle.request(true, 150));
+        // a request came in during the debounce, so it waits some more
+        assertEquals(150, throttle.due(200));
+        assertEquals(0, throttle.due(350));
+        throttle.dispatched(350);
+
+        // a steady stream of requests is still dispatched after the max delay
+        throttle.request(true, 1000);
+        for (long now = 1100; now < 2000; now += 100) {
+            assertTrue(throttle.due(now) > 0);
+            throttle.request(true, now);
+        }
+        assertEquals(0, throttle.due(2000));
+    }
+
+    @Test
+    public void dropsRequestsThatDontChangeTheList() {
+        DispatchThrottle throttle = new DispatchThrottle();
+        throttle.setOnlyOnChange(true);
+
+        assertEquals(-1, throttle.request(false, 0));
+        assertFalse(throttle.isPending());
+        assertEquals(0, throttle.request(true, 10));
+        throttle.dispatched(10);
+
+        assertEquals(2, throttle.getRequestedCount());
+        assertEquals(1, throttle.getDroppedCount());
+        assertEquals(1, throttle.getSuppressedCount());
+    }
+}
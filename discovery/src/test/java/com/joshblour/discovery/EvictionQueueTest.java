@@ -0,0 +1,87 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EvictionQueueTest {
+
+    @Test
+    public void evictsForeignThenUnidentifiedThenIdentifiedUsers() {
+        EvictionQueue queue = new EvictionQueue();
+        BLEUser identified = createUser(0, true, true);
+        BLEUser unidentified = createUser(1, null, false);
+        BLEUser foreign = createUser(2, false, false);
+        BLEUser olderForeign = createUser(3, false, false);
+        queue.touch(olderForeign);
+        queue.touch(identified);
+        queue.touch(unidentified);
+        queue.touch(foreign);
+        assertEquals(4, queue.size());
+
+        assertTrue(olderForeign == queue.victim());
+        // seen again, it's now the most recently seen foreign device
+        queue.touch(olderForeign);
+        assertTrue(foreign == queue.victim());
+        queue.remove(foreign);
+        queue.remove(olderForeign);
+        assertTrue(unidentified == queue.victim());
+
+        // identified since, it moves to the identified users
+        unidentified.setIsMyService(true);
+        unidentified.setIdentified(true);
+        queue.touch(unidentified);
+        assertEquals(2, queue.size(EvictionQueue.IDENTIFIED));
+        assertTrue(identified == queue.victim());
+
+        queue.remove(identified);
+        queue.remove(unidentified);
+        assertNull(queue.victim());
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * What tracking one more device costs, the way Discovery tracks it: the user, its slot in the
+     * peer store, the map of users and the proximity index.
+     */
+    @Test
+    public void tracksAPeerInUnderHalfAKilobyte() {
+        AllocationCounter allocations = AllocationCounter.start();
+
+        int peers = 4096;
+        String[] addresses = new String[peers];
+        for (int i = 0; i < peers; i++) {
+            addresses[i] = MacAddress.unpack(i);
+        }
+        LongHashMap<BLEUser> users = new LongHashMap<>(peers);
+        ProximityIndex index = new ProximityIndex();
+        EvictionQueue queue = new EvictionQueue();
+        PeerStore store = new PeerStore(peers);
+
+        allocations.reset();
+        for (int i = 0; i < peers; i++) {
+            BLEUser user = new BLEUser(addresses[i]);
+            user.attach(store);
+            user.setIsMyService(true);
+            user.setIdentified(true);
+            user.setRssi(-40 - i % 50, i);
+            users.put(i, user);
+            index.update(user);
+            queue.touch(user);
+        }
+        long perPeer = allocations.allocated() / peers;
+
+        // the address string and the BluetoothDevice come with the scan result
+        assertTrue(perPeer < 512);
+        assertEquals(peers, queue.size());
+    }
+
+    private static BLEUser createUser(int address, Boolean isMyService, boolean identified) {
+        BLEUser user = new BLEUser(MacAddress.unpack(address));
+        user.setIsMyService(isMyService);
+        user.setIdentified(identified);
+        return user;
+    }
+}
@@ -0,0 +1,170 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExpiryWheelTest {
+    private static final long TIMEOUT = 5000;
+
+    @Test
+    public void expiresUsersThatWereNotSeenAgain() {
+        ExpiryWheel wheel = new ExpiryWheel(250, 64, 0);
+        BLEUser quiet = createUser(0, 1000);
+        BLEUser busy = createUser(1, 1000);
+        wheel.schedule(quiet, 1000 + TIMEOUT);
+        wheel.schedule(busy, 1000 + TIMEOUT);
+
+        List<BLEUser> expired = new ArrayList<>();
+        assertEquals(0, wheel.advance(6000, TIMEOUT, expired));
+
+        // seen again, without telling the wheel
+        busy.mExpirySeen = 5500;
+        assertEquals(1, wheel.advance(6250, TIMEOUT, expired));
+        assertEquals(quiet, expired.get(0));
+        assertFalse(wheel.contains(quiet));
+        assertTrue(wheel.contains(busy));
+        assertEquals(1, wheel.size());
+
+        assertEquals(0, wheel.advance(10500, TIMEOUT, expired));
+        assertEquals(1, wheel.advance(10750, TIMEOUT, expired));
+        assertEquals(busy, expired.get(1));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void handlesTimeoutsLongerThanTheWheelAndLongGaps() {
+        ExpiryWheel wheel = new ExpiryWheel(100, 8, 0);
+        BLEUser user = createUser(0, 0);
+        wheel.schedule(user, TIMEOUT);
+
+        List<BLEUser> expired = new ArrayList<>();
+        for (long now = 100; now <= TIMEOUT; now += 100) {
+            assertEquals(0, wheel.advance(now, TIMEOUT, expired));
+        }
+        // nothing ran for a long time
+        assertEquals(1, wheel.advance(60000, TIMEOUT, expired));
+    }
+
+    @Test
+    public void cancelledUsersDontExpire() {
+        ExpiryWheel wheel = new ExpiryWheel(250, 64, 0);
+        BLEUser first = createUser(0, 0);
+        BLEUser second = createUser(1, 0);
+        BLEUser third = createUser(2, 0);
+        wheel.schedule(first, TIMEOUT);
+        wheel.schedule(second, TIMEOUT);
+        wheel.schedule(third, TIMEOUT);
+        wheel.cancel(second);
+        wheel.cancel(second);
+
+        List<BLEUser> expired = new ArrayList<>();
+        assertEquals(2, wheel.advance(TIMEOUT + 1000, TIMEOUT, expired));
+        assertFalse(expired.contains(second));
+    }
+
+    @Test
+    public void matchesAFullSweep() {
+        ExpiryWheel wheel = new ExpiryWheel(250, 64, 0);
+        Random random = new Random(5);
+        List<BLEUser> users = new ArrayList<>();
+        Set<BLEUser> tracked = new HashSet<>();
+
+        for (long now = 0; now < 120000; now += 50) {
+            // new devices appear, tracked ones are seen again
+            if (random.nextInt(3) == 0) {
+                BLEUser user = createUser(users.size(), now);
+                users.add(user);
+                tracked.add(user);
+                wheel.schedule(user, now + TIMEOUT);
+            }
+            if (!users.isEmpty()) {
+                BLEUser user = users.get(random.nextInt(users.size()));
+                if (tracked.contains(user))
+                    user.mExpirySeen = now;
+            }
+
+            if (now % 1000 == 0) {
+                List<BLEUser> expired = new ArrayList<>();
+                wheel.advance(now, TIMEOUT, expired);
+                for (BLEUser user : expired) {
+                    assertTrue(now - user.mExpirySeen > TIMEOUT);
+                    assertTrue(tracked.remove(user));
+                }
+                // the sweep finds nothing the wheel missed (up to a tick late)
+                for (BLEUser user : tracked) {
+                    assertTrue(now - user.mExpirySeen <= TIMEOUT + 250);
+                }
+                assertEquals(tracked.size(), wheel.size());
+            }
+        }
+    }
+
+    /**
+     * 10k tracked devices that are seen about once a second, a few of them going away at every
+     * check: each check, the wheel expires exactly the devices the old full sweep would have.
+     */
+    @Test
+    public void findsWhatAFullSweepFindsAmong10kDevices() {
+        int count = 10000;
+        LongHashMap<BLEUser> users = new LongHashMap<>();
+        ExpiryWheel wheel = new ExpiryWheel(250, 64, 0);
+        for (int i = 0; i < count; i++) {
+            BLEUser user = createUser(i, 0);
+            users.put(i, user);
+            wheel.schedule(user, TIMEOUT);
+        }
+
+        Random random = new Random(6);
+        Set<BLEUser> gone = new HashSet<>();
+        List<BLEUser> expired = new ArrayList<>();
+        int expiredCount = 0;
+        long now = 0;
+        for (int i = 0; i < 400; i++) {
+            // a check every 250ms, a quarter of the devices were seen since the last one
+            now += 250;
+            for (int j = 0; j < 10; j++) {
+                gone.add(users.valueAt(random.nextInt(users.capacity())));
+            }
+            for (int slot = i & 3; slot < users.capacity(); slot += 4) {
+                BLEUser user = users.valueAt(slot);
+                if (user != null && !gone.contains(user))
+                    user.mExpirySeen = now;
+            }
+
+            Set<BLEUser> found = new HashSet<>();
+            for (int slot = 0; slot < users.capacity(); slot++) {
+                BLEUser user = users.valueAt(slot);
+                if (user != null && now - user.mExpirySeen > TIMEOUT)
+                    found.add(user);
+            }
+
+            expired.clear();
+            wheel.advance(now, TIMEOUT, expired);
+            assertEquals(found, new HashSet<>(expired));
+            for (BLEUser user : expired) {
+                users.remove(MacAddress.pack(user.getDeviceAddress()));
+            }
+            expiredCount += expired.size();
+        }
+
+        // the devices that went away were expired, the others are still watched
+        assertTrue(expiredCount > 0);
+        assertEquals(count - expiredCount, wheel.size());
+        assertEquals(wheel.size(), users.size());
+    }
+
+    private static BLEUser createUser(int address, long seen) {
+        BLEUser user = new BLEUser(MacAddress.unpack(address));
+        user.mExpirySeen = seen;
+        return user;
+    }
+}
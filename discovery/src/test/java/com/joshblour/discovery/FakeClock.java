@@ -0,0 +1,11 @@
+package com.joshblour.discovery;
+
+// a clock that only moves when the test moves it
+class FakeClock implements Clock {
+    long mNow;
+
+    @Override
+    public long now() {
+        return mNow;
+    }
+}
@@ -0,0 +1,98 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ForeignDeviceFilterTest {
+
+    @Test
+    public void remembersDevicesForTheTtl() {
+        ForeignDeviceFilter filter = new ForeignDeviceFilter(100, 0.001, 1000);
+        long address = MacAddress.pack("AA:BB:CC:DD:EE:FF");
+        assertFalse(filter.mightContain(address, 0));
+        filter.add(address, 0);
+
+        // probed as scan results come in
+        for (long time = 0; time < 1000; time += 100) {
+            assertTrue(filter.mightContain(address, time));
+        }
+        assertFalse(filter.mightContain(address, 1000));
+        assertEquals(10, filter.getRejectedCount());
+    }
+
+    @Test
+    public void forgetsTheOldestDevicesWhenFull() {
+        ForeignDeviceFilter filter = new ForeignDeviceFilter(100, 0.001, 60000);
+        long[] addresses = randomAddresses(new Random(3), 250);
+        for (int i = 0; i < addresses.length; i++) {
+            filter.add(addresses[i], 0);
+        }
+
+        // the first 100 were two generations ago
+        int remembered = 0;
+        for (int i = 0; i < 100; i++) {
+            if (filter.mightContain(addresses[i], 0))
+                remembered++;
+        }
+        assertTrue(remembered <= 1);
+        for (int i = 100; i < addresses.length; i++) {
+            assertTrue(filter.mightContain(addresses[i], 0));
+        }
+    }
+
+    /**
+     * Fills both generations and probes addresses that were never added, the share of them that
+     * match stays around the configured rate.
+     */
+    @Test
+    public void keepsToTheFalsePositiveRate() {
+        double[] rates = {0.01, 0.001, 0.0001};
+        Random random = new Random(4);
+        for (double rate : rates) {
+            ForeignDeviceFilter filter = new ForeignDeviceFilter(1000, rate, 60000);
+            long[] added = randomAddresses(random, 1999);
+            HashSet<Long> addedSet = new HashSet<>();
+            for (long address : added) {
+                filter.add(address, 0);
+                addedSet.add(address);
+            }
+            for (long address : added) {
+                assertTrue(filter.mightContain(address, 0));
+            }
+
+            int probes = 1000000;
+            int falsePositives = 0;
+            for (int i = 0; i < probes; i++) {
+                long address = random.nextLong() & 0xFFFFFFFFFFFFL;
+                if (!addedSet.contains(address) && filter.mightContain(address, 0))
+                    falsePositives++;
+            }
+
+            double measured = falsePositives / (double) probes;
+            assertTrue(measured < rate * 1.5);
+        }
+    }
+
+    @Test
+    public void rejectsABadRate() {
+        try {
+            new ForeignDeviceFilter(100, 1, 1000);
+            throw new AssertionError("expected the rate to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static long[] randomAddresses(Random random, int count) {
+        long[] addresses = new long[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = random.nextLong() & 0xFFFFFFFFFFFFL;
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,128 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GattRetryPolicyTest {
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+
+    @Test
+    public void backsOffExponentially() {
+        GattRetryPolicy policy = new GattRetryPolicy();
+        policy.setBaseBackoff(1000);
+        policy.setMaxBackoff(60000);
+
+        assertTrue(policy.canAttempt(ADDRESS, 0));
+
+        policy.onFailure(ADDRESS, 0);
+        assertFalse(policy.canAttempt(ADDRESS, 999));
+        assertTrue(policy.canAttempt(ADDRESS, 1000));
+
+        policy.onFailure(ADDRESS, 1000);
+        assertFalse(policy.canAttempt(ADDRESS, 2999));
+        assertTrue(policy.canAttempt(ADDRESS, 3000));
+
+        policy.onFailure(ADDRESS, 3000);
+        assertFalse(policy.canAttempt(ADDRESS, 6999));
+        assertTrue(policy.canAttempt(ADDRESS, 7000));
+        assertEquals(3, policy.getFailureCount(ADDRESS));
+    }
+
+    @Test
+    public void capsTheBackoff() {
+        GattRetryPolicy policy = new GattRetryPolicy();
+        policy.setBaseBackoff(1000);
+        policy.setMaxBackoff(3000);
+        policy.setMaxFailures(10);
+
+        long now = 0;
+        for (int i = 0; i < 5; i++) {
+            policy.onFailure(ADDRESS, now);
+        }
+        assertTrue(policy.canAttempt(ADDRESS, 3000));
+    }
+
+    @Test
+    public void keepsTheBackoffCappedPastManyFailures() {
+        GattRetryPolicy policy = new GattRetryPolicy();
+        policy.setMaxFailures(200);
+
+        // from the 6th failure on the doubled base backoff is past the cap, and from the 54th it
+        // would overflow a long
+        for (int failures = 1; failures < 150; failures++) {
+            policy.onFailure(ADDRESS, 0);
+            if (failures >= 6) {
+                assertFalse(policy.canAttempt(ADDRESS, policy.getMaxBackoff() - 1));
+                assertTrue(policy.canAttempt(ADDRESS, policy.getMaxBackoff()));
+            }
+        }
+    }
+
+    @Test
+    public void rejectsMaxFailuresBelowOne() {
+        try {
+            new GattRetryPolicy().setMaxFailures(0);
+            throw new AssertionError("expected the max failures to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void givesUpAfterMaxFailuresAndTriesOnceMoreLater() {
+        GattRetryPolicy policy = new GattRetryPolicy();
+        policy.setMaxFailures(3);
+        policy.setGiveUpInterval(100000);
+
+        for (int i = 0; i < 3; i++) {
+            policy.onFailure(ADDRESS, 0);
+        }
+        assertTrue(policy.isGivenUp(ADDRESS, 50000));
+        assertFalse(policy.canAttempt(ADDRESS, 99999));
+
+        // half open: one more attempt, and straight back to given up if it fails
+        assertTrue(policy.canAttempt(ADDRESS, 100000));
+        policy.onFailure(ADDRESS, 100000);
+        assertTrue(policy.isGivenUp(ADDRESS, 100001));
+    }
+
+    @Test
+    public void successResetsTheDevice() {
+        GattRetryPolicy policy = new GattRetryPolicy();
+        policy.onFailure(ADDRESS, 0);
+        policy.onSuccess(ADDRESS);
+        assertTrue(policy.canAttempt(ADDRESS, 0));
+        assertEquals(0, policy.getFailureCount(ADDRESS));
+    }
+
+    @Test
+    public void prunesExpiredBackoffs() {
+        GattRetryPolicy policy = new GattRetryPolicy();
+        policy.setBaseBackoff(1000);
+        policy.setMaxBackoff(1000);
+        policy.onFailure(ADDRESS, 0);
+        policy.prune(1500);
+        assertEquals(1, policy.size());
+        policy.prune(2000);
+        assertEquals(0, policy.size());
+    }
+
+    @Test
+    public void prunesDevicesGivenUpOnOnceTheyWerentSeenAgain() {
+        GattRetryPolicy policy = new GattRetryPolicy();
+        policy.setMaxFailures(2);
+        policy.setGiveUpInterval(100000);
+        policy.onFailure(ADDRESS, 0);
+        policy.onFailure(ADDRESS, 0);
+
+        // still given up, then waiting for its one more attempt
+        policy.prune(100000);
+        assertEquals(1, policy.size());
+        policy.prune(199999);
+        assertEquals(1, policy.size());
+        policy.prune(200000);
+        assertEquals(0, policy.size());
+    }
+}
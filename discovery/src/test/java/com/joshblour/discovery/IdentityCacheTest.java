@@ -0,0 +1,151 @@
+package com.joshblour.discovery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IdentityCacheTest {
+    private static final long NOW = 1450000000000L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("identities", ".bin");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void packsAddresses() {
+        long packed = MacAddress.pack("AA:BB:CC:DD:EE:0F");
+        assertEquals(0xAABBCCDDEE0FL, packed);
+        assertEquals("AA:BB:CC:DD:EE:0F", MacAddress.unpack(packed));
+        assertEquals(packed, MacAddress.pack("aa:bb:cc:dd:ee:0f"));
+        assertEquals(MacAddress.INVALID, MacAddress.pack("AA:BB:CC:DD:EE"));
+        assertEquals(MacAddress.INVALID, MacAddress.pack("AA-BB-CC-DD-EE-0F"));
+        assertEquals(MacAddress.INVALID, MacAddress.pack(null));
+    }
+
+    @Test
+    public void roundTripsThroughTheFile() throws IOException {
+        IdentityCache cache = new IdentityCache(mFile);
+        cache.load(NOW);
+        cache.put(1L, "joshblour", true, NOW);
+        cache.put(2L, null, false, NOW);
+        cache.put(3L, null, null, NOW);
+        cache.save(NOW);
+
+        IdentityCache restored = new IdentityCache(mFile);
+        assertNull(restored.get(1L, NOW));
+        restored.load(NOW);
+
+        IdentityCache.Entry entry = restored.get(1L, NOW);
+        assertEquals("joshblour", entry.getUsername());
+        assertEquals(Boolean.TRUE, entry.isMyService());
+        assertEquals(NOW, entry.getLastSeen());
+        assertEquals(Boolean.FALSE, restored.get(2L, NOW).isMyService());
+        assertNull(restored.get(2L, NOW).getUsername());
+        assertNull(restored.get(3L, NOW).isMyService());
+        assertEquals(3, restored.size());
+    }
+
+    @Test
+    public void expiresEntries() throws IOException {
+        IdentityCache cache = new IdentityCache(mFile);
+        cache.setTimeToLive(1000);
+        cache.load(NOW);
+        cache.put(1L, "old", true, NOW);
+        cache.put(2L, "new", true, NOW + 900);
+        assertNull(cache.get(1L, NOW + 1001));
+        assertNotNull(cache.get(2L, NOW + 1001));
+        cache.save(NOW + 1001);
+
+        IdentityCache restored = new IdentityCache(mFile);
+        restored.setTimeToLive(1000);
+        restored.load(NOW + 1950);
+        assertEquals(0, restored.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        IdentityCache cache = new IdentityCache(mFile);
+        cache.setMaxEntries(2);
+        cache.load(NOW);
+        cache.put(1L, "a", true, NOW);
+        cache.put(2L, "b", true, NOW);
+        cache.get(1L, NOW);
+        cache.put(3L, "c", true, NOW);
+
+        assertNotNull(cache.get(1L, NOW));
+        assertNull(cache.get(2L, NOW));
+        assertNotNull(cache.get(3L, NOW));
+    }
+
+    @Test
+    public void keepsEntriesPutBeforeLoading() throws IOException {
+        IdentityCache cache = new IdentityCache(mFile);
+        cache.load(NOW);
+        cache.put(1L, "stale", true, NOW);
+        cache.save(NOW);
+
+        IdentityCache restored = new IdentityCache(mFile);
+        restored.put(1L, "fresh", true, NOW + 1);
+        restored.load(NOW + 1);
+        assertEquals("fresh", restored.get(1L, NOW + 1).getUsername());
+    }
+
+    @Test
+    public void ignoresCorruptFiles() throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[]{0x44, 0x53, 0x49, 0x43, 1, 0, 0, 0, 5, 1, 2});
+        out.close();
+
+        IdentityCache cache = new IdentityCache(mFile);
+        cache.load(NOW);
+        assertTrue(cache.isLoaded());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void loadsTenThousandEntriesQuickly() throws IOException {
+        IdentityCache cache = new IdentityCache(mFile);
+        cache.setMaxEntries(10000);
+        cache.load(NOW);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(0x100000000000L + i, "user" + i, i % 3 != 0, NOW);
+        }
+        cache.save(NOW);
+        assertFalse(cache.isDirty());
+
+        IdentityCache restored = null;
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            restored = new IdentityCache(mFile);
+            restored.setMaxEntries(10000);
+            long start = System.nanoTime();
+            restored.load(NOW);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        // about 25 bytes an entry
+        assertTrue(mFile.length() < 10000 * 32);
+        assertEquals(10000, restored.size());
+        assertEquals("user42", restored.get(0x100000000000L + 42, NOW).getUsername());
+        assertTrue("cold load took " + best / 1000000 + "ms", best < 500 * 1000000L);
+    }
+}
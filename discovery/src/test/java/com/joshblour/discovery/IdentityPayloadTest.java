@@ -0,0 +1,61 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IdentityPayloadTest {
+
+    @Test
+    public void packsSixteenCharactersIntoAScanResponse() {
+        String username = "Yonah.Forst_2016";
+        byte[] payload = IdentityPayload.encode(username);
+        assertEquals(IdentityPayload.MAX_PAYLOAD_LENGTH, payload.length);
+        assertEquals(username, IdentityPayload.decode(payload, 0, payload.length));
+    }
+
+    @Test
+    public void fallsBackToUtf8() {
+        String username = "jos\u00e9";
+        byte[] payload = IdentityPayload.encode(username);
+        assertEquals(IdentityPayload.ENCODING_UTF8, (payload[0] & 0xFF) >>> 6);
+        assertEquals(username, IdentityPayload.decode(payload, 0, payload.length));
+    }
+
+    @Test
+    public void returnsNullWhenTheUsernameDoesNotFit() {
+        assertNull(IdentityPayload.encode("ThisUsernameIsMuchTooLong"));
+        assertNull(IdentityPayload.encode("emails@are-too-long"));
+        assertNull(IdentityPayload.encode(""));
+        assertNull(IdentityPayload.encode(null));
+    }
+
+    @Test
+    public void decodesFromTheServiceDataOfAScanRecord() {
+        byte[] payload = IdentityPayload.encode("joshblour");
+        // scan response with service data for our 128 bit uuid
+        byte[] header = ScanRecordParserTest.bytes(
+                payload.length + 17, 0x21,
+                0x99, 0xFE, 0x57, 0x6B, 0x55, 0x25, 0xF9, 0xAF, 0x6E, 0x46, 0xF8, 0xF5, 0x30, 0x7F, 0x40, 0xB9);
+        byte[] record = new byte[header.length + payload.length];
+        System.arraycopy(header, 0, record, 0, header.length);
+        System.arraycopy(payload, 0, record, header.length, payload.length);
+
+        ScanRecordParser parser = new ScanRecordParser();
+        assertTrue(parser.parse(record));
+        int index = parser.findServiceData(java.util.UUID.fromString("B9407F30-F5F8-466E-AFF9-25556B57FE99"));
+        assertEquals(0, index);
+        assertEquals("joshblour", IdentityPayload.decode(record,
+                parser.getServiceDataOffset(index), parser.getServiceDataLength(index)));
+    }
+
+    @Test
+    public void rejectsTruncatedPayloads() {
+        byte[] payload = IdentityPayload.encode("joshblour");
+        assertNull(IdentityPayload.decode(payload, 0, payload.length - 1));
+        assertNull(IdentityPayload.decode(new byte[]{0}, 0, 1));
+        assertNull(IdentityPayload.decode(null, 0, 0));
+    }
+}
@@ -0,0 +1,80 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class IdentityResolverTest {
+
+    @Test
+    public void linksANewAddressAdvertisingAKnownUsername() {
+        ProximityIndex index = new ProximityIndex();
+        BLEUser alice = createUser(0, "alice", -60, 10000);
+        BLEUser bob = createUser(1, "bob", -62, 10000);
+        index.update(alice);
+        index.update(bob);
+
+        IdentityResolver resolver = new IdentityResolver();
+        BLEUser rotated = createUser(2, null, 0, 11000);
+        assertSame(alice, resolver.resolve(index, rotated, "alice", -63, 11000));
+        assertSame(bob, resolver.resolve(index, rotated, "bob", -63, 11000));
+        assertNull(resolver.resolve(index, rotated, "carol", -63, 11000));
+        assertEquals(2, resolver.getResolvedCount());
+    }
+
+    @Test
+    public void needsTimingAndRssiContinuity() {
+        ProximityIndex index = new ProximityIndex();
+        BLEUser alice = createUser(0, "alice", -60, 10000);
+        index.update(alice);
+        IdentityResolver resolver = new IdentityResolver();
+        BLEUser rotated = createUser(2, null, 0, 0);
+
+        // the old address was still in use after the new one showed up
+        assertNull(resolver.resolve(index, rotated, "alice", -60, 9000));
+        // gone for too long
+        assertNull(resolver.resolve(index, rotated, "alice", -60, 16000));
+        // jumped from -60 to -85
+        assertNull(resolver.resolve(index, rotated, "alice", -85, 11000));
+        assertSame(alice, resolver.resolve(index, rotated, "alice", -70, 11000));
+
+        resolver.setEnabled(false);
+        assertNull(resolver.resolve(index, rotated, "alice", -60, 11000));
+    }
+
+    @Test
+    public void linksPeersWithoutAUsernameOnlyIfUnambiguous() {
+        ProximityIndex index = new ProximityIndex();
+        BLEUser alice = createUser(0, "alice", -60, 10000);
+        BLEUser bob = createUser(1, "bob", -80, 10000);
+        index.update(alice);
+        index.update(bob);
+
+        IdentityResolver resolver = new IdentityResolver();
+        BLEUser rotated = createUser(2, null, 0, 0);
+        rotated.setIsMyService(true);
+        // off by default
+        assertNull(resolver.resolve(index, rotated, null, -61, 11000));
+
+        resolver.setResolveWithoutUsername(true);
+        assertSame(alice, resolver.resolve(index, rotated, null, -61, 11000));
+        // both fit
+        assertNull(resolver.resolve(index, rotated, null, -70, 11000));
+
+        // and only for peers we know are ours
+        rotated.setIsMyService(null);
+        assertNull(resolver.resolve(index, rotated, null, -61, 11000));
+    }
+
+    private static BLEUser createUser(long address, String username, int proximity, long updateTime) {
+        BLEUser user = new BLEUser(MacAddress.unpack(address));
+        user.setUsername(username);
+        user.setIsMyService(username != null);
+        user.setIdentified(username != null);
+        user.setProximity(proximity);
+        user.setUpdateTime(updateTime);
+        return user;
+    }
+}
@@ -0,0 +1,158 @@
+package com.joshblour.discovery;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LongHashMapTest {
+
+    @Test
+    public void putGetRemove() {
+        LongHashMap<String> map = new LongHashMap<>();
+        assertNull(map.put(1L, "a"));
+        assertNull(map.put(-1L, "b"));
+        assertEquals("a", map.put(1L, "c"));
+        assertEquals("c", map.get(1L));
+        assertEquals("b", map.get(-1L));
+        assertEquals(2, map.size());
+
+        assertEquals("c", map.remove(1L));
+        assertNull(map.remove(1L));
+        assertNull(map.get(1L));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        LongHashMap<Long> map = new LongHashMap<>();
+        Map<Long, Long> reference = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200000; i++) {
+            // a small key space so removals hit long probe chains
+            long key = random.nextInt(2000) * 0x10000000000L + random.nextInt(4);
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(reference.put(key, key), map.put(key, key));
+                    break;
+                case 1:
+                    assertEquals(reference.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(reference.get(key), map.get(key));
+                    break;
+            }
+        }
+
+        assertEquals(reference.size(), map.size());
+        int walked = 0;
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            Long value = map.valueAt(slot);
+            if (value != null) {
+                assertEquals(value.longValue(), map.keyAt(slot));
+                walked++;
+            }
+        }
+        assertEquals(reference.size(), walked);
+    }
+
+    @Test
+    public void usersMapViewIsReadOnly() {
+        LongHashMap<BLEUser> users = new LongHashMap<>();
+        BLEUser user = new BLEUser("AA:BB:CC:DD:EE:FF");
+        users.put(MacAddress.pack(user.getDeviceAddress()), user);
+
+        Map<String, BLEUser> view = new UsersMapView(users);
+        assertSame(user, view.get("AA:BB:CC:DD:EE:FF"));
+        assertTrue(view.containsKey("AA:BB:CC:DD:EE:FF"));
+        assertFalse(view.containsKey("AA:BB:CC:DD:EE:00"));
+        assertEquals(1, view.size());
+        assertSame(user, view.values().iterator().next());
+        assertEquals("AA:BB:CC:DD:EE:FF", view.keySet().iterator().next());
+
+        try {
+            view.put("AA:BB:CC:DD:EE:00", user);
+            throw new AssertionError("expected the view to be read-only");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    /**
+     * Looked up with fresh strings, like the ones BluetoothDevice.getAddress() hands us, the
+     * addresses of 10k peers from one vendor (the same upper half) are all found, and the map
+     * only grows as far as its 3/4 load factor needs.
+     */
+    @Test
+    public void findsTenThousandPeersByTheirAddressStrings() {
+        int peers = 10000;
+        LongHashMap<String> map = new LongHashMap<>();
+        for (int i = 0; i < peers; i++) {
+            String address = MacAddress.unpack(0x5C0A5B000000L + i * 7919L);
+            map.put(MacAddress.pack(address), address);
+        }
+
+        assertEquals(peers, map.size());
+        assertTrue(map.capacity() <= 2 * peers * 4 / 3);
+        for (int i = 0; i < peers; i++) {
+            String address = new String(MacAddress.unpack(0x5C0A5B000000L + i * 7919L).toCharArray());
+            assertEquals(address, map.get(MacAddress.pack(address)));
+        }
+        assertNull(map.get(MacAddress.pack("5C:0A:5B:00:00:01")));
+    }
+
+    /**
+     * Not a rigorous benchmark, it just prints the lookup cost of the map Discovery used to use
+     * (String keys, hashing the address string) against packing the address and probing.
+     * Timings depend on the machine, so it's ignored in normal runs and asserts nothing.
+     */
+    @Ignore("benchmark, run it by hand")
+    @Test
+    public void compareLookupCostWithHashMap() {
+        for (int peers : new int[]{100, 1000, 10000}) {
+            String[] addresses = new String[peers];
+            HashMap<String, Object> hashMap = new HashMap<>();
+            LongHashMap<Object> longMap = new LongHashMap<>();
+            for (int i = 0; i < peers; i++) {
+                // fresh strings, like the ones BluetoothDevice.getAddress() hands us
+                addresses[i] = new String(MacAddress.unpack(0x5C0A5B000000L + i * 7919L).toCharArray());
+                hashMap.put(MacAddress.unpack(0x5C0A5B000000L + i * 7919L), addresses[i]);
+                longMap.put(MacAddress.pack(addresses[i]), addresses[i]);
+            }
+
+            int lookups = 2000000;
+            long hashMapTime = Long.MAX_VALUE;
+            long longMapTime = Long.MAX_VALUE;
+            int found = 0;
+            for (int run = 0; run < 5; run++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    String address = new String(addresses[i % peers].toCharArray());
+                    if (hashMap.get(address) != null)
+                        found++;
+                }
+                hashMapTime = Math.min(hashMapTime, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    String address = new String(addresses[i % peers].toCharArray());
+                    if (longMap.get(MacAddress.pack(address)) != null)
+                        found++;
+                }
+                longMapTime = Math.min(longMapTime, System.nanoTime() - start);
+            }
+
+            // found is printed so the lookups can't be optimized away
+            System.out.println(String.format("%5d peers: HashMap<String> %.1f ns/lookup, LongHashMap %.1f ns/lookup (%d found)",
+                    peers, hashMapTime / (double) lookups, longMapTime / (double) lookups, found));
+        }
+    }
+}
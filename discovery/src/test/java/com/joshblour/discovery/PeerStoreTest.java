@@ -0,0 +1,181 @@
+package com.joshblour.discovery;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PeerStoreTest {
+
+    @Test
+    public void reusesTheSlotsOfForgottenUsers() {
+        PeerStore store = new PeerStore(2);
+        BLEUser first = new BLEUser("AA:BB:CC:DD:EE:00");
+        BLEUser second = new BLEUser("AA:BB:CC:DD:EE:01");
+        first.attach(store);
+        second.attach(store);
+        first.setRssiFilter(RssiFilter.ema(1000));
+        first.setRssi(-60, 0);
+
+        first.detach();
+        assertEquals(1, store.size());
+        BLEUser third = new BLEUser("AA:BB:CC:DD:EE:02");
+        third.attach(store);
+        assertEquals(2, store.capacity());
+        // it starts over, with the default filter
+        assertTrue(RssiFilter.eased() == third.getRssiFilter());
+        assertEquals(-1, store.mFilterTimes[third.mSlot]);
+
+        // and more users make room for themselves
+        new BLEUser("AA:BB:CC:DD:EE:03").attach(store);
+        assertEquals(4, store.capacity());
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    public void keepsEveryUsersStateWhenAFilterNeedsMore() {
+        PeerStore store = new PeerStore(4);
+        BLEUser kalman = new BLEUser("AA:BB:CC:DD:EE:00");
+        BLEUser median = new BLEUser("AA:BB:CC:DD:EE:01");
+        BLEUser standalone = new BLEUser("AA:BB:CC:DD:EE:02");
+        kalman.attach(store);
+        median.attach(store);
+        kalman.setRssiFilter(RssiFilter.kalman(4, 16));
+        standalone.setRssiFilter(RssiFilter.kalman(4, 16));
+        for (long time = 0; time < 1000; time += 100) {
+            kalman.setRssi(-60 - (int) (time % 300) / 10, time);
+            standalone.setRssi(-60 - (int) (time % 300) / 10, time);
+        }
+
+        median.setRssiFilter(RssiFilter.median(9, 5000));
+        median.setRssi(-70, 1000);
+        kalman.setRssi(-50, 1000);
+        standalone.setRssi(-50, 1000);
+        assertEquals(standalone.getProximity(), kalman.getProximity());
+        assertEquals(-70, median.getProximity().intValue());
+    }
+
+    @Test
+    public void copiesKeepTheFilterButNotTheStore() {
+        PeerStore store = new PeerStore(1);
+        BLEUser user = new BLEUser("AA:BB:CC:DD:EE:00");
+        user.attach(store);
+        user.setRssiFilter(RssiFilter.kalman(4, 16));
+        user.setRssi(-60, 0);
+
+        BLEUser copy = new BLEUser(user);
+        assertTrue(user.getRssiFilter() == copy.getRssiFilter());
+        assertEquals(-60, copy.getProximity().intValue());
+        assertNull(copy.mStore);
+        // nor do standalone users get one before their first sample
+        assertNull(new BLEUser(copy).mStore);
+
+        // without aggregation or zones, their columns aren't allocated
+        assertNull(store.mWindowCounts);
+        assertNull(store.mPendingZones);
+    }
+
+    /**
+     * What 5000 tracked peers and a copy of each for the app take, against the same peers with
+     * their sampling state in fields and a filter state array on every user, like before the
+     * store (see FieldsUser).
+     */
+    @Test
+    public void takesLessHeapThanFieldsOnEveryUser() {
+        AllocationCounter allocations = AllocationCounter.start();
+
+        int peers = 5000;
+        String[] addresses = new String[peers];
+        for (int i = 0; i < peers; i++) {
+            addresses[i] = MacAddress.unpack(i);
+        }
+        RssiFilter filter = RssiFilter.kalman(4, 16);
+        ProximityZones zones = new ProximityZones();
+        BLEUser[] users = new BLEUser[peers];
+        BLEUser[] copies = new BLEUser[peers];
+        FieldsUser[] fieldsUsers = new FieldsUser[peers];
+        FieldsUser[] fieldsCopies = new FieldsUser[peers];
+
+        allocations.reset();
+        PeerStore store = new PeerStore(peers);
+        for (int i = 0; i < peers; i++) {
+            BLEUser user = new BLEUser(addresses[i]);
+            user.attach(store);
+            user.setRssiFilter(filter);
+            user.setRssi(-60, i);
+            zones.update(user, i);
+            users[i] = user;
+        }
+        long tracked = allocations.allocated();
+        allocations.reset();
+        for (int i = 0; i < peers; i++) {
+            copies[i] = new BLEUser(users[i]);
+        }
+        long copied = allocations.allocated();
+
+        allocations.reset();
+        for (int i = 0; i < peers; i++) {
+            FieldsUser user = new FieldsUser(addresses[i]);
+            user.mRssiFilter = filter;
+            user.mFilterState = new float[filter.stateSize()];
+            fieldsUsers[i] = user;
+        }
+        long fieldsTracked = allocations.allocated();
+        allocations.reset();
+        for (int i = 0; i < peers; i++) {
+            fieldsCopies[i] = new FieldsUser(fieldsUsers[i].mDeviceAddress);
+        }
+        long fieldsCopied = allocations.allocated();
+
+        // a tenth less for a tracked peer, a fifth less for a copy
+        assertTrue(tracked * 10 < fieldsTracked * 9);
+        assertTrue(copied * 10 < fieldsCopied * 8);
+        assertEquals(peers, store.size());
+    }
+
+    // BLEUser with its sampling state in fields, the way it was before the store
+    @SuppressWarnings("unused")
+    private static class FieldsUser {
+        BluetoothDevice mDevice;
+        String mDeviceAddress;
+        String mCurrentAddress;
+        String mUsername;
+        Boolean mIdentified;
+        Boolean mIsMyService;
+        int mRssi;
+        int mProximity;
+        long mUpdateTime;
+        RssiFilter mRssiFilter;
+        float[] mFilterState;
+        long mFilterTime = -1;
+        int mIndexRank = -1;
+        boolean mDelivered;
+        int mPendingChanges;
+        int mZone = ProximityZones.UNKNOWN;
+        int mPendingZone = ProximityZones.UNKNOWN;
+        long mPendingZoneSince;
+        int mWindowCount;
+        int mWindowSum;
+        int mWindowMax;
+        long mWindowStart;
+        long mWindowTime;
+        byte[] mWindowScanRecord;
+        boolean mWindowOpen;
+        boolean mOverflowBitClear;
+        FieldsUser mExpiryNext;
+        FieldsUser mExpiryPrev;
+        int mExpirySlot = -1;
+        long mExpirySeen;
+        FieldsUser mLruNext;
+        FieldsUser mLruPrev;
+        int mLruClass = -1;
+
+        FieldsUser(String deviceAddress) {
+            mDeviceAddress = deviceAddress;
+            mCurrentAddress = deviceAddress;
+        }
+    }
+}
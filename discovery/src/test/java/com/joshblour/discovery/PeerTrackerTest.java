@@ -0,0 +1,339 @@
+package com.joshblour.discovery;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static com.joshblour.discovery.ScanRecordParserTest.bytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PeerTracker with null devices and a host that records what it's asked to do.
+ */
+public class PeerTrackerTest {
+    private static final UUID SERVICE_UUID = UUID.fromString("B9407F30-F5F8-466E-AFF9-25556B57FE99");
+    private static final String ALICE = "AA:BB:CC:DD:EE:01";
+    private static final String BOB = "AA:BB:CC:DD:EE:02";
+    private static final String HEART_RATE = "AA:BB:CC:DD:EE:03";
+
+    private static class RecordingHost implements PeerTracker.Host {
+        final ArrayList<String> mIdentifyRequests = new ArrayList<>();
+        int mNewPeerCount;
+        int mIdentityCacheChangedCount;
+        int mListChangedCount;
+
+        @Override
+        public void identify(BluetoothDevice device, String address, int rssi) {
+            mIdentifyRequests.add(address);
+        }
+
+        @Override
+        public String getName(BluetoothDevice device) {
+            return null;
+        }
+
+        @Override
+        public boolean hasCachedService(BluetoothDevice device, UUID uuid) {
+            return false;
+        }
+
+        @Override
+        public void onNewPeer() {
+            mNewPeerCount++;
+        }
+
+        @Override
+        public void onIdentityCacheChanged() {
+            mIdentityCacheChangedCount++;
+        }
+
+        @Override
+        public void onListChanged() {
+            mListChangedCount++;
+        }
+    }
+
+    private RecordingHost mHost;
+    private FakeClock mClock;
+    private PeerTracker mTracker;
+
+    @Before
+    public void setUp() {
+        mHost = new RecordingHost();
+        mClock = new FakeClock();
+        mTracker = new PeerTracker(mHost, SERVICE_UUID, mClock, new IdentityCache(null));
+    }
+
+    @Test
+    public void listsAPeerIdentifiedFromItsAdvertisement() {
+        assertTrue(scan(ALICE, -60, foreground("alice"), 0));
+
+        BLEUser alice = mTracker.getUsersMap().get(ALICE);
+        assertTrue(alice.isIdentified());
+        assertEquals("alice", alice.getUsername());
+        assertEquals(1, mTracker.getProximityIndex().size());
+        assertEquals(1, mHost.mNewPeerCount);
+        assertEquals(1, mHost.mIdentityCacheChangedCount);
+        assertTrue(mHost.mIdentifyRequests.isEmpty());
+
+        // nothing new to tell after that
+        assertFalse(scan(ALICE, -62, foreground("alice"), 100));
+        assertEquals(1, mHost.mNewPeerCount);
+    }
+
+    @Test
+    public void connectsToReadTheUsernameOfAPeerAdvertisingOurService() {
+        scan(BOB, -60, serviceOnly(), 0);
+        assertEquals(Arrays.asList(BOB), mHost.mIdentifyRequests);
+        assertTrue(mTracker.getUsersMap().get(BOB).isMyService());
+        assertEquals(0, mTracker.getProximityIndex().size());
+
+        mTracker.didIdentify(null, BOB, "bob");
+        assertEquals(1, mTracker.getProximityIndex().size());
+        assertEquals("bob", mTracker.getProximityIndex().get(0).getUsername());
+        assertEquals(1, mHost.mListChangedCount);
+    }
+
+    @Test
+    public void ignoresDevicesThatArentOursAfterTheyTimeOut() {
+        mTracker.setUserTimeout(5000);
+        scan(HEART_RATE, -70, foreign("HRM"), 0);
+        // it has a name, but we don't know whether it's ours
+        assertEquals(Arrays.asList(HEART_RATE), mHost.mIdentifyRequests);
+
+        mTracker.failedToMatchService(null, HEART_RATE);
+        assertFalse(mTracker.getUsersMap().get(HEART_RATE).isMyService());
+        assertEquals(0, mTracker.getProximityIndex().size());
+        assertEquals(0, mHost.mListChangedCount);
+
+        mClock.mNow = 6000;
+        assertEquals(1, mTracker.removeExpiredUsers(mClock.now()));
+        assertEquals(0, mTracker.size());
+        // the foreign device filter drops it before it's tracked again
+        assertFalse(scan(HEART_RATE, -70, foreign("HRM"), 6000));
+        assertEquals(0, mTracker.size());
+        assertEquals(1, mHost.mIdentifyRequests.size());
+    }
+
+    @Test
+    public void removesUsersThatTimeOut() {
+        mTracker.setUserTimeout(5000);
+        scan(ALICE, -60, foreground("alice"), 0);
+        scan(BOB, -60, foreground("bob"), 3000);
+
+        mClock.mNow = 4000;
+        assertEquals(0, mTracker.removeExpiredUsers(mClock.now()));
+        mClock.mNow = 6000;
+        assertEquals(1, mTracker.removeExpiredUsers(mClock.now()));
+        assertNull(mTracker.getUsersMap().get(ALICE));
+        assertEquals(1, mTracker.getProximityIndex().size());
+        assertEquals("bob", mTracker.getProximityIndex().get(0).getUsername());
+    }
+
+    @Test
+    public void doesntTimeUsersOutWhileTheScannerIsIdle() {
+        mTracker.setUserTimeout(5000);
+        scan(ALICE, -60, foreground("alice"), 0);
+
+        // scanning for three seconds, then a long gap in the scan cycle
+        mTracker.onScanStopped(3000);
+        mClock.mNow = 20000;
+        assertEquals(0, mTracker.removeExpiredUsers(mClock.now()));
+
+        // two more seconds of scanning without seeing alice is the five she wasn't seen for
+        mTracker.onScanStarted(20000);
+        mClock.mNow = 21900;
+        assertEquals(0, mTracker.removeExpiredUsers(mClock.now()));
+        mClock.mNow = 22500;
+        assertEquals(1, mTracker.removeExpiredUsers(mClock.now()));
+    }
+
+    @Test
+    public void evictsDevicesThatArentOursFirst() {
+        mTracker.setMaxUsers(2);
+        scan(ALICE, -60, foreground("alice"), 0);
+        scan(HEART_RATE, -70, foreign("HRM"), 100);
+        mTracker.failedToMatchService(null, HEART_RATE);
+
+        scan(BOB, -60, foreground("bob"), 200);
+        assertEquals(2, mTracker.size());
+        assertNull(mTracker.getUsersMap().get(HEART_RATE));
+        assertEquals(1, mTracker.getEvictedCount());
+        assertEquals(0, mTracker.getEvictedIdentifiedCount());
+        assertEquals(2, mTracker.getProximityIndex().size());
+    }
+
+    @Test
+    public void doesntPushOutListedUsersForDevicesItHasntWorkedOut() {
+        mTracker.setMaxUsers(2);
+        scan(ALICE, -60, foreground("alice"), 0);
+        scan(BOB, -60, foreground("bob"), 100);
+
+        // full of listed users, a device we know nothing about yet isn't tracked
+        assertFalse(scan(HEART_RATE, -70, foreign("HRM"), 200));
+        assertNull(mTracker.getUsersMap().get(HEART_RATE));
+        assertEquals(0, mTracker.getEvictedCount());
+        assertEquals(2, mTracker.getProximityIndex().size());
+
+        // one we connected to and found is ours takes the place of the least recently seen
+        mTracker.didIdentify(null, HEART_RATE, "carol");
+        assertNull(mTracker.getUsersMap().get(ALICE));
+        assertEquals(1, mTracker.getEvictedIdentifiedCount());
+        assertEquals(2, mTracker.getProximityIndex().size());
+    }
+
+    @Test
+    public void leavesOpenAggregationWindowsOpenWhenCheckingForExpiredUsers() {
+        mTracker.setUserTimeout(5000);
+        mTracker.getSampleAggregator().setWindow(1000);
+        scan(ALICE, -60, foreground("alice"), 0);
+        scan(BOB, -60, foreground("bob"), 0);
+
+        // alice keeps advertising, the samples wait in a window
+        scan(ALICE, -50, foreground("alice"), 4500);
+        assertEquals(0, mTracker.removeExpiredUsers(4600));
+        assertTrue(mTracker.getSampleAggregator().hasWindow(mTracker.getUsersMap().get(ALICE)));
+
+        // bob's time is up, the samples in the window keep alice
+        mClock.mNow = 5300;
+        assertEquals(1, mTracker.removeExpiredUsers(5300));
+        assertNull(mTracker.getUsersMap().get(BOB));
+        assertEquals(4500, mTracker.getUsersMap().get(ALICE).getUpdateTime());
+    }
+
+    @Test
+    public void recordsRenamesForTheDeltaCallback() {
+        scan(ALICE, -60, foreground("alice"), 0);
+        mTracker.setDeltasEnabled(true);
+        assertTrue(mTracker.hasDelta());
+        assertEquals(1, mTracker.takeDelta().getAdded().size());
+        assertFalse(mTracker.hasDelta());
+
+        // a gatt read brings the full username, which didn't fit in the advertisement
+        mTracker.didIdentify(null, ALICE, "alice in wonderland");
+        UsersDelta delta = mTracker.takeDelta();
+        assertEquals(1, delta.getRenamed().size());
+        assertEquals("alice in wonderland", delta.getRenamed().get(0).getUser().getUsername());
+    }
+
+    @Test
+    public void carriesOnWithTheKnownUserWhenAPeerRotatesItsAddress() {
+        // the eased filter starts from 0, this one from the first sample
+        mTracker.setRssiFilter(RssiFilter.kalman(4, 16));
+        scan(ALICE, -60, foreground("alice"), 0);
+        BLEUser alice = mTracker.getUsersMap().get(ALICE);
+
+        scan(BOB, -62, foreground("alice"), 1000);
+        assertEquals(1, mTracker.size());
+        assertEquals(1, mTracker.getProximityIndex().size());
+        assertTrue(alice == mTracker.getUsersMap().get(BOB));
+        assertNull(mTracker.getUsersMap().get(ALICE));
+        assertEquals(BOB, alice.getCurrentAddress());
+    }
+
+    @Test
+    public void deliversTheStrongestUsersAsTheNearest() {
+        mTracker.setRssiFilter(RssiFilter.kalman(4, 16));
+        mTracker.setNearestLimit(2);
+        scan(ALICE, -50, foreground("alice"), 0);
+        scan(BOB, -80, foreground("bob"), 0);
+        scan(HEART_RATE, -65, foreground("carol"), 0);
+
+        ArrayList<BLEUser> nearest = mTracker.copyNearest(2);
+        assertEquals(2, nearest.size());
+        assertEquals("alice", nearest.get(0).getUsername());
+        assertEquals("carol", nearest.get(1).getUsername());
+        // the callback gets them in the order of the whole list, furthest first
+        ArrayList<BLEUser> delivered = mTracker.copyDelivered();
+        assertEquals(2, delivered.size());
+        assertEquals("carol", delivered.get(0).getUsername());
+        assertEquals("alice", delivered.get(1).getUsername());
+
+        // bob coming closer than carol is a change, carol moving outside the nearest two isn't
+        assertTrue(scan(BOB, -60, foreground("bob"), 10000));
+        assertFalse(scan(HEART_RATE, -70, foreground("carol"), 10000));
+        assertEquals("bob", mTracker.copyNearest(2).get(1).getUsername());
+    }
+
+    @Test
+    public void checksTheOverflowBitAgainUntilItsSet() {
+        mTracker.setAppleOverflowArea(new AppleOverflowArea(106));
+        byte[] clear = bytes(
+                0x02, 0x01, 0x06,
+                0x14, 0xFF, 0x4C, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00);
+        byte[] set = clear.clone();
+        set[21] = 0x20;
+
+        // an iPhone in the background, without our app running
+        scan(BOB, -60, clear, 0);
+        assertFalse(mTracker.getUsersMap().get(BOB).isMyService());
+        assertTrue(mHost.mIdentifyRequests.isEmpty());
+        scan(BOB, -60, clear, 1000);
+        assertTrue(mHost.mIdentifyRequests.isEmpty());
+
+        // the app was started on it
+        scan(BOB, -60, set, 2000);
+        assertTrue(mTracker.getUsersMap().get(BOB).isMyService());
+        assertEquals(Arrays.asList(BOB), mHost.mIdentifyRequests);
+        mTracker.didIdentify(null, BOB, "bob");
+        assertEquals(1, mTracker.getProximityIndex().size());
+    }
+
+    private boolean scan(String address, int rssi, byte[] scanRecord, long time) {
+        mClock.mNow = Math.max(mClock.mNow, time);
+        boolean usersChanged = mTracker.onScanResult(null, address, rssi, scanRecord, time);
+        return mTracker.endScanResults(usersChanged, time);
+    }
+
+    // flags and our 128 bit service uuid, like an iOS peer in the foreground
+    private static byte[] serviceOnly() {
+        byte[] record = new byte[3 + 18];
+        record[0] = 0x02;
+        record[1] = 0x01;
+        record[2] = 0x1A;
+        record[3] = 0x11;
+        record[4] = 0x07;
+        System.arraycopy(uuidBytes(SERVICE_UUID), 0, record, 5, 16);
+        return record;
+    }
+
+    // our service uuid, and the username in the service data of the scan response, like an
+    // Android peer
+    static byte[] foreground(String username) {
+        byte[] record = serviceOnly();
+        byte[] payload = IdentityPayload.encode(username);
+        byte[] response = Arrays.copyOf(record, record.length + 18 + payload.length);
+        response[record.length] = (byte) (17 + payload.length);
+        response[record.length + 1] = 0x21;
+        System.arraycopy(uuidBytes(SERVICE_UUID), 0, response, record.length + 2, 16);
+        System.arraycopy(payload, 0, response, record.length + 18, payload.length);
+        return response;
+    }
+
+    // a heart rate sensor: the 16 bit 0x180D uuid and a local name
+    private static byte[] foreign(String name) {
+        byte[] bytes = name.getBytes();
+        byte[] record = new byte[9 + bytes.length];
+        System.arraycopy(new byte[]{0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18, (byte) (bytes.length + 1), 0x09}, 0, record, 0, 9);
+        System.arraycopy(bytes, 0, record, 9, bytes.length);
+        return record;
+    }
+
+    // uuids are advertised little endian
+    private static byte[] uuidBytes(UUID uuid) {
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (uuid.getLeastSignificantBits() >>> (8 * i));
+            bytes[8 + i] = (byte) (uuid.getMostSignificantBits() >>> (8 * i));
+        }
+        return bytes;
+    }
+}
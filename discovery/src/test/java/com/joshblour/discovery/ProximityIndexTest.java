@@ -0,0 +1,227 @@
+package com.joshblour.discovery;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProximityIndexTest {
+
+    @Test
+    public void keepsIdentifiedUsersInProximityOrder() {
+        ProximityIndex index = new ProximityIndex();
+        List<BLEUser> users = createUsers(200);
+        Random random = new Random(7);
+
+        for (int step = 0; step < 20000; step++) {
+            BLEUser user = users.get(random.nextInt(users.size()));
+            if (random.nextInt(20) == 0) {
+                user.setIdentified(!user.isIdentified());
+            }
+            user.setRssi(-30 - random.nextInt(70));
+            index.update(user);
+            if (random.nextInt(50) == 0) {
+                index.remove(user);
+                user.setIdentified(false);
+            }
+        }
+
+        assertOrdered(index, users);
+    }
+
+    @Test
+    public void removesUsersThatAreNoLongerIdentified() {
+        ProximityIndex index = new ProximityIndex();
+        BLEUser user = createUsers(1).get(0);
+        user.setIdentified(true);
+        index.update(user);
+        assertTrue(index.contains(user));
+
+        user.setIdentified(false);
+        index.update(user);
+        assertFalse(index.contains(user));
+        assertEquals(0, index.size());
+
+        // removing twice is harmless
+        index.remove(user);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void notesChangesToTheNearestUsersOnly() {
+        ProximityIndex index = new ProximityIndex();
+        index.setNearestLimit(10);
+        List<BLEUser> users = createUsers(500);
+        for (BLEUser user : users) {
+            user.setIdentified(true);
+            user.setRssi(-30 - users.indexOf(user) % 70);
+            index.update(user);
+        }
+        index.takeNearestChanged();
+
+        Random random = new Random(3);
+        List<BLEUser> nearest = nearest(index, 10);
+        int changes = 0;
+        for (int step = 0; step < 20000; step++) {
+            BLEUser user = users.get(random.nextInt(users.size()));
+            if (random.nextInt(100) == 0) {
+                user.setIdentified(!user.isIdentified());
+            }
+            user.setRssi(-30 - random.nextInt(70));
+            index.update(user);
+
+            // flagged exactly when the nearest users, or their order, changed
+            List<BLEUser> now = nearest(index, 10);
+            assertEquals(!now.equals(nearest), index.takeNearestChanged());
+            if (!now.equals(nearest))
+                changes++;
+            nearest = now;
+        }
+
+        assertOrdered(index, users);
+        // most updates are to users further away
+        assertTrue(changes < 20000 / 4);
+    }
+
+    /**
+     * The list delivered from the index is the one Discovery used to build for every callback
+     * (copy, filter, removeAll, sort), at 1k identified peers.
+     */
+    @Test
+    public void deliversWhatSortingEveryTimeDid() {
+        List<BLEUser> users = createUsers(1000);
+        ProximityIndex index = new ProximityIndex();
+        for (BLEUser user : users) {
+            user.setIdentified(true);
+            index.update(user);
+        }
+
+        Random random = new Random(3);
+        ArrayList<BLEUser> list = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            BLEUser user = users.get(random.nextInt(users.size()));
+            if (random.nextInt(20) == 0)
+                user.setIdentified(!user.isIdentified());
+            user.setRssi(-40 - random.nextInt(60));
+            index.update(user);
+
+            list.clear();
+            index.copyTo(list);
+            ArrayList<BLEUser> sorted = oldUpdateList(users);
+            assertEquals(sorted.size(), list.size());
+            // users as near as each other may come in any order
+            for (int rank = 0; rank < list.size(); rank++) {
+                assertEquals(sorted.get(rank).getProximity(), list.get(rank).getProximity());
+            }
+        }
+    }
+
+    /**
+     * Not a rigorous benchmark. Prints the cost of delivering the ordered list after an rssi
+     * update at 1k identified peers, the old way (copy, filter, removeAll, sort) against the index.
+     * Timings depend on the machine, so it's ignored in normal runs and asserts nothing.
+     */
+    @Ignore("benchmark, run it by hand")
+    @Test
+    public void compareCallbackCostAtOneThousandPeers() {
+        // separate users for each approach, the index must see every change to stay ordered
+        List<BLEUser> unindexed = createUsers(1000);
+        List<BLEUser> users = createUsers(1000);
+        ProximityIndex index = new ProximityIndex();
+        for (int i = 0; i < users.size(); i++) {
+            unindexed.get(i).setIdentified(true);
+            users.get(i).setIdentified(true);
+            index.update(users.get(i));
+        }
+
+        Random random = new Random(3);
+        int updates = 20000;
+        long oldTime = Long.MAX_VALUE;
+        long indexTime = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                BLEUser user = unindexed.get(random.nextInt(unindexed.size()));
+                user.setRssi(-40 - random.nextInt(60));
+                oldUpdateList(unindexed);
+            }
+            oldTime = Math.min(oldTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                BLEUser user = users.get(random.nextInt(users.size()));
+                user.setRssi(-40 - random.nextInt(60));
+                index.update(user);
+                ArrayList<BLEUser> list = new ArrayList<>(index.size());
+                index.copyTo(list);
+            }
+            indexTime = Math.min(indexTime, System.nanoTime() - start);
+        }
+
+        System.out.println(String.format("1k peers: copy-filter-sort %.1f us/callback, proximity index %.1f us/callback",
+                oldTime / 1000.0 / updates, indexTime / 1000.0 / updates));
+    }
+
+    // what Discovery.updateList() used to do
+    private static ArrayList<BLEUser> oldUpdateList(List<BLEUser> all) {
+        ArrayList<BLEUser> users = new ArrayList<>(all);
+        ArrayList<BLEUser> discardedItems = new ArrayList<>();
+        for (BLEUser user : users) {
+            if (!user.isIdentified()) {
+                discardedItems.add(user);
+            }
+        }
+        users.removeAll(discardedItems);
+        Collections.sort(users, new Comparator<BLEUser>() {
+            public int compare(BLEUser s1, BLEUser s2) {
+                return Integer.compare(s1.getProximity(), s2.getProximity());
+            }
+        });
+        return users;
+    }
+
+    // the nearest users are the last ones, nearest first
+    private static List<BLEUser> nearest(ProximityIndex index, int k) {
+        List<BLEUser> nearest = new ArrayList<>();
+        for (int rank = index.size() - 1; rank >= Math.max(0, index.size() - k); rank--) {
+            nearest.add(index.get(rank));
+        }
+        return nearest;
+    }
+
+    private static void assertOrdered(ProximityIndex index, List<BLEUser> users) {
+        int identified = 0;
+        for (BLEUser user : users) {
+            if (user.isIdentified()) {
+                identified++;
+                assertTrue(index.contains(user));
+            } else {
+                assertFalse(index.contains(user));
+            }
+        }
+        assertEquals(identified, index.size());
+
+        for (int rank = 1; rank < index.size(); rank++) {
+            assertTrue(index.get(rank - 1).getProximity() <= index.get(rank).getProximity());
+        }
+    }
+
+    private static List<BLEUser> createUsers(int count) {
+        List<BLEUser> users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            BLEUser user = new BLEUser(MacAddress.unpack(i));
+            user.setIdentified(false);
+            user.setRssi(-60);
+            users.add(user);
+        }
+        return users;
+    }
+}
@@ -0,0 +1,108 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProximityZonesTest {
+
+    @Test
+    public void splitsProximitiesAtTheBoundaries() {
+        ProximityZones zones = new ProximityZones();
+        assertEquals(3, zones.getZoneCount());
+        assertEquals(ProximityZones.IMMEDIATE, zones.zoneOf(-40));
+        assertEquals(ProximityZones.IMMEDIATE, zones.zoneOf(-55));
+        assertEquals(ProximityZones.NEAR, zones.zoneOf(-56));
+        assertEquals(ProximityZones.NEAR, zones.zoneOf(-75));
+        assertEquals(ProximityZones.FAR, zones.zoneOf(-76));
+    }
+
+    @Test
+    public void changesZonesPastTheHysteresisAfterTheDwellTime() {
+        ProximityZones zones = new ProximityZones(new int[]{-55, -75}, 3, 2000);
+        BLEUser user = createUser(-60);
+        assertEquals(ProximityZones.UNKNOWN, user.getZone());
+        assertTrue(zones.update(user, 0));
+        assertEquals(ProximityZones.NEAR, user.getZone());
+
+        // past the boundary, but not past the hysteresis
+        user.setProximity(-54);
+        assertFalse(zones.update(user, 1000));
+        user.setProximity(-53);
+        assertFalse(zones.update(user, 5000));
+        assertEquals(ProximityZones.NEAR, user.getZone());
+
+        // past the hysteresis, but not for long enough
+        user.setProximity(-50);
+        assertFalse(zones.update(user, 6000));
+        user.setProximity(-56);
+        assertFalse(zones.update(user, 7000));
+        user.setProximity(-50);
+        assertFalse(zones.update(user, 8000));
+        assertFalse(zones.update(user, 9000));
+        assertTrue(zones.update(user, 10000));
+        assertEquals(ProximityZones.IMMEDIATE, user.getZone());
+
+        // moving two zones at once
+        user.setProximity(-90);
+        assertFalse(zones.update(user, 11000));
+        assertTrue(zones.update(user, 13000));
+        assertEquals(ProximityZones.FAR, user.getZone());
+        assertEquals(ProximityZones.FAR, new BLEUser(user).getZone());
+    }
+
+    @Test
+    public void rejectsBoundariesOutOfOrder() {
+        try {
+            new ProximityZones(new int[]{-75, -55}, 3, 0);
+            throw new AssertionError("expected the boundaries to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * A user walking away from us, one sample a second through noisy rssi. The raw zone flips
+     * back and forth around every boundary, the zones change about as often as the user actually
+     * crosses one.
+     */
+    @Test
+    public void tracksMovementRatherThanNoise() {
+        ProximityZones zones = new ProximityZones();
+        Random random = new Random(5);
+        BLEUser user = createUser(-45);
+        zones.update(user, 0);
+
+        int rawChanges = 0;
+        int zoneChanges = 0;
+        int rawZone = zones.zoneOf(user.getProximity());
+        for (int second = 1; second <= 600; second++) {
+            // from -45dBm to -95dBm over five minutes and back again, with about 2dB of noise
+            // left after filtering
+            double distance = second <= 300 ? second / 300.0 : (600 - second) / 300.0;
+            user.setProximity((int) Math.round(-45 - 50 * distance + random.nextGaussian() * 2));
+
+            if (zones.zoneOf(user.getProximity()) != rawZone) {
+                rawZone = zones.zoneOf(user.getProximity());
+                rawChanges++;
+            }
+            if (zones.update(user, second * 1000L))
+                zoneChanges++;
+        }
+
+        // out through two boundaries and back in
+        assertEquals(4, zoneChanges);
+        // while the raw zone flips many times at each of them
+        assertTrue(rawChanges > 4 * zoneChanges);
+        assertEquals(ProximityZones.IMMEDIATE, user.getZone());
+    }
+
+    private static BLEUser createUser(int proximity) {
+        BLEUser user = new BLEUser("AA:BB:CC:DD:EE:FF");
+        user.setProximity(proximity);
+        return user;
+    }
+}
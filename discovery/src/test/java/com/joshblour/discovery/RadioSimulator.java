@@ -0,0 +1,354 @@
+package com.joshblour.discovery;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A headless BLE neighbourhood to load test PeerTracker on the JVM, without phones.
+ *
+ * Virtual peers advertise at their own interval on a virtual clock (a FakeClock the tracker reads
+ * too). The scanner hears each advertisement with an rssi that follows the peer's path (from
+ * mStartRssi to mEndRssi over mWalkTime) plus gaussian noise, and misses some of them. Peers may
+ * rotate their private address. What a peer advertises depends on its kind:
+ *  - FOREGROUND: our service uuid and its username in the service data, like Android peers
+ *  - GATT: our service uuid only, the username has to be read over gatt (like iOS peers, or
+ *    usernames too long to advertise)
+ *  - FOREIGN: somebody else's service and a name, a connection finds it isn't ours
+ *
+ * Connections are scheduled by the ConnectionScheduler GattManager uses. They take mGattLatency
+ * (plus up to mGattJitter) and fail with mGattFailureRate, or when the peer moved to another
+ * address meanwhile.
+ *
+ * Scan results are handed to the tracker in batches every mBatchInterval, like Discovery drains
+ * its ScanQueue. Every mCheckInterval the tracker ends a scan cycle, and list updates go through
+ * a DispatchThrottle. run() is deterministic for a seed.
+ */
+class RadioSimulator implements PeerTracker.Host {
+    static final UUID SERVICE_UUID = UUID.fromString("B9407F30-F5F8-466E-AFF9-25556B57FE99");
+
+    static final int FOREGROUND = 0;
+    static final int GATT = 1;
+    static final int FOREIGN = 2;
+
+    static class Peer {
+        final int mKind;
+        final String mUsername;
+        long mInterval = 250;
+        int mStartRssi = -60;
+        int mEndRssi = -60;
+        long mWalkTime;
+        float mNoise = 4;
+        // 0 to keep the same address
+        long mRotationInterval;
+
+        String mAddress;
+        byte[] mScanRecord;
+        long mNextAdvertisement;
+        long mNextRotation;
+        long mJoinTime;
+        // when the scanner first heard it, and when the app first got it in a list. -1 if not yet.
+        long mFirstHeard = -1;
+        long mFirstListed = -1;
+
+        Peer(int kind, String username) {
+            mKind = kind;
+            mUsername = username;
+        }
+
+        int rssiAt(long time) {
+            float progress = mWalkTime <= 0 ? 1 : Math.min(1, (time - mJoinTime) / (float) mWalkTime);
+            return Math.round(mStartRssi + (mEndRssi - mStartRssi) * progress);
+        }
+
+        boolean isOurs() {
+            return mKind != FOREIGN;
+        }
+    }
+
+    private static class Connection {
+        final String mAddress;
+        final long mDone;
+
+        Connection(String address, long done) {
+            mAddress = address;
+            mDone = done;
+        }
+    }
+
+    final FakeClock mClock = new FakeClock();
+    final IdentityCache mIdentityCache = new IdentityCache(null);
+    final PeerTracker mTracker;
+    final DispatchThrottle mDispatchThrottle = new DispatchThrottle();
+    final ConnectionScheduler mScheduler = new ConnectionScheduler();
+    private final Random mRandom;
+
+    long mBatchInterval = 100;
+    // the chance an advertisement isn't heard, and the weakest rssi that is
+    double mScanLoss = 0.2;
+    int mSensitivity = -100;
+    long mCheckInterval = 5000;
+    long mGattLatency = 600;
+    long mGattJitter = 800;
+    double mGattFailureRate = 0.2;
+
+    private final ArrayList<Peer> mPeers = new ArrayList<>();
+    private final HashMap<String, Peer> mPeersByAddress = new HashMap<>();
+    private final PriorityQueue<Peer> mAdvertisements = new PriorityQueue<>(64, new Comparator<Peer>() {
+        @Override
+        public int compare(Peer a, Peer b) {
+            return a.mNextAdvertisement < b.mNextAdvertisement ? -1 : a.mNextAdvertisement > b.mNextAdvertisement ? 1 : 0;
+        }
+    });
+    private final PriorityQueue<Connection> mConnections = new PriorityQueue<>(16, new Comparator<Connection>() {
+        @Override
+        public int compare(Connection a, Connection b) {
+            return a.mDone < b.mDone ? -1 : a.mDone > b.mDone ? 1 : 0;
+        }
+    });
+    private long mNextAddress = 0xC00000000000L;
+    private long mNextCheck;
+    private long mDispatchAt = -1;
+
+    long mAdvertisementCount;
+    long mScanResultCount;
+    long mNewPeerCount;
+    long mConnectionCount;
+    long mConnectionFailureCount;
+    long mCallbackCount;
+    long mDeliveredUserCount;
+
+    RadioSimulator(long seed) {
+        mRandom = new Random(seed);
+        mTracker = new PeerTracker(this, SERVICE_UUID, mClock, mIdentityCache);
+    }
+
+    // a peer that starts advertising now, at a random point of its interval
+    Peer add(Peer peer) {
+        long now = mClock.now();
+        peer.mJoinTime = now;
+        peer.mNextAdvertisement = now + (long) (mRandom.nextDouble() * peer.mInterval);
+        peer.mNextRotation = peer.mRotationInterval > 0 ? now + (long) (mRandom.nextDouble() * peer.mRotationInterval) : Long.MAX_VALUE;
+        peer.mScanRecord = scanRecord(peer);
+        assign(peer, nextAddress());
+        mPeers.add(peer);
+        mAdvertisements.add(peer);
+        return peer;
+    }
+
+    ArrayList<Peer> getPeers() {
+        return mPeers;
+    }
+
+    // runs the neighbourhood for the given time
+    void run(long duration) {
+        long end = mClock.now() + duration;
+        while (mClock.now() < end) {
+            long batchEnd = Math.min(end, mClock.now() + mBatchInterval);
+            boolean usersChanged = false;
+
+            Peer peer;
+            while ((peer = mAdvertisements.peek()) != null && peer.mNextAdvertisement < batchEnd) {
+                mAdvertisements.poll();
+                long time = peer.mNextAdvertisement;
+                if (time >= peer.mNextRotation) {
+                    assign(peer, nextAddress());
+                    peer.mNextRotation += peer.mRotationInterval;
+                }
+
+                mAdvertisementCount++;
+                int rssi = peer.rssiAt(time) + Math.round((float) mRandom.nextGaussian() * peer.mNoise);
+                if (rssi >= mSensitivity && mRandom.nextDouble() >= mScanLoss) {
+                    mScanResultCount++;
+                    if (peer.mFirstHeard < 0)
+                        peer.mFirstHeard = time;
+                    mClock.mNow = Math.max(mClock.mNow, time);
+                    if (mTracker.onScanResult(null, peer.mAddress, Math.min(-20, rssi), peer.mScanRecord, time))
+                        usersChanged = true;
+                }
+
+                // advertising events are spread by a random delay of up to 10ms
+                peer.mNextAdvertisement = time + peer.mInterval + mRandom.nextInt(11);
+                mAdvertisements.add(peer);
+            }
+            mClock.mNow = batchEnd;
+            if (mTracker.endScanResults(usersChanged, batchEnd))
+                requestList(true, batchEnd);
+
+            Connection connection;
+            while ((connection = mConnections.peek()) != null && connection.mDone <= batchEnd) {
+                mConnections.poll();
+                finish(connection);
+            }
+
+            if (batchEnd >= mNextCheck) {
+                checkList(batchEnd);
+                mNextCheck = batchEnd + mCheckInterval;
+            }
+
+            if (mDispatchAt >= 0 && batchEnd >= mDispatchAt) {
+                long delay = mDispatchThrottle.due(batchEnd);
+                mDispatchAt = delay > 0 ? batchEnd + delay : -1;
+                if (delay == 0)
+                    dispatch(batchEnd);
+            }
+        }
+    }
+
+    // what Discovery does at the end of each scan cycle
+    private void checkList(long now) {
+        Boolean usersChanged = mTracker.endScanCycle(now);
+        if (usersChanged != null)
+            requestList(usersChanged, now);
+    }
+
+    private void requestList(boolean usersChanged, long now) {
+        long delay = mDispatchThrottle.request(usersChanged, now);
+        if (delay == 0) {
+            dispatch(now);
+        } else if (delay > 0) {
+            mDispatchAt = now + delay;
+        }
+    }
+
+    // what Discovery hands to the app, without the executor
+    private void dispatch(long now) {
+        mDispatchThrottle.dispatched(now);
+        mDispatchAt = -1;
+        mCallbackCount++;
+
+        ArrayList<BLEUser> users = mTracker.copyDelivered();
+        mDeliveredUserCount += users.size();
+        for (int i = 0; i < users.size(); i++) {
+            Peer peer = mPeersByAddress.get(users.get(i).getCurrentAddress());
+            if (peer != null && peer.mFirstListed < 0)
+                peer.mFirstListed = now;
+        }
+    }
+
+    private void finish(Connection connection) {
+        mClock.mNow = Math.max(mClock.mNow, connection.mDone);
+        long now = mClock.now();
+
+        // a peer that rotated meanwhile isn't there anymore
+        Peer peer = mPeersByAddress.get(connection.mAddress);
+        if (peer == null || mRandom.nextDouble() < mGattFailureRate) {
+            mConnectionFailureCount++;
+            mScheduler.finished(connection.mAddress, false, now);
+        } else {
+            mScheduler.finished(connection.mAddress, true, now);
+            if (peer.isOurs()) {
+                mTracker.didIdentify(null, connection.mAddress, peer.mUsername);
+            } else {
+                mTracker.failedToMatchService(null, connection.mAddress);
+            }
+        }
+
+        connectNext();
+    }
+
+    // what GattManager does, with a connection that takes a while instead of a gatt client
+    private void connectNext() {
+        long now = mClock.now();
+        ConnectionQueue.Entry pending;
+        while ((pending = mScheduler.next(now)) != null) {
+            mConnectionCount++;
+            long latency = mGattLatency + (mGattJitter > 0 ? (long) (mRandom.nextDouble() * mGattJitter) : 0);
+            mConnections.add(new Connection(pending.mAddress, now + latency));
+        }
+    }
+
+    private void assign(Peer peer, String address) {
+        if (peer.mAddress != null)
+            mPeersByAddress.remove(peer.mAddress);
+        peer.mAddress = address;
+        mPeersByAddress.put(address, peer);
+    }
+
+    private String nextAddress() {
+        return MacAddress.unpack(mNextAddress++);
+    }
+
+    private static byte[] scanRecord(Peer peer) {
+        byte[] uuid = uuidBytes(SERVICE_UUID);
+        if (peer.mKind == FOREIGN) {
+            byte[] name = peer.mUsername.getBytes();
+            byte[] record = new byte[3 + 4 + 2 + name.length];
+            System.arraycopy(new byte[]{0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18, (byte) (name.length + 1), 0x09}, 0, record, 0, 9);
+            System.arraycopy(name, 0, record, 9, name.length);
+            return record;
+        }
+
+        byte[] record = new byte[3 + 18];
+        record[0] = 0x02;
+        record[1] = 0x01;
+        record[2] = 0x1A;
+        record[3] = 0x11;
+        record[4] = 0x07;
+        System.arraycopy(uuid, 0, record, 5, 16);
+
+        byte[] payload = peer.mKind == FOREGROUND ? IdentityPayload.encode(peer.mUsername) : null;
+        if (payload == null)
+            return record;
+
+        // the scan response, which Android hands over together with the advertisement
+        byte[] response = Arrays.copyOf(record, record.length + 18 + payload.length);
+        response[record.length] = (byte) (17 + payload.length);
+        response[record.length + 1] = 0x21;
+        System.arraycopy(uuid, 0, response, record.length + 2, 16);
+        System.arraycopy(payload, 0, response, record.length + 18, payload.length);
+        return response;
+    }
+
+    // uuids are advertised little endian
+    private static byte[] uuidBytes(UUID uuid) {
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (uuid.getLeastSignificantBits() >>> (8 * i));
+            bytes[8 + i] = (byte) (uuid.getMostSignificantBits() >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    @Override
+    public void identify(BluetoothDevice device, String address, int rssi) {
+        long now = mClock.now();
+        if (!mScheduler.canAttempt(address, now) || mScheduler.isInFlight(address))
+            return;
+
+        mScheduler.offer(device, address, rssi, now);
+        connectNext();
+    }
+
+    // simulated peers have no BluetoothDevice for the system to know
+    @Override
+    public String getName(BluetoothDevice device) {
+        return null;
+    }
+
+    @Override
+    public boolean hasCachedService(BluetoothDevice device, UUID uuid) {
+        return false;
+    }
+
+    @Override
+    public void onNewPeer() {
+        mNewPeerCount++;
+    }
+
+    @Override
+    public void onIdentityCacheChanged() {
+
+    }
+
+    @Override
+    public void onListChanged() {
+        requestList(true, mClock.now());
+    }
+}
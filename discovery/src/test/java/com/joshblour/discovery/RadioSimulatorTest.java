@@ -0,0 +1,159 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load tests of PeerTracker in a simulated crowd, see RadioSimulator. Times are virtual, so the
+ * results only depend on the seed (except the allocations).
+ */
+public class RadioSimulatorTest {
+
+    /**
+     * 3000 peers (half identified from their advertisement, a fifth over gatt, the rest not ours)
+     * walking towards or away from us for a minute, a third of them rotating their address.
+     */
+    private static RadioSimulator crowd() {
+        RadioSimulator simulator = new RadioSimulator(42);
+        simulator.mTracker.setMaxUsers(4096);
+        Random random = new Random(7);
+        for (int i = 0; i < 3000; i++) {
+            int kind = i % 10 < 5 ? RadioSimulator.FOREGROUND : i % 10 < 7 ? RadioSimulator.GATT : RadioSimulator.FOREIGN;
+            RadioSimulator.Peer peer = new RadioSimulator.Peer(kind, kind == RadioSimulator.FOREIGN ? "HRM" + i : "user" + i);
+            peer.mInterval = 100 + random.nextInt(900);
+            peer.mStartRssi = -50 - random.nextInt(40);
+            peer.mEndRssi = -50 - random.nextInt(40);
+            peer.mWalkTime = 60000;
+            if (i % 3 == 0)
+                peer.mRotationInterval = 20000 + random.nextInt(20000);
+            simulator.add(peer);
+        }
+        return simulator;
+    }
+
+    @Test
+    public void identifiesACrowd() {
+        RadioSimulator simulator = crowd();
+        simulator.run(60000);
+
+        ArrayList<Long> foreground = new ArrayList<>();
+        ArrayList<Long> gatt = new ArrayList<>();
+        int ours = 0;
+        for (RadioSimulator.Peer peer : simulator.getPeers()) {
+            if (!peer.isOurs()) {
+                assertEquals("a foreign peer was listed", -1, peer.mFirstListed);
+                continue;
+            }
+            ours++;
+            if (peer.mFirstListed >= 0)
+                (peer.mKind == RadioSimulator.FOREGROUND ? foreground : gatt).add(peer.mFirstListed - peer.mFirstHeard);
+        }
+
+        // peers advertising their username are listed with the batch they're first heard in
+        assertEquals(1500, foreground.size());
+        assertTrue(percentile(foreground, 100) <= simulator.mBatchInterval);
+
+        // 1500 devices need a connection, which three at a time only gets through a few hundred of.
+        // the slots are kept busy, at least one connection per slot for the longest a connection takes
+        long maxConnections = simulator.mScheduler.getMaxConcurrent();
+        assertTrue(gatt.size() > 0);
+        assertTrue(simulator.mConnectionCount <= 60000 * maxConnections / simulator.mGattLatency);
+        assertTrue(simulator.mConnectionCount >= 60000 * maxConnections / (simulator.mGattLatency + simulator.mGattJitter));
+        assertTrue(simulator.mScheduler.getDroppedFromQueueCount() > 0);
+
+        // the list is updated at most once per batch, check and connection, and holds everyone
+        // advertising their username
+        assertTrue(simulator.mCallbackCount > 0);
+        assertTrue(simulator.mCallbackCount <= 60000 / simulator.mBatchInterval + 60000 / simulator.mCheckInterval
+                + simulator.mConnectionCount);
+        assertTrue(simulator.mDeliveredUserCount / simulator.mCallbackCount >= 1000);
+        assertTrue(simulator.mTracker.getProximityIndex().size() >= 1500);
+        assertTrue(simulator.mTracker.getProximityIndex().size() <= ours);
+        assertTrue(simulator.mTracker.size() <= 4096);
+    }
+
+    @Test
+    public void allocatesLittlePerScanResultInACrowd() {
+        RadioSimulator simulator = crowd();
+        AllocationCounter counter = AllocationCounter.start();
+        simulator.run(60000);
+        long allocated = counter.allocated();
+
+        // the copies for the callbacks (over a thousand users, ten times a second) take most of it
+        assertTrue(simulator.mScanResultCount > 300000);
+        assertTrue(allocated / simulator.mScanResultCount < 512);
+    }
+
+    @Test
+    public void identifiesOverGattDespiteFailures() {
+        RadioSimulator simulator = new RadioSimulator(2);
+        simulator.mGattFailureRate = 0.3;
+        for (int i = 0; i < 60; i++) {
+            RadioSimulator.Peer peer = new RadioSimulator.Peer(RadioSimulator.GATT, "a rather long username " + i);
+            peer.mStartRssi = -50 - i / 2;
+            peer.mEndRssi = peer.mStartRssi;
+            simulator.add(peer);
+        }
+
+        simulator.run(60000);
+        int identified = 0;
+        for (RadioSimulator.Peer peer : simulator.getPeers()) {
+            if (peer.mFirstListed >= 0)
+                identified++;
+        }
+        assertEquals(60, identified);
+        // every failure is retried, and every other connection identifies a peer once
+        assertTrue(simulator.mConnectionFailureCount > 0);
+        assertEquals(60 + simulator.mConnectionFailureCount, simulator.mConnectionCount);
+        assertEquals(60, simulator.mTracker.getProximityIndex().size());
+    }
+
+    @Test
+    public void throttledCallbacksKeepTheirRate() {
+        RadioSimulator simulator = new RadioSimulator(1);
+        simulator.mDispatchThrottle.setMinInterval(2000);
+        for (int i = 0; i < 500; i++) {
+            RadioSimulator.Peer peer = new RadioSimulator.Peer(RadioSimulator.FOREGROUND, "user" + i);
+            peer.mStartRssi = -40 - i % 50;
+            peer.mEndRssi = -90 + i % 50;
+            peer.mWalkTime = 30000;
+            simulator.add(peer);
+        }
+
+        simulator.run(30000);
+        assertTrue(simulator.mCallbackCount <= 16);
+        assertTrue(simulator.mDispatchThrottle.getCoalescedCount() > 0);
+        assertEquals(500, simulator.mTracker.getProximityIndex().size());
+    }
+
+    @Test
+    public void forgetsPeersThatLeave() {
+        RadioSimulator simulator = new RadioSimulator(3);
+        simulator.mTracker.setUserTimeout(5000);
+        for (int i = 0; i < 100; i++) {
+            RadioSimulator.Peer peer = new RadioSimulator.Peer(RadioSimulator.FOREGROUND, "user" + i);
+            // the first half walks out of range
+            peer.mEndRssi = i < 50 ? -130 : -60;
+            peer.mWalkTime = 10000;
+            peer.mNoise = 0;
+            simulator.add(peer);
+        }
+
+        simulator.run(20000);
+        assertEquals(50, simulator.mTracker.getProximityIndex().size());
+        assertEquals(50, simulator.mTracker.size());
+    }
+
+    // the given percentile of the values, 100 for the largest
+    private static long percentile(ArrayList<Long> values, int percentile) {
+        Long[] sorted = values.toArray(new Long[values.size()]);
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+}
@@ -0,0 +1,188 @@
+package com.joshblour.discovery;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RssiFilterTest {
+
+    @Test
+    public void easedFilterEasesInAndIgnoresTime() {
+        RssiFilter filter = RssiFilter.eased();
+        float[] state = new float[filter.stateSize()];
+        float[] later = new float[filter.stateSize()];
+
+        // from 0, a tenth of the way there and damped
+        assertEquals(-0.42f, filter.update(state, -60, -1), 0.0001f);
+        filter.update(later, -60, -1);
+        float previous = -0.42f;
+        for (int i = 0; i < 500; i++) {
+            float proximity = filter.update(state, -60, 100);
+            // one step per sample, however long it's been
+            assertEquals(proximity, filter.update(later, -60, 10000), 0f);
+            assertTrue(proximity >= -60 && proximity <= previous);
+            previous = proximity;
+        }
+        // and it snaps to a steady signal
+        assertEquals(-60, previous, 0f);
+    }
+
+    @Test
+    public void emaDecaysWithTimeNotSamples() {
+        RssiFilter filter = RssiFilter.ema(1000);
+
+        // a step from -80 to -40, sampled every 100ms and every 20ms
+        float slow = step(filter, 100);
+        float fast = step(filter, 20);
+        // after one half life we're half way, however often the device advertised
+        assertEquals(-60, slow, 0.01f);
+        assertEquals(-60, fast, 0.01f);
+    }
+
+    @Test
+    public void kalmanTrustsSamplesMoreAfterAGap() {
+        RssiFilter filter = RssiFilter.kalman(4, 16);
+        float[] state = new float[filter.stateSize()];
+        assertEquals(-70, filter.update(state, -70, -1), 0f);
+        for (int i = 0; i < 20; i++) {
+            filter.update(state, -70, 100);
+        }
+
+        float[] gap = state.clone();
+        float afterShortGap = filter.update(state, -50, 100);
+        float afterLongGap = filter.update(gap, -50, 10000);
+        assertTrue(afterShortGap < -65);
+        assertTrue(afterLongGap > -60);
+
+        // and it settles on a steady signal
+        for (int i = 0; i < 100; i++) {
+            filter.update(state, -50, 100);
+        }
+        assertEquals(-50, state[0], 0.5f);
+    }
+
+    @Test
+    public void medianIgnoresOutliersAndForgetsOldSamples() {
+        RssiFilter filter = RssiFilter.median(5, 2000);
+        float[] state = new float[filter.stateSize()];
+        filter.update(state, -60, -1);
+        filter.update(state, -60, 100);
+        assertEquals(-60, filter.update(state, -60, 100), 0f);
+        // a reflection
+        assertEquals(-60, filter.update(state, -20, 100), 0f);
+        assertEquals(-60, filter.update(state, -61, 100), 0f);
+        assertEquals(-60, filter.update(state, -90, 100), 0f);
+        // the ring is full, the oldest samples drop out
+        assertEquals(-61, filter.update(state, -90, 100), 0f);
+
+        // everything before the gap is too old
+        assertEquals(-75, filter.update(state, -75, 2500), 0f);
+        assertEquals(-70, filter.update(state, -70, 100), 0f);
+    }
+
+    @Test
+    public void batchedSamplesAreSmoothedOverTheirOwnTimes() {
+        BLEUser live = new BLEUser("AA:BB:CC:DD:EE:00");
+        BLEUser batched = new BLEUser("AA:BB:CC:DD:EE:01");
+        live.setRssiFilter(RssiFilter.ema(1000));
+        batched.setRssiFilter(RssiFilter.ema(1000));
+
+        // the same samples, one at a time as they were seen, and handed over in a batch (slightly
+        // out of order) with the times they were seen
+        live.setRssi(-80, 0);
+        batched.setRssi(-80, 0);
+        for (long time = 100; time <= 1000; time += 100) {
+            live.setRssi(-40, time);
+        }
+        batched.setRssi(-40, 1000);
+        batched.setRssi(-40, 900);
+        assertEquals(-60, live.getProximity().intValue());
+        assertEquals(-60, batched.getProximity().intValue());
+    }
+
+    /**
+     * Filters keep their state in the array they're given, so filtering a sample allocates
+     * nothing, whichever filter it is.
+     */
+    @Test
+    public void filteringASampleDoesNotAllocate() {
+        AllocationCounter allocations = AllocationCounter.start();
+        RssiFilter[] filters = {RssiFilter.eased(), RssiFilter.kalman(4, 16), RssiFilter.ema(2000), RssiFilter.median(9, 5000)};
+
+        int[] rssis = new int[1024];
+        Random random = new Random(2);
+        for (int i = 0; i < rssis.length; i++) {
+            rssis[i] = -60 - random.nextInt(20);
+        }
+
+        // the first pass warms up the measuring loop too, the jvm may allocate while compiling it
+        for (int pass = 0; pass < 2; pass++) {
+            for (RssiFilter filter : filters) {
+                float[] state = new float[filter.stateSize()];
+                filter.update(state, -60, -1);
+                // warm up, so we measure compiled code
+                for (int i = 0; i < 100000; i++) {
+                    filter.update(state, rssis[i & 1023], 100);
+                }
+
+                allocations.reset();
+                float proximity = 0;
+                for (int i = 0; i < 100000; i++) {
+                    proximity = filter.update(state, rssis[i & 1023], 100);
+                }
+                long allocated = allocations.allocated();
+                if (pass == 1)
+                    assertEquals(0, allocated);
+                assertTrue(proximity <= -60 && proximity >= -79);
+            }
+        }
+    }
+
+    /**
+     * Not a rigorous benchmark, it just prints what filtering a sample costs with each filter.
+     * Timings depend on the machine, so it's ignored in normal runs and asserts nothing.
+     */
+    @Ignore("benchmark, run it by hand")
+    @Test
+    public void printsCostPerSample() {
+        RssiFilter[] filters = {RssiFilter.eased(), RssiFilter.kalman(4, 16), RssiFilter.ema(2000), RssiFilter.median(9, 5000)};
+        String[] names = {"eased", "kalman", "ema", "median(9)"};
+
+        int[] rssis = new int[1024];
+        Random random = new Random(2);
+        for (int i = 0; i < rssis.length; i++) {
+            rssis[i] = -60 - random.nextInt(20);
+        }
+
+        int samples = 2000000;
+        for (int f = 0; f < filters.length; f++) {
+            float[] state = new float[filters[f].stateSize()];
+            float sink = filters[f].update(state, -60, -1);
+            // warm up
+            for (int i = 0; i < samples; i++) {
+                sink += filters[f].update(state, rssis[i & 1023], 100);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < samples; i++) {
+                sink += filters[f].update(state, rssis[i & 1023], 100);
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(names[f] + ": " + (elapsed / (double) samples) + "ns per sample (" + (sink < 0) + ")");
+        }
+    }
+
+    private static float step(RssiFilter filter, long interval) {
+        float[] state = new float[filter.stateSize()];
+        filter.update(state, -80, -1);
+        float value = 0;
+        for (long time = interval; time <= 1000; time += interval) {
+            value = filter.update(state, -40, interval);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,102 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SampleAggregatorTest {
+
+    @Test
+    public void foldsAWindowIntoOneSample() {
+        SampleAggregator aggregator = new SampleAggregator();
+        aggregator.setWindow(1000);
+        BLEUser user = new BLEUser("AA:BB:CC:DD:EE:FF");
+        byte[] first = new byte[1];
+        byte[] last = new byte[1];
+
+        assertTrue(aggregator.add(user, -60, first, 0));
+        assertTrue(aggregator.add(user, -70, first, 400));
+        // batched results may come out of order
+        assertTrue(aggregator.add(user, -65, last, 300));
+        assertTrue(aggregator.hasWindow(user));
+        // the window is over
+        assertFalse(aggregator.add(user, -50, last, 1000));
+
+        assertEquals(400, aggregator.windowTime(user));
+        assertTrue(last == aggregator.windowScanRecord(user));
+        assertEquals(-65, aggregator.take(user));
+        assertFalse(aggregator.hasWindow(user));
+        assertNull(aggregator.windowScanRecord(user));
+
+        aggregator.setUseMax(true);
+        assertTrue(aggregator.add(user, -50, last, 1000));
+        assertTrue(aggregator.add(user, -80, last, 1100));
+        assertEquals(-50, aggregator.take(user));
+    }
+
+    @Test
+    public void collectsTheWindowsThatEnded() {
+        SampleAggregator aggregator = new SampleAggregator();
+        aggregator.setWindow(1000);
+        BLEUser early = new BLEUser("AA:BB:CC:DD:EE:00");
+        BLEUser late = new BLEUser("AA:BB:CC:DD:EE:01");
+        BLEUser taken = new BLEUser("AA:BB:CC:DD:EE:02");
+        aggregator.add(early, -60, null, 0);
+        aggregator.add(late, -60, null, 500);
+        aggregator.add(taken, -60, null, 0);
+        aggregator.take(taken);
+
+        ArrayList<BLEUser> due = new ArrayList<>();
+        aggregator.collectDue(1200, due);
+        assertEquals(1, due.size());
+        assertTrue(early == due.get(0));
+        aggregator.take(early);
+
+        // a user that starts a new window is collected again, once
+        aggregator.add(early, -60, null, 1300);
+        due.clear();
+        aggregator.collectDue(Long.MAX_VALUE, due);
+        assertEquals(2, due.size());
+        due.clear();
+        aggregator.collectDue(Long.MAX_VALUE, due);
+        assertEquals(0, due.size());
+    }
+
+    /**
+     * A hundred devices advertising ten times a second for a minute, with a one second window:
+     * about nine in ten scan results are folded into a window.
+     */
+    @Test
+    public void dropsMostSamplesInACrowd() {
+        SampleAggregator aggregator = new SampleAggregator();
+        aggregator.setWindow(1000);
+        BLEUser[] users = new BLEUser[100];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = new BLEUser(String.format("AA:BB:CC:DD:%02X:%02X", i / 256, i % 256));
+            aggregator.pass();
+        }
+
+        for (long time = 100; time < 60000; time += 100) {
+            for (int i = 0; i < users.length; i++) {
+                if (!aggregator.add(users[i], -60, null, time + i)) {
+                    aggregator.take(users[i]);
+                    aggregator.add(users[i], -60, null, time + i);
+                }
+            }
+        }
+        ArrayList<BLEUser> due = new ArrayList<>();
+        aggregator.collectDue(Long.MAX_VALUE, due);
+        for (int i = 0; i < due.size(); i++) {
+            aggregator.take(due.get(i));
+        }
+
+        assertEquals(60000, aggregator.getSampleCount());
+        assertEquals(6100, aggregator.getForwardedCount());
+        assertEquals(0.898f, aggregator.getDropRatio(), 0.001f);
+    }
+}
@@ -0,0 +1,110 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static com.joshblour.discovery.ScanRecordParserTest.bytes;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanConfigTest {
+    private static final UUID SERVICE_UUID = UUID.fromString("B9407F30-F5F8-466E-AFF9-25556B57FE99");
+    private static final UUID EDDYSTONE_UUID = UUID.fromString("0000FEAA-0000-1000-8000-00805F9B34FB");
+
+    private static final byte[] ANDROID_FOREGROUND = bytes(
+            0x02, 0x01, 0x1A,
+            0x11, 0x07, 0x99, 0xFE, 0x57, 0x6B, 0x55, 0x25, 0xF9, 0xAF, 0x6E, 0x46, 0xF8, 0xF5, 0x30, 0x7F, 0x40, 0xB9,
+            0x06, 0x09, 'j', 'o', 's', 'h', 'b');
+
+    // eddystone url frame (0x10)
+    private static final byte[] EDDYSTONE = bytes(
+            0x02, 0x01, 0x06,
+            0x03, 0x03, 0xAA, 0xFE,
+            0x0D, 0x16, 0xAA, 0xFE, 0x10, 0xEB, 0x03, 'g', 'o', 'o', '.', 'g', 'l', 0x07);
+
+    private static final byte[] IOS_BACKGROUND = bytes(
+            0x02, 0x01, 0x06,
+            0x14, 0xFF, 0x4C, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x20, 0x00, 0x00);
+
+    @Test
+    public void matchesEverythingWithoutFilters() {
+        assertTrue(new ScanConfig().matches(parse(EDDYSTONE)));
+    }
+
+    @Test
+    public void matchesServiceUuidsWithMasks() {
+        ScanConfig config = new ScanConfig();
+        config.addServiceUuidFilter(SERVICE_UUID);
+        assertTrue(config.matches(parse(ANDROID_FOREGROUND)));
+        assertFalse(config.matches(parse(EDDYSTONE)));
+
+        // any 16 bit uuid in the 0xFExx range, on the base uuid
+        config = new ScanConfig();
+        config.addServiceUuidFilter(UUID.fromString("0000FE00-0000-1000-8000-00805F9B34FB"),
+                UUID.fromString("FFFFFF00-FFFF-FFFF-FFFF-FFFFFFFFFFFF"));
+        assertTrue(config.matches(parse(EDDYSTONE)));
+        assertFalse(config.matches(parse(ANDROID_FOREGROUND)));
+        assertTrue(config.needsLollipopScanner());
+    }
+
+    @Test
+    public void matchesServiceDataWithMask() {
+        ScanConfig config = new ScanConfig();
+        // url frames, any tx power
+        config.addServiceDataFilter(EDDYSTONE_UUID, bytes(0x10, 0x00), bytes(0xFF, 0x00));
+        assertTrue(config.matches(parse(EDDYSTONE)));
+
+        config = new ScanConfig();
+        // uid frames
+        config.addServiceDataFilter(EDDYSTONE_UUID, bytes(0x00), null);
+        assertFalse(config.matches(parse(EDDYSTONE)));
+        assertFalse(config.matches(parse(ANDROID_FOREGROUND)));
+    }
+
+    @Test
+    public void matchesManufacturerData() {
+        ScanConfig config = new ScanConfig();
+        config.addManufacturerDataFilter(0x004C, bytes(0x01), null);
+        assertTrue(config.matches(parse(IOS_BACKGROUND)));
+
+        config = new ScanConfig();
+        config.addManufacturerDataFilter(0x0006, null, null);
+        assertFalse(config.matches(parse(IOS_BACKGROUND)));
+
+        // data longer than the payload never matches
+        config = new ScanConfig();
+        config.addManufacturerDataFilter(0x004C, new byte[20], new byte[20]);
+        assertFalse(config.matches(parse(IOS_BACKGROUND)));
+    }
+
+    @Test
+    public void matchesAnyFilterAndCopiesAreIndependent() {
+        ScanConfig config = new ScanConfig();
+        config.addServiceUuidFilter(SERVICE_UUID);
+        config.addManufacturerDataFilter(0x004C, null, null);
+        assertTrue(config.matches(parse(ANDROID_FOREGROUND)));
+        assertTrue(config.matches(parse(IOS_BACKGROUND)));
+        assertFalse(config.matches(parse(EDDYSTONE)));
+        assertTrue(config.needsLollipopScanner());
+
+        ScanConfig copy = new ScanConfig(config);
+        config.clearFilters();
+        assertFalse(copy.matches(parse(EDDYSTONE)));
+    }
+
+    @Test
+    public void rejectsMasksOfTheWrongLength() {
+        try {
+            new ScanConfig().addManufacturerDataFilter(0x004C, bytes(0x01, 0x02), bytes(0xFF));
+            throw new AssertionError("expected the mask to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static ScanRecordParser parse(byte[] record) {
+        ScanRecordParser parser = new ScanRecordParser();
+        parser.parse(record);
+        return parser;
+    }
+}
@@ -0,0 +1,102 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScanCycleSchedulerTest {
+
+    @Test
+    public void alternatesBetweenScanningAndIdle() {
+        FakeClock clock = new FakeClock();
+        ScanCycleScheduler scheduler = new ScanCycleScheduler(clock);
+        scheduler.setScanWindowBounds(5000, 5000);
+        scheduler.setIdleGapBounds(3000, 3000);
+
+        assertEquals(5000, scheduler.start());
+        assertEquals(ScanCycleScheduler.State.SCANNING, scheduler.getState());
+
+        // too early, nothing happens
+        clock.mNow = 4000;
+        assertEquals(1000, scheduler.advance());
+        assertEquals(ScanCycleScheduler.State.SCANNING, scheduler.getState());
+
+        clock.mNow = 5000;
+        assertEquals(3000, scheduler.advance());
+        assertEquals(ScanCycleScheduler.State.IDLE, scheduler.getState());
+
+        clock.mNow = 8000;
+        assertEquals(5000, scheduler.advance());
+        assertEquals(ScanCycleScheduler.State.SCANNING, scheduler.getState());
+        assertEquals(1, scheduler.getCycleCount());
+
+        scheduler.stop();
+        assertEquals(-1, scheduler.advance());
+    }
+
+    @Test
+    public void scansMoreWhileNewPeersAppearAndBacksOffWhenStable() {
+        FakeClock clock = new FakeClock();
+        ScanCycleScheduler scheduler = new ScanCycleScheduler(clock);
+        scheduler.setScanWindowBounds(4000, 12000);
+        scheduler.setIdleGapBounds(2000, 20000);
+        clock.mNow += scheduler.start();
+
+        // busy: new peers in every window
+        for (int cycle = 0; cycle < 10; cycle++) {
+            scheduler.onNewPeer();
+            clock.mNow += scheduler.advance();
+            clock.mNow += scheduler.advance();
+        }
+        assertEquals(12000, scheduler.getScanWindow());
+        assertEquals(2000, scheduler.getIdleGap());
+        assertEquals(1, scheduler.getLastNewPeerCount());
+
+        // quiet: nobody new
+        long previousGap = scheduler.getIdleGap();
+        for (int cycle = 0; cycle < 3; cycle++) {
+            clock.mNow += scheduler.advance();
+            assertTrue(scheduler.getIdleGap() > previousGap);
+            previousGap = scheduler.getIdleGap();
+            clock.mNow += scheduler.advance();
+        }
+        for (int cycle = 0; cycle < 20; cycle++) {
+            clock.mNow += scheduler.advance();
+            clock.mNow += scheduler.advance();
+        }
+        assertEquals(4000, scheduler.getScanWindow());
+        assertEquals(20000, scheduler.getIdleGap());
+        assertEquals(0, scheduler.getLastNewPeerCount());
+    }
+
+    @Test
+    public void peersSeenWhileIdleDontCount() {
+        FakeClock clock = new FakeClock();
+        ScanCycleScheduler scheduler = new ScanCycleScheduler(clock);
+        scheduler.setScanWindowBounds(4000, 12000);
+        clock.mNow += scheduler.start();
+        clock.mNow += scheduler.advance();
+
+        // late results for the window that just ended
+        scheduler.onNewPeer();
+        clock.mNow += scheduler.advance();
+        clock.mNow += scheduler.advance();
+        assertEquals(0, scheduler.getLastNewPeerCount());
+    }
+
+    @Test
+    public void restartingDoesntStackCycles() {
+        FakeClock clock = new FakeClock();
+        ScanCycleScheduler scheduler = new ScanCycleScheduler(clock);
+        scheduler.setScanWindowBounds(5000, 5000);
+        scheduler.start();
+
+        // restarting half way through starts a fresh window rather than adding another cycle
+        clock.mNow = 2500;
+        assertEquals(5000, scheduler.start());
+        clock.mNow = 5000;
+        assertEquals(2500, scheduler.advance());
+        assertEquals(ScanCycleScheduler.State.SCANNING, scheduler.getState());
+    }
+}
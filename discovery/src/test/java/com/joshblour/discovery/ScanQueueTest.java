@@ -0,0 +1,109 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScanQueueTest {
+
+    @Test
+    public void wakesTheConsumerOncePerBatch() {
+        ScanQueue queue = new ScanQueue(4);
+        assertTrue(queue.offer(null, -40, null, 1));
+        assertFalse(queue.offer(null, -50, null, 2));
+        assertFalse(queue.offer(null, -60, null, 3));
+
+        ScanQueue.Batch batch = queue.take();
+        assertEquals(3, batch.size());
+        assertEquals(-50, batch.getRssi(1));
+        assertEquals(3, batch.getTime(2));
+
+        // the queue is empty again while the batch is processed
+        assertTrue(queue.offer(null, -70, null, 4));
+        // and the next batch can only be taken once this one is handed back
+        assertNull(queue.take());
+        queue.recycle(batch);
+        assertEquals(1, queue.take().size());
+    }
+
+    @Test
+    public void dropsResultsWhenFull() {
+        ScanQueue queue = new ScanQueue(2);
+        queue.offer(null, -40, null, 1);
+        queue.offer(null, -40, null, 2);
+        queue.offer(null, -40, null, 3);
+        assertEquals(2, queue.size());
+        assertEquals(3, queue.getOfferedCount());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void queuesBatchesInOneGo() {
+        ScanQueue queue = new ScanQueue(4);
+        queue.offer(null, -40, null, 1);
+        assertFalse(queue.offerAll(new android.bluetooth.BluetoothDevice[4], new int[]{-50, -60, -70, -80},
+                new byte[4][], new long[]{2, 3, 4, 5}, 4));
+        assertEquals(1, queue.getDroppedCount());
+
+        ScanQueue.Batch batch = queue.take();
+        assertEquals(4, batch.size());
+        assertEquals(-70, batch.getRssi(3));
+        queue.recycle(batch);
+
+        assertTrue(queue.offerAll(new android.bluetooth.BluetoothDevice[2], new int[]{-50, -60},
+                new byte[2][], new long[]{6, 7}, 2));
+    }
+
+    @Test
+    public void handsOverEveryResultBetweenThreads() throws Exception {
+        final ScanQueue queue = new ScanQueue(64);
+        final int producers = 4;
+        final int perProducer = 50000;
+        final CountDownLatch done = new CountDownLatch(producers);
+        final AtomicInteger wakeUps = new AtomicInteger();
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        if (queue.offer(null, producer, null, i))
+                            wakeUps.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long processed = 0;
+        long[] lastTime = new long[producers];
+        while (true) {
+            boolean finished = done.getCount() == 0;
+            ScanQueue.Batch batch;
+            while ((batch = queue.take()) != null) {
+                for (int i = 0; i < batch.size(); i++) {
+                    // each producer's results arrive in order
+                    int producer = batch.getRssi(i);
+                    assertTrue(batch.getTime(i) >= lastTime[producer]);
+                    lastTime[producer] = batch.getTime(i);
+                }
+                processed += batch.size();
+                queue.recycle(batch);
+            }
+            if (finished)
+                break;
+            Thread.yield();
+        }
+
+        assertEquals(producers * perProducer, queue.getOfferedCount());
+        assertEquals(queue.getOfferedCount() - queue.getDroppedCount(), processed);
+        assertTrue(wakeUps.get() <= processed);
+    }
+}
@@ -0,0 +1,134 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Advertisement fixtures captured from real peers (addresses and payloads trimmed).
+ */
+public class ScanRecordParserTest {
+    private static final UUID SERVICE_UUID = UUID.fromString("B9407F30-F5F8-466E-AFF9-25556B57FE99");
+    private static final UUID OTHER_UUID = UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID EDDYSTONE_UUID = UUID.fromString("0000FEAA-0000-1000-8000-00805F9B34FB");
+
+    // android peer in the foreground: flags, our 128 bit service uuid and a complete local name
+    private static final byte[] ANDROID_FOREGROUND = bytes(
+            0x02, 0x01, 0x1A,
+            0x11, 0x07, 0x99, 0xFE, 0x57, 0x6B, 0x55, 0x25, 0xF9, 0xAF, 0x6E, 0x46, 0xF8, 0xF5, 0x30, 0x7F, 0x40, 0xB9,
+            0x06, 0x09, 'j', 'o', 's', 'h', 'b');
+
+    // eddystone beacon: 16 bit uuid list plus service data for the same uuid
+    private static final byte[] EDDYSTONE = bytes(
+            0x02, 0x01, 0x06,
+            0x03, 0x03, 0xAA, 0xFE,
+            0x0D, 0x16, 0xAA, 0xFE, 0x10, 0xEB, 0x03, 'g', 'o', 'o', '.', 'g', 'l', 0x07);
+
+    // backgrounded iOS peer: apple manufacturer data with the overflow area bitmask
+    private static final byte[] IOS_BACKGROUND = bytes(
+            0x02, 0x01, 0x06,
+            0x14, 0xFF, 0x4C, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x20, 0x00, 0x00);
+
+    // heart rate sensor with a 32 bit uuid (the expanded 0x180D) and a shortened name
+    private static final byte[] HEART_RATE = bytes(
+            0x02, 0x01, 0x06,
+            0x05, 0x05, 0x0D, 0x18, 0x00, 0x00,
+            0x04, 0x08, 'H', 'R', 'M');
+
+    @Test
+    public void parsesForegroundAndroidPeer() {
+        ScanRecordParser parser = new ScanRecordParser();
+        assertTrue(parser.parse(ANDROID_FOREGROUND));
+        assertTrue(parser.hasServiceUuid(SERVICE_UUID));
+        assertFalse(parser.hasServiceUuid(OTHER_UUID));
+        assertEquals(1, parser.getServiceUuidCount());
+        assertTrue(parser.isLocalNameComplete());
+        assertEquals("joshb", parser.getLocalName());
+        assertEquals(0, parser.getManufacturerDataCount());
+    }
+
+    @Test
+    public void parsesSixteenBitUuidsAndServiceData() {
+        ScanRecordParser parser = new ScanRecordParser();
+        assertTrue(parser.parse(EDDYSTONE));
+        assertTrue(parser.hasServiceUuid(EDDYSTONE_UUID));
+        assertFalse(parser.hasServiceUuid(SERVICE_UUID));
+        assertFalse(parser.hasLocalName());
+        assertNull(parser.getLocalName());
+
+        int index = parser.findServiceData(EDDYSTONE_UUID);
+        assertEquals(0, index);
+        assertEquals(10, parser.getServiceDataLength(index));
+        assertEquals(0x10, EDDYSTONE[parser.getServiceDataOffset(index)] & 0xFF);
+        assertEquals(-1, parser.findServiceData(SERVICE_UUID));
+    }
+
+    @Test
+    public void parsesAppleManufacturerData() {
+        ScanRecordParser parser = new ScanRecordParser();
+        assertTrue(parser.parse(IOS_BACKGROUND));
+        assertEquals(0, parser.getServiceUuidCount());
+
+        int index = parser.findManufacturerData(0x004C);
+        assertEquals(0, index);
+        assertEquals(0x004C, parser.getManufacturerId(index));
+        assertEquals(17, parser.getManufacturerDataLength(index));
+        assertEquals(0x01, IOS_BACKGROUND[parser.getManufacturerDataOffset(index)]);
+        assertEquals(-1, parser.findManufacturerData(0x0006));
+    }
+
+    @Test
+    public void expandsThirtyTwoBitUuidsAndShortNames() {
+        ScanRecordParser parser = new ScanRecordParser();
+        assertTrue(parser.parse(HEART_RATE));
+        assertTrue(parser.hasServiceUuid(OTHER_UUID));
+        assertFalse(parser.isLocalNameComplete());
+        assertEquals("HRM", parser.getLocalName());
+    }
+
+    @Test
+    public void stopsAtZeroPadding() {
+        // pre-lollipop scanners hand us the full 62 byte buffer padded with zeros
+        byte[] padded = Arrays.copyOf(ANDROID_FOREGROUND, 62);
+        ScanRecordParser parser = new ScanRecordParser();
+        assertTrue(parser.parse(padded));
+        assertTrue(parser.hasServiceUuid(SERVICE_UUID));
+        assertEquals("joshb", parser.getLocalName());
+    }
+
+    @Test
+    public void keepsWhatWasParsedBeforeATruncatedStructure() {
+        byte[] truncated = Arrays.copyOf(ANDROID_FOREGROUND, ANDROID_FOREGROUND.length - 2);
+        ScanRecordParser parser = new ScanRecordParser();
+        assertFalse(parser.parse(truncated));
+        assertTrue(parser.isMalformed());
+        assertTrue(parser.hasServiceUuid(SERVICE_UUID));
+        assertFalse(parser.hasLocalName());
+    }
+
+    @Test
+    public void resetsBetweenRecords() {
+        ScanRecordParser parser = new ScanRecordParser();
+        parser.parse(ANDROID_FOREGROUND);
+        parser.parse(IOS_BACKGROUND);
+        assertFalse(parser.hasServiceUuid(SERVICE_UUID));
+        assertFalse(parser.hasLocalName());
+
+        assertFalse(parser.parse(null));
+        assertEquals(0, parser.getManufacturerDataCount());
+    }
+
+    static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
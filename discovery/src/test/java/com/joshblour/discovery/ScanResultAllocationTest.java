@@ -0,0 +1,104 @@
+package com.joshblour.discovery;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that updating a known, identified user from a scan result doesn't allocate, the way
+ * Discovery does it: results are queued, then drained into the PeerTracker in batches.
+ */
+public class ScanResultAllocationTest {
+    private static final UUID SERVICE_UUID = UUID.fromString("B9407F30-F5F8-466E-AFF9-25556B57FE99");
+    private static final int USERS = 100;
+    private static final int UPDATES = 20000;
+
+    private static final PeerTracker.Host HOST = new PeerTracker.Host() {
+        @Override
+        public void identify(BluetoothDevice device, String address, int rssi) {
+        }
+
+        @Override
+        public String getName(BluetoothDevice device) {
+            return null;
+        }
+
+        @Override
+        public boolean hasCachedService(BluetoothDevice device, UUID uuid) {
+            return false;
+        }
+
+        @Override
+        public void onNewPeer() {
+        }
+
+        @Override
+        public void onIdentityCacheChanged() {
+        }
+
+        @Override
+        public void onListChanged() {
+        }
+    };
+
+    private final FakeClock mClock = new FakeClock();
+    private final PeerTracker mTracker = new PeerTracker(HOST, SERVICE_UUID, mClock, new IdentityCache(null));
+    private final ScanQueue mQueue = new ScanQueue(64);
+    private final String[] mAddresses = new String[USERS];
+    private final byte[][] mRecords = new byte[USERS][];
+
+    @Test
+    public void steadyStateUpdatesDoNotAllocate() {
+        AllocationCounter allocations = AllocationCounter.start();
+
+        for (int i = 0; i < USERS; i++) {
+            mAddresses[i] = MacAddress.unpack(i);
+            mRecords[i] = PeerTrackerTest.foreground("user" + i);
+            mTracker.onScanResult(null, mAddresses[i], -40 - i % 50, mRecords[i], 0);
+        }
+        mTracker.endScanResults(true, 0);
+        assertEquals(USERS, mTracker.getProximityIndex().size());
+
+        // warm up, so we measure compiled code
+        long now = 0;
+        for (int i = 0; i < 5; i++) {
+            now = update(now);
+        }
+
+        allocations.reset();
+        update(now);
+        assertEquals(0, allocations.allocated());
+        assertEquals(USERS, mTracker.getProximityIndex().size());
+    }
+
+    private long update(long now) {
+        // the results are queued in the order of mAddresses
+        int next = 0;
+        for (int i = 0; i < UPDATES; i++) {
+            now += 10;
+            mClock.mNow = now;
+            int user = i % USERS;
+            mQueue.offer(null, -40 - (int) (now % 50), mRecords[user], now);
+            if (mQueue.size() < 32)
+                continue;
+
+            boolean usersChanged = false;
+            ScanQueue.Batch batch;
+            while ((batch = mQueue.take()) != null) {
+                for (int j = 0; j < batch.size(); j++) {
+                    String address = mAddresses[next];
+                    next = (next + 1) % USERS;
+                    if (mTracker.onScanResult(null, address, batch.getRssi(j), batch.getScanRecord(j), batch.getTime(j)))
+                        usersChanged = true;
+                }
+                mQueue.recycle(batch);
+            }
+            mTracker.endScanResults(usersChanged, now);
+        }
+        return now;
+    }
+}
@@ -0,0 +1,87 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanStartGovernorTest {
+
+    @Test
+    public void allowsFiveStartsInThirtySeconds() {
+        ScanStartGovernor governor = new ScanStartGovernor();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(governor.canStart(i * 1000));
+            governor.onStarted(i * 1000);
+        }
+
+        assertFalse(governor.canStart(5000));
+        assertEquals(30000, governor.nextStartAt(5000));
+        assertFalse(governor.canStart(29999));
+        assertTrue(governor.canStart(30000));
+
+        governor.onStarted(30000);
+        // now the start at 1000 is the oldest one
+        assertEquals(31000, governor.nextStartAt(30000));
+    }
+
+    /**
+     * Runs a short 2 seconds on, 3 seconds off scan cycle for ten minutes, the way MultiScanner
+     * applies the governor, and checks the platform limit is never hit.
+     */
+    @Test
+    public void shortCyclesStayUnderTheLimit() {
+        ScanStartGovernor governor = new ScanStartGovernor();
+        List<Long> starts = new ArrayList<>();
+        boolean scanning = false;
+        long scanningTime = 0;
+
+        for (long now = 0; now < 10 * 60 * 1000; now += 5000) {
+            // start of the scan window
+            if (!scanning) {
+                long startAt = governor.nextStartAt(now);
+                if (startAt > now)
+                    governor.onDeferred();
+                if (startAt < now + 2000) {
+                    governor.onStarted(startAt);
+                    starts.add(startAt);
+                    scanning = true;
+                    scanningTime += now + 2000 - startAt;
+                }
+            } else {
+                scanningTime += 2000;
+            }
+
+            // end of the scan window, idle for 3 seconds
+            if (scanning) {
+                if (!governor.canStart(now + 5000)) {
+                    governor.onKeptRunning();
+                    scanningTime += 3000;
+                } else {
+                    scanning = false;
+                }
+            }
+        }
+
+        for (int i = 5; i < starts.size(); i++) {
+            assertTrue(starts.get(i) - starts.get(i - 5) >= 30000);
+        }
+        assertTrue(governor.getKeptRunningCount() > 0);
+        assertEquals(starts.size(), governor.getStartCount());
+        // merging cycles scanned more, rather than less
+        assertTrue(scanningTime >= 4 * 60 * 1000);
+    }
+
+    @Test
+    public void rejectsZeroStarts() {
+        try {
+            new ScanStartGovernor(0, 30 * 1000);
+            throw new AssertionError("expected the max starts to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
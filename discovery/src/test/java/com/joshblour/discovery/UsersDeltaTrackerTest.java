@@ -0,0 +1,169 @@
+package com.joshblour.discovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UsersDeltaTrackerTest {
+
+    @Test
+    public void reportsAddedMovedAndRemovedUsers() {
+        ProximityIndex index = new ProximityIndex();
+        UsersDeltaTracker tracker = new UsersDeltaTracker();
+        BLEUser near = createUser(0, -40);
+        BLEUser far = createUser(1, -80);
+
+        update(index, tracker, near);
+        update(index, tracker, far);
+        UsersDelta delta = tracker.flush(index);
+        assertEquals(2, delta.getAdded().size());
+        assertEquals(0, delta.getMoved().size());
+        for (UsersDelta.Change change : delta.getAdded()) {
+            assertEquals(change.getUser().getDeviceAddress(), index.get(change.getRank()).getDeviceAddress());
+        }
+
+        // nothing changed
+        assertTrue(tracker.flush(index).isEmpty());
+
+        // the users swap places
+        int farRank = far.mIndexRank;
+        for (int i = 0; i < 20; i++) {
+            far.setRssi(-40);
+            near.setRssi(-80);
+            update(index, tracker, far);
+            update(index, tracker, near);
+        }
+        assertTrue(far.mIndexRank != farRank);
+        delta = tracker.flush(index);
+        assertEquals(1, delta.size());
+        UsersDelta.Change moved = delta.getMoved().get(0);
+        assertEquals(moved.getUser().getDeviceAddress(), index.get(moved.getRank()).getDeviceAddress());
+
+        tracker.userRemoved(near, UsersDelta.RemovalReason.TIMEOUT);
+        index.remove(near);
+        delta = tracker.flush(index);
+        assertEquals(1, delta.size());
+        assertEquals(near.getDeviceAddress(), delta.getRemoved().get(0).getUser().getDeviceAddress());
+        assertEquals(UsersDelta.RemovalReason.TIMEOUT, delta.getRemoved().get(0).getReason());
+    }
+
+    @Test
+    public void foldsChangesToUsersThatWereNeverDelivered() {
+        ProximityIndex index = new ProximityIndex();
+        UsersDeltaTracker tracker = new UsersDeltaTracker();
+        BLEUser user = createUser(0, -40);
+
+        // added and removed before the delta was delivered, so nobody needs to hear about it
+        update(index, tracker, user);
+        tracker.userRemoved(user, UsersDelta.RemovalReason.TIMEOUT);
+        index.remove(user);
+        assertTrue(tracker.flush(index).isEmpty());
+
+        // renaming a user that is added in the same delta is just an add
+        update(index, tracker, user);
+        tracker.userRenamed(user);
+        UsersDelta delta = tracker.flush(index);
+        assertEquals(1, delta.size());
+        assertEquals(1, delta.getAdded().size());
+
+        tracker.userRenamed(user);
+        delta = tracker.flush(index);
+        assertEquals(1, delta.getRenamed().size());
+        assertEquals(0, delta.getRenamed().get(0).getRank());
+    }
+
+    @Test
+    public void deltasRebuildTheList() {
+        ProximityIndex index = new ProximityIndex();
+        UsersDeltaTracker tracker = new UsersDeltaTracker();
+        List<BLEUser> users = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            users.add(createUser(i, -60));
+        }
+        List<BLEUser> mirror = new ArrayList<>();
+        Random random = new Random(11);
+
+        for (int step = 0; step < 20000; step++) {
+            BLEUser user = users.get(random.nextInt(users.size()));
+            int action = random.nextInt(20);
+            if (action == 0) {
+                user.setIdentified(!user.isIdentified());
+                if (!user.isIdentified() && index.contains(user))
+                    tracker.userRemoved(user, UsersDelta.RemovalReason.NOT_MY_SERVICE);
+            } else if (action == 1 && index.contains(user)) {
+                tracker.userRemoved(user, UsersDelta.RemovalReason.TIMEOUT);
+                index.remove(user);
+                continue;
+            }
+            user.setRssi(-30 - random.nextInt(70));
+            update(index, tracker, user);
+
+            if (random.nextInt(25) == 0)
+                apply(tracker.flush(index), mirror);
+        }
+        apply(tracker.flush(index), mirror);
+
+        List<BLEUser> expected = new ArrayList<>();
+        index.copyTo(expected);
+        assertEquals(expected.size(), mirror.size());
+        for (int rank = 0; rank < expected.size(); rank++) {
+            assertEquals(expected.get(rank).getDeviceAddress(), mirror.get(rank).getDeviceAddress());
+        }
+    }
+
+    // what Discovery.updateIndex() does
+    private static void update(ProximityIndex index, UsersDeltaTracker tracker, BLEUser user) {
+        boolean wasListed = index.contains(user);
+        boolean moved = index.update(user);
+        if (index.contains(user) && !wasListed) {
+            tracker.userAdded(user);
+        } else if (moved) {
+            tracker.userMoved(user);
+        }
+    }
+
+    // what an app would do with a delta: take out removed and moved users, then put added and
+    // moved users back at their ranks. changes carry copies, matched up by their address.
+    private static void apply(UsersDelta delta, List<BLEUser> list) {
+        for (UsersDelta.Change change : delta.getRemoved()) {
+            remove(list, change.getUser());
+        }
+        List<UsersDelta.Change> placed = new ArrayList<>(delta.getAdded());
+        placed.addAll(delta.getMoved());
+        for (UsersDelta.Change change : delta.getMoved()) {
+            remove(list, change.getUser());
+        }
+        Collections.sort(placed, new Comparator<UsersDelta.Change>() {
+            @Override
+            public int compare(UsersDelta.Change lhs, UsersDelta.Change rhs) {
+                return lhs.getRank() - rhs.getRank();
+            }
+        });
+        for (UsersDelta.Change change : placed) {
+            list.add(change.getRank(), change.getUser());
+        }
+    }
+
+    private static void remove(List<BLEUser> list, BLEUser user) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).getDeviceAddress().equals(user.getDeviceAddress())) {
+                list.remove(i);
+                return;
+            }
+        }
+    }
+
+    private static BLEUser createUser(int address, int rssi) {
+        BLEUser user = new BLEUser(MacAddress.unpack(address));
+        user.setIdentified(true);
+        user.setRssi(rssi);
+        return user;
+    }
+}